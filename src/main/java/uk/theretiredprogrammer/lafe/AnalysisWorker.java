@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javafx.application.Platform;
+
+//
+//  the worker thread for the passes over a capture's samples - the glitch
+//  scan, capture diffs, timing statistics - which would otherwise hold up
+//  the FX application thread. There is a single daemon thread, so the work
+//  runs in the order given and a pass which keeps state across captures
+//  needs no locking. A pass must be handed the samples it works on (held on
+//  the FX application thread) as the history may spill a capture meanwhile.
+//
+public class AnalysisWorker {
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "lafe-analysis");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void execute(Runnable work) {
+        worker.execute(() -> ExecuteAndCatch.run(work));
+    }
+
+    // runs work on the worker thread, and hands its result to done on the FX application thread
+    public static <T> void run(Supplier<T> work, Consumer<T> done) {
+        execute(() -> {
+            T result = work.get();
+            Platform.runLater(() -> ExecuteAndCatch.run(() -> done.accept(result)));
+        });
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+//
+//  the labelled sample ranges of a decode (a byte, a frame ...) drawn on one
+//  row of the sample display, at a cost set by the pixels drawn rather than
+//  the annotations in the capture:
+//
+//  -   the annotations are held sorted by start, with the running maximum of
+//      their ends, so the first one visible is found by binary search
+//  -   an annotation too narrow for its label is merged with its neighbours
+//      into a summary block of at least MIN_BLOCK_PX, showing their count;
+//      each block is found by binary search too, so a zoomed out view of
+//      millions of annotations draws only a block or so per MIN_BLOCK_PX
+//  -   labels are drawn from images of their text, rasterised once and kept
+//      in an LRU cache of GLYPH_CACHE_SIZE (FX application thread only)
+//
+public class AnnotationLayer {
+
+    private static final int MIN_BLOCK_PX = 6;
+    private static final int LABEL_PADDING = 4;
+    private static final int GLYPH_CACHE_SIZE = 1024;
+    private static final Font LABEL_FONT = Font.font("Monospaced", 11);
+    private static final Color BOX_FILL = Color.rgb(70, 130, 180, 0.25);
+    private static final Color BOX_STROKE = Color.STEELBLUE;
+    private static final Color BLOCK_FILL = Color.rgb(70, 130, 180, 0.6);
+
+    private static final Map<String, Image> glyphs = new LinkedHashMap<>(GLYPH_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > GLYPH_CACHE_SIZE;
+        }
+    };
+
+    private final long[] from;
+    private final long[] to;
+    private final long[] maxto; // the largest to of annotations 0..i
+    private final String[] labels;
+    private final int count;
+
+    public static class Builder {
+
+        private long[] from = new long[64];
+        private long[] to = new long[64];
+        private String[] labels = new String[64];
+        private int count = 0;
+
+        public void add(long start, long end, String label) {
+            if (count == from.length) {
+                from = Arrays.copyOf(from, count * 2);
+                to = Arrays.copyOf(to, count * 2);
+                labels = Arrays.copyOf(labels, count * 2);
+            }
+            from[count] = start;
+            to[count] = end;
+            labels[count++] = label;
+        }
+
+        public AnnotationLayer build() {
+            // decoders add in time order - sort only if one did not
+            for (int i = 1; i < count; i++) {
+                if (from[i] < from[i - 1]) {
+                    return sorted();
+                }
+            }
+            return new AnnotationLayer(from, to, labels, count);
+        }
+
+        private AnnotationLayer sorted() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(from[a], from[b]));
+            long[] sfrom = new long[count];
+            long[] sto = new long[count];
+            String[] slabels = new String[count];
+            for (int i = 0; i < count; i++) {
+                sfrom[i] = from[order[i]];
+                sto[i] = to[order[i]];
+                slabels[i] = labels[order[i]];
+            }
+            return new AnnotationLayer(sfrom, sto, slabels, count);
+        }
+    }
+
+    private AnnotationLayer(long[] from, long[] to, String[] labels, int count) {
+        this.from = from;
+        this.to = to;
+        this.labels = labels;
+        this.count = count;
+        maxto = new long[count];
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, to[i]);
+            maxto[i] = max;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // draws the annotations between samples start and end, with sample start at x0 - returns
+    // the number of labelled boxes and summary blocks drawn
+    public int draw(GraphicsContext gc, long start, long end, double samplesperpixel, double x0, double top,
+            double height) {
+        int drawn = 0;
+        int i = firstEndingAfter(start);
+        while (i < count && from[i] < end) {
+            if (to[i] <= start) {
+                i++; // overlapped by an earlier annotation which is still visible
+                continue;
+            }
+            double x = x0 + (Math.max(start, from[i]) - start) / samplesperpixel;
+            double width = (Math.min(end, to[i]) - Math.max(start, from[i])) / samplesperpixel;
+            Image glyph = glyph(labels[i]);
+            if (width >= glyph.getWidth() + LABEL_PADDING) {
+                gc.setFill(BOX_FILL);
+                gc.fillRect(x, top, width, height);
+                gc.setStroke(BOX_STROKE);
+                gc.setLineWidth(1.0);
+                gc.strokeRect(x, top, width, height);
+                gc.drawImage(glyph, x + (width - glyph.getWidth()) / 2, top + (height - glyph.getHeight()) / 2);
+                i++;
+            } else {
+                i = drawBlock(gc, i, start, end, samplesperpixel, x0, top, height);
+            }
+            drawn++;
+        }
+        return drawn;
+    }
+
+    // merges the annotations from i which start within the block, extending it while the
+    // next one is also too narrow to label and follows on closely - returns the next index
+    private int drawBlock(GraphicsContext gc, int i, long start, long end, double samplesperpixel, double x0,
+            double top, double height) {
+        long blocksamples = (long) Math.ceil(MIN_BLOCK_PX * samplesperpixel);
+        int j = firstStartingAt(from[i] + Math.max(1, blocksamples), i + 1);
+        while (j < count && from[j] < end && from[j] - maxto[j - 1] <= blocksamples
+                && (to[j] - from[j]) / samplesperpixel < glyph(labels[j]).getWidth() + LABEL_PADDING) {
+            j = firstStartingAt(from[j] + Math.max(1, blocksamples), j + 1);
+        }
+        double x = x0 + (Math.max(start, from[i]) - start) / samplesperpixel;
+        double width = Math.max(1, (Math.min(end, maxto[j - 1]) - Math.max(start, from[i])) / samplesperpixel);
+        gc.setFill(BLOCK_FILL);
+        gc.fillRect(x, top, width, height);
+        if (j - i > 1) {
+            Image glyph = glyph(Integer.toString(j - i));
+            if (width >= glyph.getWidth() + LABEL_PADDING) {
+                gc.drawImage(glyph, x + (width - glyph.getWidth()) / 2, top + (height - glyph.getHeight()) / 2);
+            }
+        }
+        return j;
+    }
+
+    // the first annotation ending after a sample (count if none)
+    private int firstEndingAfter(long sample) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxto[mid] > sample) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // the first annotation at or after index low starting at or after a sample (count if none)
+    private int firstStartingAt(long sample, int low) {
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (from[mid] >= sample) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static Image glyph(String label) {
+        Image glyph = glyphs.get(label);
+        if (glyph == null) {
+            Text text = new Text(label);
+            text.setFont(LABEL_FONT);
+            SnapshotParameters parameters = new SnapshotParameters();
+            parameters.setFill(Color.TRANSPARENT);
+            glyph = text.snapshot(parameters, null);
+            glyphs.put(label, glyph);
+        }
+        return glyph;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import uk.theretiredprogrammer.lafe.ProbeConfiguration.HzUnits;
+import uk.theretiredprogrammer.lafe.ProbeConfiguration.SampleEndMode;
+
+//
+//  chooses the sample rate and sample size for the configured pins from
+//  short untriggered pre-captures.
+//
+//  The first pre-capture is at the probe's maximum rate; while no pin shows
+//  MIN_EDGES edges the rate is dropped a decade (down to the rate at which a
+//  pre-capture takes MAX_PASS_MS). Then:
+//
+//  -   the rate is the lowest 1-2-5 rate giving RESOLVE samples across the
+//      narrowest pulse seen in any pass (-Dlafe.autorange.resolve)
+//  -   the size holds PERIODS periods of the slowest active pin at that rate
+//      (-Dlafe.autorange.periods), in whole sample units
+//
+//  The watchdog must be stopped while the pre-captures run, as they drive
+//  the probe directly.
+//
+public class AutoRange {
+
+    private static final long PRE_SAMPLES = 16000;
+    private static final int MIN_EDGES = 4;
+    private static final long MAX_PASS_MS = 2000;
+    private static final long TIMEOUT_MS = 10000;
+    private static final int RESOLVE = Integer.getInteger("lafe.autorange.resolve", 4);
+    private static final int PERIODS = Integer.getInteger("lafe.autorange.periods", 10);
+
+    private final Controller controller;
+    private final USBSerialDevice usbdevice;
+    private final ProbeDefinitions definitions;
+    private final int firstpin;
+    private final int pins;
+    private final Consumer<String> report;
+    private volatile boolean cancelled = false;
+
+    public AutoRange(Controller controller, USBSerialDevice usbdevice, ProbeDefinitions definitions, int firstpin,
+            int pins, Consumer<String> report) {
+        this.controller = controller;
+        this.usbdevice = usbdevice;
+        this.definitions = definitions;
+        this.firstpin = firstpin;
+        this.pins = pins;
+        this.report = report;
+    }
+
+    public static class Result {
+
+        public final long samplerate;
+        public final long samplesize;
+
+        Result(long samplerate, long samplesize) {
+            this.samplerate = samplerate;
+            this.samplesize = samplesize;
+        }
+
+        // writes the rate (as the largest whole unit, multiplier 1) and size into a configuration
+        public void apply(ProbeConfiguration config) {
+            HzUnits unit = samplerate % HzUnits.MHZ.getMultiplier() == 0 ? HzUnits.MHZ
+                    : samplerate % HzUnits.KHZ.getMultiplier() == 0 ? HzUnits.KHZ : HzUnits.HZ;
+            config.speedunit.set(unit);
+            config.speed.set((int) (samplerate / unit.getMultiplier()));
+            config.speedmultiplier.set(1);
+            config.samplesize.set(samplesize);
+        }
+
+        @Override
+        public String toString() {
+            return "Sample rate " + samplerate + " Hz, sample size " + samplesize;
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // returns null if nothing could be measured - the configuration is then left alone
+    public Result run() {
+        long presamples = Math.min(PRE_SAMPLES, definitions.maxSamplesize);
+        long lowestrate = Math.max(definitions.minFrequence, presamples * 1000 / MAX_PASS_MS);
+        report.accept("Auto range of pins " + firstpin + ".." + (firstpin + pins - 1) + " (" + presamples
+                + " sample pre-captures)");
+        report.accept(String.format("%12s %6s %10s %14s %14s", "rate Hz", "pin", "edges", "edges/s", "min pulse"));
+        double narrowest = Double.MAX_VALUE; // seconds, over all passes
+        double slowestperiod = 0; // seconds, in the last pass
+        boolean active = false;
+        for (long rate = definitions.maxFrequency; rate >= lowestrate && !active && !cancelled; rate /= 10) {
+            Map<Integer, PinSamples> samples = preCapture(rate, presamples);
+            if (samples == null) {
+                report.accept("Pre-capture at " + rate + " Hz failed");
+                return null;
+            }
+            slowestperiod = 0;
+            for (var es : samples.entrySet()) {
+                PinSamples pinsamples = es.getValue();
+                long[] stats = pulseStatistics(pinsamples); // edges, first, last, min pulse
+                double minpulse = stats[3] == Long.MAX_VALUE ? 0 : (double) stats[3] / rate;
+                report.accept(String.format("%12d %6d %10d %14.0f %14s", rate, es.getKey(), stats[0],
+                        stats[0] * (double) rate / pinsamples.size(),
+                        minpulse == 0 ? "-" : TimeBase.formatNanos(Math.round(minpulse * 1e9))));
+                if (minpulse > 0) {
+                    narrowest = Math.min(narrowest, minpulse);
+                }
+                if (stats[0] >= 2) {
+                    // two edges a period, on average
+                    slowestperiod = Math.max(slowestperiod, 2.0 * (stats[2] - stats[1]) / (stats[0] - 1) / rate);
+                }
+                active |= stats[0] >= MIN_EDGES;
+            }
+        }
+        if (cancelled) {
+            report.accept("Auto range cancelled");
+            return null;
+        }
+        if (slowestperiod == 0) {
+            report.accept("No activity seen - the configuration is unchanged");
+            return null;
+        }
+        if (narrowest == Double.MAX_VALUE) {
+            narrowest = slowestperiod / 2;
+        }
+        long rate = niceRate(Math.max(definitions.minFrequence, (long) Math.ceil(RESOLVE / narrowest)));
+        long units = (long) Math.ceil(PERIODS * slowestperiod * rate / definitions.sampleUnitSize);
+        long size = Math.min(definitions.maxSamplesize, Math.max(1, units) * definitions.sampleUnitSize);
+        Result result = new Result(rate, size);
+        report.accept(result + String.format(" (%d samples across the narrowest pulse, %.1f periods of the slowest pin)",
+                Math.round(narrowest * rate), size / (slowestperiod * rate)));
+        return result;
+    }
+
+    // an untriggered capture which ends when the buffer is full - returns null if it failed
+    private Map<Integer, PinSamples> preCapture(long rate, long samplesize) {
+        ProbeConfiguration config = new ProbeConfiguration();
+        config.firstpin.set(firstpin);
+        config.pins.set(pins);
+        config.speed.set((int) rate);
+        config.speedunit.set(HzUnits.HZ);
+        config.speedmultiplier.set(1);
+        config.st_enabled.set(false);
+        config.et_enabled.set(false);
+        config.sampleendmode.set(SampleEndMode.BUFFERFULL);
+        config.samplesize.set(samplesize);
+        if (!usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> false)) {
+            return null;
+        }
+        if (!ProbeStateWatchDog.waitForSamplingDone(usbdevice, TIMEOUT_MS, () -> cancelled)) {
+            usbdevice.sendCommandAndHandleResponse("s", (s) -> false);
+            return null;
+        }
+        SampleRetriever retriever = new SampleRetriever(controller, usbdevice, config);
+        return retriever.retrieveAll() ? retriever.getCapture().getSamples() : null;
+    }
+
+    // the edge count, first and last edges, and the narrowest complete pulse (Long.MAX_VALUE if none)
+    private static long[] pulseStatistics(PinSamples samples) {
+        long[] stats = {0, -1, -1, Long.MAX_VALUE};
+        samples.forEachEdge(edge -> {
+            if (stats[2] >= 0) {
+                stats[3] = Math.min(stats[3], edge - stats[2]);
+            } else {
+                stats[1] = edge;
+            }
+            stats[2] = edge;
+            stats[0]++;
+        });
+        return stats;
+    }
+
+    // the lowest 1-2-5 rate at or above a rate, and within the probe's maximum
+    private long niceRate(long rate) {
+        for (long decade = 1; decade <= definitions.maxFrequency; decade *= 10) {
+            for (long step : new long[]{1, 2, 5}) {
+                if (decade * step >= rate) {
+                    return Math.min(decade * step, definitions.maxFrequency);
+                }
+            }
+        }
+        return definitions.maxFrequency;
+    }
+}
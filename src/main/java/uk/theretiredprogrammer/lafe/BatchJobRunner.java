@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+//
+//  runs a list of capture jobs back to back - each job is a configuration
+//  file (as configuration.properties: FIRST_PIN, SPEED, ...), plus an
+//  optional TIMEOUT_MS after which sampling is ended (the only way a MANUAL
+//  job ends).
+//
+//  For each job: arm, wait for sampling to complete, download, persist. The
+//  arm commands are encoded and validated before the first job starts, and
+//  each capture is written to the output directory on a separate thread
+//  while the next job is armed, so the dead time between jobs is only the
+//  download.
+//
+//  The watchdog must be stopped while the jobs run, as they drive the probe
+//  directly.
+//
+public class BatchJobRunner {
+
+    private static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    public static class Job {
+
+        public final String name;
+        public final ProbeConfiguration config;
+        public final String command;
+        public final long timeoutms;
+
+        Job(String name, ProbeConfiguration config, long timeoutms) {
+            this.name = name;
+            this.config = config;
+            this.command = config.getprobecommand("g");
+            this.timeoutms = timeoutms;
+        }
+    }
+
+    private final Controller controller;
+    private final USBSerialDevice usbdevice;
+    private final List<Job> jobs;
+    private final File outputdir;
+    private final Consumer<String> report;
+    private final Consumer<Capture> completed;
+    private volatile boolean cancelled = false;
+
+    public BatchJobRunner(Controller controller, USBSerialDevice usbdevice, List<Job> jobs, File outputdir,
+            Consumer<String> report, Consumer<Capture> completed) {
+        this.controller = controller;
+        this.usbdevice = usbdevice;
+        this.jobs = jobs;
+        this.outputdir = outputdir;
+        this.report = report;
+        this.completed = completed;
+    }
+
+    // reads and validates the job files - any failure is reported before the probe is used
+    public static List<Job> load(List<File> files, ProbeDefinitions definitions) {
+        List<Job> jobs = new ArrayList<>();
+        for (File file : files) {
+            Properties properties = new Properties();
+            try ( InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException ex) {
+                throw new Failure("Cannot read job " + file, ex);
+            }
+            ProbeConfiguration config = new ProbeConfiguration();
+            config.definitions.set(definitions);
+            config.load(properties);
+            String error = config.validate();
+            if (!error.isEmpty()) {
+                throw new Failure("Job " + file.getName() + ": " + error);
+            }
+            long timeoutms;
+            try {
+                timeoutms = Long.parseLong(properties.getProperty("TIMEOUT_MS", Long.toString(DEFAULT_TIMEOUT_MS)).strip());
+            } catch (NumberFormatException ex) {
+                throw new Failure("Job " + file.getName() + ": TIMEOUT_MS is not a number", ex);
+            }
+            String name = file.getName();
+            jobs.add(new Job(name.endsWith(".properties") ? name.substring(0, name.length() - 11) : name, config, timeoutms));
+        }
+        return jobs;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void run() {
+        ExecutorService persistence = Executors.newSingleThreadExecutor((r) -> new Thread(r, "lafe-batch-persist"));
+        report.accept(String.format("%-20s %10s %10s %10s %10s %s", "job", "dead ms", "sample ms", "download ms",
+                "samples", "result"));
+        long batchstart = System.nanoTime();
+        long lastdownloaded = 0;
+        int done = 0;
+        try {
+            for (int i = 0; i < jobs.size() && !cancelled; i++) {
+                Job job = jobs.get(i);
+                long armtime = System.nanoTime();
+                long deadms = lastdownloaded == 0 ? 0 : (armtime - lastdownloaded) / 1000000;
+                if (!usbdevice.sendCommandAndHandleResponse(job.command, (s) -> false)) {
+                    report.accept(String.format("%-20s %10d %10s %10s %10s %s", job.name, deadms, "", "", "", "not armed"));
+                    continue;
+                }
+                boolean timedout = !ProbeStateWatchDog.waitForSamplingDone(usbdevice, job.timeoutms, () -> cancelled);
+                if (timedout) {
+                    // end sampling - the samples so far are still downloaded
+                    usbdevice.sendCommandAndHandleResponse("s", (s) -> false);
+                    if (!ProbeStateWatchDog.waitForSamplingDone(usbdevice, DEFAULT_TIMEOUT_MS, () -> false)) {
+                        report.accept(String.format("%-20s %10d %10s %10s %10s %s", job.name, deadms, "", "", "", "did not stop"));
+                        continue;
+                    }
+                }
+                long sampledtime = System.nanoTime();
+                SampleRetriever retriever = new SampleRetriever(controller, usbdevice, job.config);
+                boolean downloaded = retriever.retrieveAll();
+                lastdownloaded = System.nanoTime();
+                Capture capture = retriever.getCapture();
+                report.accept(String.format("%-20s %10d %10d %10d %10d %s", job.name, deadms,
+                        (sampledtime - armtime) / 1000000, (lastdownloaded - sampledtime) / 1000000,
+                        job.config.samplesize.get(), !downloaded ? "download failed" : timedout ? "ended by timeout" : "ok"));
+                if (downloaded) {
+                    done++;
+                    File file = new File(outputdir, String.format("%03d-%s.gz", i + 1, job.name));
+                    persistence.submit(() -> ExecuteAndCatch.run(() -> {
+                        long starttime = System.nanoTime();
+                        CaptureHistory.writeSamples(file, capture.getSamples());
+                        report.accept("  " + job.name + " saved to " + file.getName() + " in "
+                                + (System.nanoTime() - starttime) / 1000000 + " ms");
+                        completed.accept(capture);
+                    }));
+                }
+            }
+        } finally {
+            persistence.shutdown();
+            try {
+                persistence.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        report.accept((cancelled ? "Batch cancelled: " : "Batch completed: ") + done + " of " + jobs.size()
+                + " jobs captured in " + (System.nanoTime() - batchstart) / 1000000 + " ms");
+    }
+}
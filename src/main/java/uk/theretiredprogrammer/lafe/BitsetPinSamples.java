@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.LongConsumer;
+
+//
+//  pin samples held as one bit per sample - bounded memory for signals which
+//  toggle faster than the transition list can represent compactly.
+//  A single block is limited to int positions; longer captures are segmented.
+//
+public class BitsetPinSamples implements PinSamples {
+
+    private final long[] words;
+    private final int size;
+
+    public BitsetPinSamples(long[] words, int size) {
+        this.words = words;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean initialLevel() {
+        return size > 0 && levelAt(0);
+    }
+
+    @Override
+    public boolean levelAt(long sample) {
+        return (words[(int) (sample >>> 6)] & (1L << sample)) != 0;
+    }
+
+    // bit i set where sample i differs from sample i-1 (bit 0 of the first word is never set)
+    private long edgeWord(int k) {
+        long w = words[k];
+        long carry = k == 0 ? w & 1 : words[k - 1] >>> 63;
+        return w ^ ((w << 1) | carry);
+    }
+
+    @Override
+    public long nextEdge(long from) {
+        if (from + 1 >= size) {
+            return size;
+        }
+        int start = (int) Math.max(0, from + 1);
+        int k = start >>> 6;
+        long diff = edgeWord(k) & (-1L << start);
+        while (true) {
+            if (diff != 0) {
+                int edge = (k << 6) + Long.numberOfTrailingZeros(diff);
+                return Math.min(edge, size);
+            }
+            if (++k >= words.length) {
+                return size;
+            }
+            diff = edgeWord(k);
+        }
+    }
+
+    @Override
+    public long edgeCount() {
+        return edgeCount(0, size);
+    }
+
+    @Override
+    public long edgeCount(long from, long to) {
+        int lo = (int) Math.max(1, from + 1);
+        int hi = (int) Math.min(size, to);
+        return hi <= lo ? 0 : countBits(lo, hi, true);
+    }
+
+    @Override
+    public long highCount(long from, long to) {
+        int lo = (int) Math.max(0, from);
+        int hi = (int) Math.min(size, to);
+        return hi <= lo ? 0 : countBits(lo, hi, false);
+    }
+
+    // popcount over [from, to) of the sample bits or the edge bits
+    private int countBits(int from, int to, boolean edges) {
+        int firstword = from >>> 6;
+        int lastword = (to - 1) >>> 6;
+        int count = 0;
+        for (int k = firstword; k <= lastword; k++) {
+            long w = edges ? edgeWord(k) : words[k];
+            if (k == firstword) {
+                w &= -1L << from;
+            }
+            if (k == lastword) {
+                w &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            count += Long.bitCount(w);
+        }
+        return count;
+    }
+
+    @Override
+    public void forEachEdge(LongConsumer action) {
+        for (int k = 0; k < words.length; k++) {
+            long diff = edgeWord(k);
+            while (diff != 0) {
+                long edge = ((long) k << 6) + Long.numberOfTrailingZeros(diff);
+                if (edge >= size) {
+                    return;
+                }
+                action.accept(edge);
+                diff &= diff - 1;
+            }
+        }
+    }
+
+    @Override
+    public long memoryBytes() {
+        return 32 + 16 + 8L * words.length;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(BITSET);
+        out.writeInt(size);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    static BitsetPinSamples read(DataInputStream in, int size) throws IOException {
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BitsetPinSamples(words, size);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.Arrays;
+
+//
+//  the value of a group of pins (a bus) - held as the samples at which the
+//  value changes and the value from each change, so the cost is per change
+//  rather than per sample. Bit 0 is the first pin of the group.
+//
+public class BusSamples {
+
+    private final long[] changes; // changes[0] == 0
+    private final int[] values;
+    private final int count;
+    private final long size;
+    private final int width;
+
+    BusSamples(long[] changes, int[] values, int count, long size, int width) {
+        this.changes = changes;
+        this.values = values;
+        this.count = count;
+        this.size = size;
+        this.width = width;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    // the index of the last change at or before sample
+    private int indexOf(long sample) {
+        int index = Arrays.binarySearch(changes, 0, count, sample);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public int valueAt(long sample) {
+        return count == 0 ? 0 : values[Math.max(0, indexOf(sample))];
+    }
+
+    // the first change after sample from, or size() if there are no more changes
+    public long nextChange(long from) {
+        int index = indexOf(from) + 1;
+        return index < count ? changes[index] : size;
+    }
+
+    // the number of changes c with from < c < to
+    public long changeCount(long from, long to) {
+        return to <= from + 1 ? 0 : Math.max(0, indexOf(to - 1) - indexOf(from));
+    }
+
+    public String format(int value) {
+        return String.format("%0" + ((width + 3) / 4) + "X", value);
+    }
+
+    public long memoryBytes() {
+        return 48 + 12L * changes.length;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+//  a completed capture - the downloaded samples for each pin and the
+//  configuration they were taken with
+//
+public class Capture {
+
+    private static final long[] NO_RANGES = new long[0];
+    private static int nextid = 1;
+
+    private final int id;
+    private final long timestamp;
+    private final String description;
+    private final long samplesize;
+    private final long samplerate;
+    private volatile Map<Integer, PinSamples> samples;
+    // for each pin, the sample ranges not yet downloaded from the probe as from,to pairs
+    private volatile Map<Integer, long[]> pendingranges = Map.of();
+    private long estimatedbytes;
+    private File spillfile;
+
+    public Capture(ProbeConfiguration config, Map<Integer, PinSamples> samples) {
+        this("pins " + config.firstpin.get() + ".." + (config.firstpin.get() + config.pins.get() - 1)
+                + " @ " + config.speed.get() + " " + config.speedunit.get() + " x" + config.speedmultiplier.get(),
+                config.samplesize.get(), config.speedcalculation(), samples);
+    }
+
+    private Capture(String description, long samplesize, long samplerate, Map<Integer, PinSamples> samples) {
+        synchronized (Capture.class) {
+            this.id = nextid++;
+        }
+        this.timestamp = System.currentTimeMillis();
+        this.description = description;
+        this.samplesize = samplesize;
+        this.samplerate = samplerate;
+        setSamples(samples);
+    }
+
+    // join repeated or segmented runs (same pins and sample rate) end to end;
+    // samples are passed separately as the captures may have been spilled since
+    // they were loaded
+    public static Capture merge(List<Capture> captures, List<Map<Integer, PinSamples>> samples) {
+        if (captures.isEmpty()) {
+            throw new Failure("No captures to merge");
+        }
+        Capture first = captures.get(0);
+        Map<Integer, List<PinSamples>> segments = new LinkedHashMap<>();
+        samples.get(0).keySet().forEach(pin -> segments.put(pin, new ArrayList<>()));
+        Map<Integer, List<Long>> pending = new LinkedHashMap<>();
+        long totalsize = 0;
+        for (int i = 0; i < captures.size(); i++) {
+            Capture capture = captures.get(i);
+            Map<Integer, PinSamples> capturesamples = samples.get(i);
+            if (capture.samplerate != first.samplerate || !capturesamples.keySet().equals(segments.keySet())) {
+                throw new Failure("Captures #" + first.id + " and #" + capture.id + " have different pins or sample rates");
+            }
+            capturesamples.forEach((pin, pinsamples) -> segments.get(pin).add(pinsamples));
+            for (var es : capture.pendingranges.entrySet()) {
+                for (long range : es.getValue()) {
+                    pending.computeIfAbsent(es.getKey(), pin -> new ArrayList<>()).add(totalsize + range);
+                }
+            }
+            totalsize += capturesamples.isEmpty() ? capture.samplesize
+                    : capturesamples.values().iterator().next().size();
+        }
+        Map<Integer, PinSamples> merged = new LinkedHashMap<>();
+        segments.forEach((pin, list) -> merged.put(pin, new SegmentedPinSamples(list)));
+        Capture capture = new Capture("merge of " + captures.size() + " captures from #" + first.id, totalsize, first.samplerate, merged);
+        Map<Integer, long[]> pendingranges = new LinkedHashMap<>();
+        pending.forEach((pin, ranges) -> pendingranges.put(pin, ranges.stream().mapToLong(Long::longValue).toArray()));
+        capture.pendingranges = pendingranges;
+        return capture;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public long getSamplesize() {
+        return samplesize;
+    }
+
+    public long getSampleRate() {
+        return samplerate;
+    }
+
+    public TimeBase getTimeBase() {
+        return new TimeBase(samplerate);
+    }
+
+    // null if the samples have been spilled to disk - use CaptureHistory.get() to reload
+    public Map<Integer, PinSamples> getSamples() {
+        return samples;
+    }
+
+    public boolean isResident() {
+        return samples != null;
+    }
+
+    // false while parts of the probe buffer are still being downloaded
+    public boolean isComplete() {
+        return pendingranges.isEmpty();
+    }
+
+    public long[] getPendingRanges(int pin) {
+        return pendingranges.getOrDefault(pin, NO_RANGES);
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedbytes;
+    }
+
+    final void setSamples(Map<Integer, PinSamples> samples) {
+        this.samples = samples;
+        estimatedbytes = samples == null ? 0 : estimateBytes(samples);
+    }
+
+    // more of the probe buffer has been downloaded
+    void setSamples(Map<Integer, PinSamples> samples, Map<Integer, long[]> pendingranges) {
+        setSamples(samples);
+        this.pendingranges = pendingranges;
+    }
+
+    File getSpillFile() {
+        return spillfile;
+    }
+
+    void setSpillFile(File spillfile) {
+        this.spillfile = spillfile;
+    }
+
+    private static long estimateBytes(Map<Integer, PinSamples> samples) {
+        long bytes = 64;
+        for (PinSamples pinsamples : samples.values()) {
+            bytes += 32 + pinsamples.memoryBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + new SimpleDateFormat("HH:mm:ss").format(new Date(timestamp)) + " " + description
+                + (isResident() ? "" : " (on disk)") + (isComplete() ? "" : " (partial)");
+    }
+}
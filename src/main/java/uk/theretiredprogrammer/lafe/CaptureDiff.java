@@ -0,0 +1,326 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+
+//
+//  compares two captures (pin by pin, for the pins in both) or two channels
+//  (pins or derived channels, see Channels) of a
+//  capture: lists the sample ranges where the levels differ, and matches
+//  each edge of the first with an edge of the same direction in the second
+//  (within tolerance samples) to give the edge timing deltas.
+//
+//  Both are merges of the two pins' edges in time order, so the cost is per
+//  edge rather than per sample; a diff runs on the AnalysisWorker.
+//
+public class CaptureDiff {
+
+    public static final int MAX_RESULTS = 10000;
+
+    public final IntegerProperty tolerance = new SimpleIntegerProperty(Integer.getInteger("lafe.diff.tolerance", 2));
+
+    public static class Difference {
+
+        public final Capture capturea;
+        public final String channela;
+        public final Capture captureb;
+        public final String channelb;
+        public final long from;
+        public final long to;
+
+        Difference(Capture capturea, String channela, Capture captureb, String channelb, long from, long to) {
+            this.capturea = capturea;
+            this.channela = channela;
+            this.captureb = captureb;
+            this.channelb = channelb;
+            this.from = from;
+            this.to = to;
+        }
+
+        // formatted on demand - only the visible results are ever shown
+        @Override
+        public String toString() {
+            TimeBase timebase = capturea.getTimeBase();
+            return "#" + capturea.getId() + " " + Channels.label(channela) + " / #" + captureb.getId() + " "
+                    + Channels.label(channelb)
+                    + " differ " + timebase.format(from) + " to " + timebase.format(to) + ": " + (to - from) + " samples";
+        }
+    }
+
+    public static class EdgeTiming {
+
+        public long matched;
+        public long unmatched;
+        public long mindelta = Long.MAX_VALUE;
+        public long maxdelta = Long.MIN_VALUE;
+        private double sum;
+        private double sumsquares;
+
+        void add(long delta) {
+            matched++;
+            mindelta = Math.min(mindelta, delta);
+            maxdelta = Math.max(maxdelta, delta);
+            sum += delta;
+            sumsquares += (double) delta * delta;
+        }
+
+        public double mean() {
+            return matched == 0 ? 0 : sum / matched;
+        }
+
+        public double stddev() {
+            return matched < 2 ? 0 : Math.sqrt(Math.max(0, (sumsquares - sum * sum / matched) / (matched - 1)));
+        }
+
+        @Override
+        public String toString() {
+            return matched == 0 ? "no matched edges (" + unmatched + " unmatched)"
+                    : String.format("%d matched edges, delta mean %.2f sd %.2f min %d max %d samples, %d unmatched",
+                            matched, mean(), stddev(), mindelta, maxdelta, unmatched);
+        }
+    }
+
+    public static class DiffResult {
+
+        public final List<Difference> differences;
+        public final long ranges;
+        public final long differingsamples;
+        public final long comparedsamples;
+        public final EdgeTiming timing;
+        public final String notes;
+        public final long nanos;
+        private final Map<String, long[]> highlights = new HashMap<>();
+
+        DiffResult(List<Difference> differences, long ranges, long differingsamples, long comparedsamples,
+                EdgeTiming timing, String notes, long nanos) {
+            this.differences = differences;
+            this.ranges = ranges;
+            this.differingsamples = differingsamples;
+            this.comparedsamples = comparedsamples;
+            this.timing = timing;
+            this.notes = notes;
+            this.nanos = nanos;
+        }
+
+        public boolean isIdentical() {
+            return ranges == 0 && notes.isEmpty();
+        }
+
+        // the listed ranges (from, to pairs, in order) which differ on a channel of either capture
+        public synchronized long[] getHighlights(Capture capture, String channel) {
+            return highlights.computeIfAbsent(capture.getId() + ":" + channel, k -> {
+                long[] ranges = new long[16];
+                int count = 0;
+                for (Difference d : differences) {
+                    if ((d.capturea == capture && d.channela.equals(channel))
+                            || (d.captureb == capture && d.channelb.equals(channel))) {
+                        if (count == ranges.length) {
+                            ranges = Arrays.copyOf(ranges, count * 2);
+                        }
+                        ranges[count++] = d.from;
+                        ranges[count++] = d.to;
+                    }
+                }
+                return Arrays.copyOf(ranges, count);
+            });
+        }
+
+        @Override
+        public String toString() {
+            return (isIdentical() ? "Identical" : ranges + " differing ranges, " + differingsamples + " of "
+                    + comparedsamples + " samples differ")
+                    + (ranges > differences.size() ? " - " + differences.size() + " listed" : "")
+                    + String.format(" (%.1f ms)", nanos / 1e6) + "\n" + timing
+                    + (notes.isEmpty() ? "" : "\n" + notes);
+        }
+    }
+
+    // compares the pins which are in both captures, on the analysis worker - the samples are
+    // passed separately, held as each capture was got from the history, as getting the second
+    // may spill the first
+    public void diffCaptures(Capture a, Map<Integer, PinSamples> samplesa, Capture b, Map<Integer, PinSamples> samplesb,
+            Consumer<DiffResult> done) {
+        long limit = tolerance.get();
+        AnalysisWorker.run(() -> diffCaptures(a, samplesa, b, samplesb, limit), done);
+    }
+
+    static DiffResult diffCaptures(Capture a, Map<Integer, PinSamples> samplesa, Capture b,
+            Map<Integer, PinSamples> samplesb, long limit) {
+        long starttime = System.nanoTime();
+        Accumulator acc = new Accumulator(limit);
+        StringBuilder notes = new StringBuilder();
+        if (a.getSampleRate() != b.getSampleRate()) {
+            notes.append("Sample rates differ: ").append(a.getSampleRate()).append(" Hz and ")
+                    .append(b.getSampleRate()).append(" Hz. ");
+        }
+        for (var es : samplesa.entrySet()) {
+            PinSamples pinb = samplesb.get(es.getKey());
+            if (pinb == null) {
+                notes.append("Pin ").append(es.getKey()).append(" is only in #").append(a.getId()).append(". ");
+            } else {
+                String channel = Channels.ofPin(es.getKey());
+                diffPin(acc, a, channel, es.getValue(), b, channel, pinb, notes);
+            }
+        }
+        for (int pin : samplesb.keySet()) {
+            if (!samplesa.containsKey(pin)) {
+                notes.append("Pin ").append(pin).append(" is only in #").append(b.getId()).append(". ");
+            }
+        }
+        return acc.result(notes.toString().strip(), starttime);
+    }
+
+    // compares two pins of a capture, on the analysis worker
+    public void diffPins(Capture capture, Map<Integer, PinSamples> samples, Channels channels, String channela,
+            String channelb, Consumer<DiffResult> done) {
+        for (String channel : List.of(channela, channelb)) {
+            if (!channels.has(channel, samples)) {
+                throw new Failure("Not in capture #" + capture.getId() + ": " + Channels.label(channel));
+            }
+        }
+        long limit = tolerance.get();
+        AnalysisWorker.run(() -> diffPins(capture, channela, channels.get(channela, samples), channelb,
+                channels.get(channelb, samples), limit), done);
+    }
+
+    static DiffResult diffPins(Capture capture, String channela, PinSamples a, String channelb, PinSamples b, long limit) {
+        long starttime = System.nanoTime();
+        Accumulator acc = new Accumulator(limit);
+        StringBuilder notes = new StringBuilder();
+        diffPin(acc, capture, channela, a, capture, channelb, b, notes);
+        return acc.result(notes.toString().strip(), starttime);
+    }
+
+    private static class Accumulator {
+
+        final long limit; // the edge tolerance
+        final List<Difference> differences = new ArrayList<>();
+        final EdgeTiming timing = new EdgeTiming();
+        long ranges = 0;
+        long differingsamples = 0;
+        long comparedsamples = 0;
+
+        Accumulator(long limit) {
+            this.limit = limit;
+        }
+
+        void addRange(Capture ca, String channela, Capture cb, String channelb, long from, long to) {
+            ranges++;
+            differingsamples += to - from;
+            if (differences.size() < MAX_RESULTS) {
+                differences.add(new Difference(ca, channela, cb, channelb, from, to));
+            }
+        }
+
+        DiffResult result(String notes, long starttime) {
+            differences.sort((x, y) -> Long.compare(x.from, y.from));
+            long nanos = System.nanoTime() - starttime;
+            Metrics.duration(Metrics.CAPTURE_DIFF, nanos);
+            return new DiffResult(differences, ranges, differingsamples, comparedsamples, timing, notes, nanos);
+        }
+    }
+
+    private static void diffPin(Accumulator acc, Capture ca, String channela, PinSamples a, Capture cb,
+            String channelb, PinSamples b, StringBuilder notes) {
+        long size = Math.min(a.size(), b.size());
+        if (a.size() != b.size()) {
+            notes.append(Channels.label(channela)).append(" is ").append(a.size()).append(" samples and ")
+                    .append(Channels.label(channelb)).append(" ").append(b.size()).append(" - the first ").append(size)
+                    .append(" are compared. ");
+        }
+        acc.comparedsamples += size;
+        // the ranges where the levels differ
+        boolean levela = a.initialLevel();
+        boolean levelb = b.initialLevel();
+        long nexta = a.nextEdge(0);
+        long nextb = b.nextEdge(0);
+        long pos = 0;
+        long rangestart = -1;
+        while (pos < size) {
+            if (levela != levelb && rangestart < 0) {
+                rangestart = pos;
+            } else if (levela == levelb && rangestart >= 0) {
+                acc.addRange(ca, channela, cb, channelb, rangestart, pos);
+                rangestart = -1;
+            }
+            long next = Math.min(size, Math.min(nexta, nextb));
+            if (nexta == next) {
+                levela = !levela;
+                nexta = a.nextEdge(next);
+            }
+            if (nextb == next) {
+                levelb = !levelb;
+                nextb = b.nextEdge(next);
+            }
+            pos = next;
+        }
+        if (rangestart >= 0) {
+            acc.addRange(ca, channela, cb, channelb, rangestart, size);
+        }
+        matchEdges(acc.timing, a, b, size, acc.limit);
+    }
+
+    // each edge of a matched with the first unmatched edge of b in the same direction within
+    // tolerance - a merge of the two pins' edges, as a pin's edges alternate in direction the
+    // match is one of the next two edges of b
+    private static void matchEdges(EdgeTiming timing, PinSamples a, PinSamples b, long size, long limit) {
+        long na = a.edgeCount(0, size);
+        long nb = b.edgeCount(0, size);
+        long matched = 0;
+        long edgea = a.nextEdge(0);
+        boolean risinga = !a.initialLevel();
+        long edgeb = b.nextEdge(0);
+        long followingb = edgeb < size ? b.nextEdge(edgeb) : size;
+        boolean risingb = !b.initialLevel(); // the direction of edgeb
+        while (edgea < size) {
+            // the edges of b too early to match this or any later edge of a
+            while (edgeb < size && edgeb < edgea - limit) {
+                edgeb = followingb;
+                followingb = followingb < size ? b.nextEdge(followingb) : size;
+                risingb = !risingb;
+            }
+            int skip = 0;
+            if (edgeb < size && edgeb <= edgea + limit) {
+                if (risingb == risinga) {
+                    timing.add(edgeb - edgea);
+                    skip = 1;
+                } else if (followingb < size && followingb <= edgea + limit) {
+                    timing.add(followingb - edgea);
+                    skip = 2;
+                }
+            }
+            if (skip > 0) {
+                matched++;
+                for (int i = 0; i < skip; i++) {
+                    edgeb = followingb;
+                    followingb = followingb < size ? b.nextEdge(followingb) : size;
+                    risingb = !risingb;
+                }
+            }
+            edgea = a.nextEdge(edgea);
+            risinga = !risinga;
+        }
+        timing.unmatched += na + nb - 2 * matched;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+
+//
+//  the last N captures, held in memory within a byte budget - the least
+//  recently used captures are spilled to compressed files and reloaded when
+//  they are selected again.
+//
+//  The files are written on a background thread; the lock is held only for
+//  the bookkeeping. A capture keeps its samples until its file is written,
+//  so one selected again meanwhile needs no reload.
+//
+public class CaptureHistory {
+
+    public final IntegerProperty maxcaptures = new SimpleIntegerProperty(Integer.getInteger("lafe.history.captures", 20));
+    public final IntegerProperty budgetkb = new SimpleIntegerProperty(Integer.getInteger("lafe.history.budgetkb", 65536));
+
+    private final List<Capture> captures = new ArrayList<>(); // oldest first
+    private final LinkedHashMap<Integer, Capture> resident = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private final Set<Integer> spilling = new HashSet<>(); // the captures whose files are being written
+    private long residentbytes = 0;
+    private File spilldir;
+    private final ExecutorService spiller = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "lafe-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CaptureHistory() {
+        maxcaptures.addListener((o, oldv, newv) -> ExecuteAndCatch.run(() -> trim()));
+        budgetkb.addListener((o, oldv, newv) -> ExecuteAndCatch.run(() -> trim()));
+    }
+
+    public synchronized void add(Capture capture) {
+        captures.add(capture);
+        resident.put(capture.getId(), capture);
+        residentbytes += capture.getEstimatedBytes();
+        trim();
+    }
+
+    // newest first
+    public synchronized List<Capture> getCaptures() {
+        List<Capture> list = new ArrayList<>(captures);
+        Collections.reverse(list);
+        return list;
+    }
+
+    public synchronized Capture getLatest() {
+        return captures.isEmpty() ? null : captures.get(captures.size() - 1);
+    }
+
+    // returns the capture with its samples resident, reloading them from disk if necessary
+    public synchronized Capture get(int id) {
+        Capture capture = resident.get(id);
+        if (capture != null) {
+            return capture;
+        }
+        for (Capture c : captures) {
+            if (c.getId() == id) {
+                if (!c.isResident()) {
+                    reload(c);
+                }
+                resident.put(id, c);
+                residentbytes += c.getEstimatedBytes();
+                trim();
+                return c;
+            }
+        }
+        return null;
+    }
+
+    // merge captures (in the order given) into a new capture, which is added to the history
+    public synchronized Capture merge(List<Integer> ids) {
+        List<Capture> merging = new ArrayList<>();
+        List<Map<Integer, PinSamples>> samples = new ArrayList<>();
+        for (int id : ids) {
+            Capture capture = get(id);
+            if (capture == null) {
+                throw new Failure("Capture #" + id + " is no longer in the history");
+            }
+            merging.add(capture);
+            samples.add(capture.getSamples());
+        }
+        Capture merged = Capture.merge(merging, samples);
+        add(merged);
+        return merged;
+    }
+
+    public synchronized void clear() {
+        captures.forEach(c -> deleteSpillFile(c));
+        captures.clear();
+        resident.clear();
+        residentbytes = 0;
+    }
+
+    private synchronized void trim() {
+        while (captures.size() > Math.max(1, maxcaptures.get())) {
+            Capture oldest = captures.remove(0);
+            if (resident.remove(oldest.getId()) != null) {
+                residentbytes -= oldest.getEstimatedBytes();
+            }
+            deleteSpillFile(oldest);
+        }
+        long budget = budgetkb.get() * 1024L;
+        Iterator<Capture> lru = resident.values().iterator();
+        while (residentbytes > budget && resident.size() > 1 && lru.hasNext()) {
+            Capture victim = lru.next();
+            residentbytes -= victim.getEstimatedBytes();
+            spill(victim);
+            lru.remove();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  spill files
+    //
+    // -------------------------------------------------------------------------
+    // called with the lock held - the samples are dropped at once if already written,
+    // else once the background write completes
+    private void spill(Capture capture) {
+        if (capture.getSpillFile() != null) {
+            capture.setSamples(null);
+            return;
+        }
+        if (!spilling.add(capture.getId())) {
+            return; // already being written
+        }
+        File file = new File(getSpillDir(), "capture-" + capture.getId() + ".gz");
+        Map<Integer, PinSamples> samples = capture.getSamples();
+        spiller.execute(() -> ExecuteAndCatch.run(() -> spillworker(capture, file, samples)));
+    }
+
+    private void spillworker(Capture capture, File file, Map<Integer, PinSamples> samples) {
+        boolean written = false;
+        try {
+            write(file, samples);
+            written = true;
+        } finally {
+            // a capture whose file could not be written keeps its samples
+            synchronized (this) {
+                spilling.remove(capture.getId());
+                if (written && captures.contains(capture)) {
+                    capture.setSpillFile(file);
+                    if (!resident.containsKey(capture.getId())) {
+                        capture.setSamples(null);
+                    }
+                } else {
+                    file.delete(); // trimmed or cleared meanwhile
+                }
+            }
+        }
+    }
+
+    private void reload(Capture capture) {
+        capture.setSamples(read(capture.getSpillFile()));
+    }
+
+    private File getSpillDir() {
+        if (spilldir == null) {
+            try {
+                spilldir = Files.createTempDirectory("lafe-history").toFile();
+                spilldir.deleteOnExit();
+            } catch (IOException ex) {
+                throw new Failure("Cannot create capture history directory", ex);
+            }
+        }
+        return spilldir;
+    }
+
+    private void deleteSpillFile(Capture capture) {
+        if (capture.getSpillFile() != null) {
+            capture.getSpillFile().delete();
+            capture.setSpillFile(null);
+        }
+    }
+
+    private static void write(File file, Map<Integer, PinSamples> samples) {
+        file.deleteOnExit();
+        writeSamples(file, samples);
+    }
+
+    // also used to persist captures outside the history (the batch runner)
+    static void writeSamples(File file, Map<Integer, PinSamples> samples) {
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+            out.writeInt(samples.size());
+            for (var es : samples.entrySet()) {
+                out.writeInt(es.getKey());
+                es.getValue().write(out);
+            }
+        } catch (IOException ex) {
+            throw new Failure("Cannot write capture file " + file, ex);
+        }
+    }
+
+    private static Map<Integer, PinSamples> read(File file) {
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            Map<Integer, PinSamples> samples = new LinkedHashMap<>();
+            int pins = in.readInt();
+            for (int p = 0; p < pins; p++) {
+                int pin = in.readInt();
+                samples.put(pin, PinSamples.read(in));
+            }
+            return samples;
+        } catch (IOException ex) {
+            throw new Failure("Cannot read capture history file " + file, ex);
+        }
+    }
+}
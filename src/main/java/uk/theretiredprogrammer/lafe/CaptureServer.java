@@ -0,0 +1,311 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javafx.application.Platform;
+
+//
+//  a loopback socket server for test automation (-Dlafe.server.port=n).
+//
+//  Clients send text lines - arm, stop or status - and receive frames:
+//
+//      byte type, int length, byte[length] payload         (big endian)
+//
+//  type 'R' is the response to a request (UTF-8 text, starting Y or N) and
+//  type 'C' is a completed capture (one left incomplete, when the probe
+//  buffer was lost before all of it was downloaded, is not sent):
+//
+//      int id, long samplerate, long samplesize, int pins, then for each pin
+//      int pin, byte initiallevel, long edges, edges as varint deltas
+//
+//  Each capture is encoded once, off the FX thread, and queued to every
+//  client; a client's queue holds at most CLIENT_QUEUE captures, and when it
+//  is full the oldest capture is dropped (and counted) - a slow client never
+//  stalls the acquisition.
+//
+public class CaptureServer {
+
+    private static final int CLIENT_QUEUE = 8;
+    private static final byte RESPONSE = 'R';
+    private static final byte CAPTURE = 'C';
+
+    private final Controller controller;
+    private final ServerSocket serversocket;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "lafe-server-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CaptureServer(Controller controller, int port) {
+        this.controller = controller;
+        try {
+            serversocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        } catch (IOException ex) {
+            throw new Failure("Cannot open the capture server on port " + port, ex);
+        }
+        Thread acceptor = new Thread(() -> accept(), "lafe-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serversocket.getLocalPort();
+    }
+
+    public void close() {
+        try {
+            serversocket.close();
+        } catch (IOException ex) {
+        }
+        clients.forEach(c -> c.close());
+        encoder.shutdownNow();
+    }
+
+    // called as each complete capture arrives - returns at once. A partial capture is not
+    // sent, as a frame has no room for the ranges never downloaded
+    public void publish(Capture capture) {
+        if (clients.isEmpty() || !capture.isComplete()) {
+            return;
+        }
+        Map<Integer, PinSamples> samples = capture.getSamples(); // held, even if the history spills the capture
+        encoder.submit(() -> ExecuteAndCatch.run(() -> {
+            byte[] frame = frame(CAPTURE, encode(capture, samples));
+            clients.forEach(c -> c.queue(frame));
+        }));
+    }
+
+    private void accept() {
+        while (!serversocket.isClosed()) {
+            try {
+                Client client = new Client(serversocket.accept());
+                clients.add(client);
+                client.start(); // only once listed, so that a client which fails at once is removed
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  encoding
+    //
+    // -------------------------------------------------------------------------
+    private static byte[] encode(Capture capture, Map<Integer, PinSamples> samples) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            encode(capture, samples, new DataOutputStream(bytes), bytes);
+        } catch (IOException ex) {
+            throw new Failure("Cannot encode capture #" + capture.getId(), ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void encode(Capture capture, Map<Integer, PinSamples> samples, DataOutputStream out,
+            ByteArrayOutputStream bytes) throws IOException {
+        out.writeInt(capture.getId());
+        out.writeLong(capture.getSampleRate());
+        out.writeLong(capture.getSamplesize());
+        out.writeInt(samples.size());
+        for (var es : samples.entrySet()) {
+            PinSamples pinsamples = es.getValue();
+            out.writeInt(es.getKey());
+            out.writeByte(pinsamples.initialLevel() ? 1 : 0);
+            out.writeLong(pinsamples.edgeCount());
+            long[] last = {0};
+            pinsamples.forEachEdge(edge -> {
+                writeVarint(bytes, edge - last[0]);
+                last[0] = edge;
+            });
+        }
+        out.flush();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static byte[] frame(byte type, byte[] payload) {
+        byte[] frame = new byte[payload.length + 5];
+        frame[0] = type;
+        frame[1] = (byte) (payload.length >>> 24);
+        frame[2] = (byte) (payload.length >>> 16);
+        frame[3] = (byte) (payload.length >>> 8);
+        frame[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        return frame;
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  requests - run on the FX application thread, as from the UI
+    //
+    // -------------------------------------------------------------------------
+    private String request(String line) {
+        return switch (line.strip().toLowerCase()) {
+            case "arm" ->
+                onFxThread(() -> callProbe(() -> controller.start()) ? "Y" : "N not armed");
+            case "stop" ->
+                onFxThread(() -> callProbe(() -> controller.stop()) ? "Y" : "N not stopped");
+            case "status" ->
+                onFxThread(() -> "Y " + controller.getStatus());
+            default ->
+                "N unknown request " + line;
+        };
+    }
+
+    private interface ProbeCall {
+
+        boolean call() throws IOException;
+    }
+
+    private static boolean callProbe(ProbeCall call) {
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    private static String onFxThread(Supplier<String> work) {
+        return CompletableFuture.supplyAsync(work, Platform::runLater).join();
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  a connected client - a reader thread for requests, a writer thread
+    //  draining its queue of frames
+    //
+    // -------------------------------------------------------------------------
+    private class Client {
+
+        private final Socket socket;
+        private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        private int captures = 0; // queued capture frames
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread reader;
+        private final Thread writer;
+
+        Client(Socket socket) {
+            this.socket = socket;
+            reader = new Thread(() -> read(), "lafe-server-client-read");
+            reader.setDaemon(true);
+            writer = new Thread(() -> write(), "lafe-server-client-write");
+            writer.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+            writer.start();
+        }
+
+        // never blocks - the oldest capture is dropped if the client is not keeping up
+        // (responses are never dropped)
+        synchronized void queue(byte[] frame) {
+            if (frame[0] == CAPTURE) {
+                if (captures == CLIENT_QUEUE) {
+                    Iterator<byte[]> queued = frames.iterator();
+                    while (queued.hasNext()) {
+                        if (queued.next()[0] == CAPTURE) {
+                            queued.remove();
+                            captures--;
+                            dropped.incrementAndGet();
+                            break;
+                        }
+                    }
+                }
+                captures++;
+            }
+            frames.add(frame);
+        }
+
+        private synchronized void dequeued(byte[] frame) {
+            if (frame[0] == CAPTURE) {
+                captures--;
+            }
+        }
+
+        private void read() {
+            try ( BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String response = request(line);
+                    if (dropped.get() > 0) {
+                        response += " (" + dropped.get() + " captures dropped)";
+                    }
+                    queue(frame(RESPONSE, response.getBytes(StandardCharsets.UTF_8)));
+                }
+            } catch (IOException ex) {
+                // disconnected
+            } finally {
+                close();
+            }
+        }
+
+        private void write() {
+            try ( BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                while (!socket.isClosed()) {
+                    byte[] frame = frames.take();
+                    dequeued(frame);
+                    out.write(frame);
+                    if (frames.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                // disconnected
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+//  the channels which a decoder or an analysis can be given: a pin, by its
+//  number ("17"), or a derived channel which is not a bus, by its name - all
+//  resolved through this one lookup, so a derived channel can be used
+//  wherever a pin can.
+//
+//  A lookup is a snapshot of the derived channels when it was made, so it
+//  can be handed to the analysis worker; derived channels are evaluated (and
+//  cached) as they are asked for.
+//
+public class Channels {
+
+    private final Map<String, DerivedChannel> derived = new LinkedHashMap<>();
+
+    public Channels(Collection<DerivedChannel> channels) {
+        channels.stream().filter(c -> !c.isBus()).forEach(c -> derived.put(c.name, c));
+    }
+
+    public static String ofPin(int pin) {
+        return Integer.toString(pin);
+    }
+
+    public static boolean isPin(String channel) {
+        return !channel.isEmpty() && channel.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    // for display - "pin 17", or a derived channel's name
+    public static String label(String channel) {
+        return isPin(channel) ? "pin " + channel : channel;
+    }
+
+    // true if the channel is in a capture - without evaluating a derived channel
+    public boolean has(String channel, Map<Integer, PinSamples> samples) {
+        if (isPin(channel)) {
+            return get(channel, samples) != null;
+        }
+        DerivedChannel derivedchannel = derived.get(channel);
+        return derivedchannel != null && derivedchannel.canEvaluate(samples);
+    }
+
+    // the channel's samples in a capture - null if it is not there (or the pins it is derived from are not)
+    public PinSamples get(String channel, Map<Integer, PinSamples> samples) {
+        if (isPin(channel)) {
+            try {
+                return samples.get(Integer.parseInt(channel));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        DerivedChannel derivedchannel = derived.get(channel);
+        return derivedchannel != null && derivedchannel.canEvaluate(samples) ? derivedchannel.evaluatePin(samples) : null;
+    }
+
+    // every channel in a capture - its pins, then the derived channels which can be evaluated
+    public Map<String, PinSamples> getAll(Map<Integer, PinSamples> samples) {
+        Map<String, PinSamples> all = new LinkedHashMap<>();
+        samples.forEach((pin, pinsamples) -> all.put(ofPin(pin), pinsamples));
+        derived.values().stream().filter(c -> c.canEvaluate(samples)).forEach(c -> all.put(c.name, c.evaluatePin(samples)));
+        return all;
+    }
+
+    // the choices for a channel field - the pins given, then the derived channels
+    public List<String> getChoices(int firstpin, int pins) {
+        List<String> choices = new ArrayList<>();
+        for (int pin = firstpin; pin < firstpin + pins; pin++) {
+            choices.add(ofPin(pin));
+        }
+        choices.addAll(derived.keySet());
+        return choices;
+    }
+}
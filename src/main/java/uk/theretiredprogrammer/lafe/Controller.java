@@ -15,30 +15,84 @@
  */
 package uk.theretiredprogrammer.lafe;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import uk.theretiredprogrammer.lafe.ProbeDiscovery.ProbePort;
 import uk.theretiredprogrammer.lafe.ProbeStateWatchDog.ProbeState;
+import uk.theretiredprogrammer.lafe.ReplayTransport.ReplaySpeed;
 
 public class Controller {
 
-    private USBSerialDevice usbdevice;
+    private volatile ProbeSession session;
+    private volatile USBSerialDevice usbdevice;
     private ProbeStateWatchDog probestatewatchdog;
+    private ProbeReconnector probereconnector;
     private Window window;
+    private UIUpdatePump pump;
+    private CaptureServer server;
     private final ProbeConfiguration config;
+    private final ProbeDiscovery discovery = new ProbeDiscovery();
+    private final CaptureHistory history = new CaptureHistory();
+    private final GlitchDetector glitchdetector = new GlitchDetector();
+    private final CaptureDiff capturediff = new CaptureDiff();
+    private final JitterStatistics jitterstatistics = new JitterStatistics();
+    private final ObservableList<DerivedChannel> derivedchannels = FXCollections.observableArrayList();
+    private final ObservableList<UartDecoder> decoders = FXCollections.observableArrayList();
+    private final ObservableList<RetentionFilter> retentionfilters = FXCollections.observableArrayList();
+    private long capturesretained = 0;
+    private long capturesdiscarded = 0;
 
     public Controller() {
         config = new ProbeConfiguration();
+        loadDerivedChannels();
+        loadRetentionFilters();
     }
 
+    // returns immediately - the probe is connected in the background once discovered
     public final void open(Window window) {
         this.window = window;
-        usbdevice = USBSerialDevice.selectCommPort((s) -> window.displayStatus(s));
-        probestatewatchdog = new ProbeStateWatchDog(this, usbdevice);
-        probestatewatchdog.start();
-        window.setConnected(isprobeconnected());
+        pump = new UIUpdatePump(window);
+        pump.start();
+        int serverport = Integer.getInteger("lafe.server.port", 0);
+        if (serverport > 0) {
+            server = new CaptureServer(this, serverport);
+        }
+        String replayfile = System.getProperty("lafe.replay");
+        if (replayfile != null) {
+            openReplay(new File(replayfile));
+            return;
+        }
+        if (Boolean.getBoolean("lafe.simulate")) {
+            openSimulated();
+            return;
+        }
+        displayStatus("Looking for a Pico probe ...");
+        discovery.addListener(new ConnectionListener());
+        discovery.start();
+    }
+
+    private void openReplay(File tracefile) {
+        ReplaySpeed speed = ReplaySpeed.valueOf(System.getProperty("lafe.replay.speed", "ORIGINAL").toUpperCase());
+        ProbeTransport transport = new ReplayTransport(tracefile, speed,
+                (s) -> displayStatus(s));
+        displayStatus("Replaying " + tracefile.getName() + " (" + speed + ")");
+        new Thread(() -> ExecuteAndCatch.run(
+                () -> connect(new USBSerialDevice(transport, (s) -> displayStatus(s)), false)),
+                "lafe-replay-connect").start();
+    }
+
+    private void openSimulated() {
+        displayStatus("Using a simulated probe");
+        new Thread(() -> ExecuteAndCatch.run(
+                () -> connect(new USBSerialDevice(new SimulatedProbeTransport(), (s) -> displayStatus(s)), false)),
+                "lafe-simulate-connect").start();
     }
 
     private boolean isprobeconnected() {
@@ -51,8 +105,17 @@ public class Controller {
 
     @SuppressWarnings("ConvertToTryWithResources")
     public final void close() {
-        probestatewatchdog.stop();
-        usbdevice.close();
+        discovery.stop();
+        cancelRetrieval();
+        if (session != null && !session.close()) {
+            Logger.getLogger(Controller.class.getName()).warning(
+                    "Probe session work did not stop in time - the port was closed anyway");
+        }
+        if (server != null) {
+            server.close();
+        }
+        history.clear();
+        pump.stop();
         window.close();
     }
 
@@ -60,8 +123,218 @@ public class Controller {
         return config;
     }
 
+    public final CaptureHistory getCaptureHistory() {
+        return history;
+    }
+
+    public final GlitchDetector getGlitchDetector() {
+        return glitchdetector;
+    }
+
+    public final CaptureDiff getCaptureDiff() {
+        return capturediff;
+    }
+
+    public final JitterStatistics getJitterStatistics() {
+        return jitterstatistics;
+    }
+
+    public final ObservableList<DerivedChannel> getDerivedChannels() {
+        return derivedchannels;
+    }
+
+    // the pins and derived channels, as they are now
+    public Channels getChannels() {
+        return new Channels(derivedchannels);
+    }
+
+    public void addDerivedChannel(String name, String expression) {
+        DerivedChannel channel = DerivedChannel.parse(name.strip(), expression);
+        derivedchannels.removeIf(c -> c.name.equals(channel.name));
+        derivedchannels.add(channel);
+        saveDerivedChannels();
+    }
+
+    public void removeDerivedChannel(DerivedChannel channel) {
+        derivedchannels.remove(channel);
+        saveDerivedChannels();
+    }
+
+    private void loadDerivedChannels() {
+        for (String definition : LafePreferences.getDerivedChannels(Controller.class).split(";")) {
+            int equals = definition.indexOf('=');
+            if (equals > 0) {
+                try {
+                    derivedchannels.add(DerivedChannel.parse(definition.substring(0, equals), definition.substring(equals + 1)));
+                } catch (Failure ex) {
+                    // a definition which no longer parses - drop it
+                }
+            }
+        }
+    }
+
+    private void saveDerivedChannels() {
+        StringBuilder definitions = new StringBuilder();
+        derivedchannels.forEach(c -> definitions.append(c.name).append('=').append(c.expression).append(';'));
+        LafePreferences.saveDerivedChannels(Controller.class, definitions.toString());
+    }
+
+    public final ObservableList<UartDecoder> getDecoders() {
+        return decoders;
+    }
+
+    // the line is a pin number or a derived channel's name
+    public void addDecoder(String channel, long baud) {
+        UartDecoder decoder = new UartDecoder(channel, baud);
+        decoders.removeIf(d -> d.channel.equals(channel));
+        decoders.add(decoder);
+    }
+
+    public void removeDecoder(UartDecoder decoder) {
+        decoders.remove(decoder);
+    }
+
+    public final ObservableList<RetentionFilter> getRetentionFilters() {
+        return retentionfilters;
+    }
+
+    public void addRetentionFilter(String expression) {
+        RetentionFilter filter = RetentionFilter.parse(expression);
+        retentionfilters.removeIf(f -> f.expression.equals(filter.expression));
+        retentionfilters.add(filter);
+        saveRetentionFilters();
+    }
+
+    public void removeRetentionFilter(RetentionFilter filter) {
+        retentionfilters.remove(filter);
+        saveRetentionFilters();
+    }
+
+    private void loadRetentionFilters() {
+        for (String expression : LafePreferences.getRetentionFilters(Controller.class).split(";")) {
+            if (!expression.isBlank()) {
+                try {
+                    retentionfilters.add(RetentionFilter.parse(expression));
+                } catch (Failure ex) {
+                    // a filter which no longer parses - drop it
+                }
+            }
+        }
+    }
+
+    private void saveRetentionFilters() {
+        StringBuilder filters = new StringBuilder();
+        retentionfilters.forEach(f -> filters.append(f.expression).append(';'));
+        LafePreferences.saveRetentionFilters(Controller.class, filters.toString());
+    }
+
+    public String getRetentionSummary() {
+        return retentionfilters.isEmpty() ? "Every capture is kept"
+                : capturesretained + " captures kept, " + capturesdiscarded + " discarded";
+    }
+
+    // may be called from any thread - shown on the next frame
     public void probeStateChanged(ProbeState newstate) {
-        window.probeStateChanged(newstate);
+        pump.probeState(newstate);
+    }
+
+    // may be called from any thread - only the latest message is shown on the next frame
+    public void displayStatus(String message) {
+        pump.status(message);
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  Probe connection (driven by the background probe discovery)
+    //
+    // -------------------------------------------------------------------------
+    private volatile String requestedidentity;
+    private volatile boolean probeselectionshowing = false;
+    private String laststatus;
+
+    private class ConnectionListener implements ProbeDiscovery.DiscoveryListener {
+
+        @Override
+        public void probesScanned(List<ProbePort> probes) {
+            if (usbdevice == null) {
+                selectProbe(probes);
+            }
+        }
+
+        @Override
+        public void probeArrived(ProbePort probe) {
+        }
+
+        @Override
+        public void probeRemoved(ProbePort probe) {
+            if (usbdevice != null && probe.identity.equals(usbdevice.getIdentity()) && !probereconnector.isReconnecting()) {
+                probestatewatchdog.stop();
+                Platform.runLater(() -> window.setConnected(false));
+                probereconnector.reconnect();
+            }
+        }
+    }
+
+    private void selectProbe(List<ProbePort> probes) {
+        ProbePort selected = discovery.findByIdentity(requestedidentity);
+        if (selected == null) {
+            selected = discovery.findByIdentity(LafePreferences.getLastProbe(Controller.class));
+        }
+        if (selected == null && probes.size() == 1) {
+            selected = probes.get(0);
+        }
+        if (selected != null) {
+            connect(selected);
+        } else if (probes.isEmpty()) {
+            selectionStatus("Cannot find a PICO Probe connected to this machine - please connect one");
+        } else if (!probeselectionshowing) {
+            probeselectionshowing = true;
+            selectionStatus("More than one PICO probe appear to be connected to this machine - please select one");
+            Platform.runLater(() -> window.showManyPicoProbeDialog(probes, (p) -> probeSelected(p)));
+        }
+    }
+
+    private void probeSelected(ProbePort probe) {
+        probeselectionshowing = false;
+        if (probe != null) {
+            requestedidentity = probe.identity;
+        }
+    }
+
+    private void selectionStatus(String message) {
+        if (!message.equals(laststatus)) {
+            laststatus = message;
+            displayStatus(message);
+        }
+    }
+
+    private void connect(ProbePort probe) {
+        USBSerialDevice device;
+        try {
+            device = new USBSerialDevice(probe.path, (s) -> displayStatus(s));
+        } catch (Failure ex) {
+            selectionStatus(ex.getMessage());
+            return;
+        }
+        connect(device, true);
+        LafePreferences.saveLastProbe(Controller.class, probe.identity);
+    }
+
+    private void connect(USBSerialDevice device, boolean locate) {
+        if (locate) {
+            device.sendCommandAndHandleResponse("f-1", (s) -> false);
+        }
+        ProbeSession newsession = new ProbeSession(this, device, discovery);
+        probestatewatchdog = newsession.getWatchDog();
+        probereconnector = newsession.getReconnector();
+        usbdevice = device;
+        session = newsession;
+        boolean connected = isprobeconnected();
+        probestatewatchdog.start();
+        Platform.runLater(() -> {
+            window.setConnected(connected);
+            displayStatus("Connected to probe on " + device.getPath());
+        });
     }
 
     // -------------------------------------------------------------------------
@@ -69,6 +342,18 @@ public class Controller {
     //  Probe commands
     //
     // -------------------------------------------------------------------------
+    private boolean isprobeavailable() {
+        if (usbdevice == null) {
+            displayStatus("No probe connected");
+            return false;
+        }
+        if (probereconnector.isReconnecting()) {
+            displayStatus("Probe is reconnecting - " + probereconnector.getState());
+            return false;
+        }
+        return true;
+    }
+
     public boolean ping() throws IOException {
         return usbdevice.sendCommandAndHandleResponse("p", (s) -> probetypeExpected(s));
     }
@@ -77,11 +362,43 @@ public class Controller {
         String[] parts = response.split(",");
         config.probetype.set(parts[0]);
         config.probeversion.set(parts[1]);
+        ProbeDefinitions definitions;
+        try {
+            definitions = ProbeDefinitions.get(parts[0], parts[1]);
+        } catch (Failure ex) {
+            definitions = null; // an unknown probe - configurations are checked only by the probe
+            displayStatus(ex.getMessage());
+        }
+        if (definitions != config.definitions.get()) {
+            ProbeDefinitions known = definitions;
+            Platform.runLater(() -> config.definitions.set(known));
+        }
         return true;
     }
 
     public boolean start() throws IOException {
-        return usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> onlyYNExpected(s));
+        if (!isprobeavailable()) {
+            return false;
+        }
+        String error = config.validate();
+        if (!error.isEmpty()) {
+            displayStatus(error); // no need to ask the probe
+            return false;
+        }
+        cancelRetrieval(); // the probe buffer is about to be overwritten
+        boolean res = usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> onlyYNExpected(s));
+        if (res) {
+            probestatewatchdog.samplingStarted();
+        }
+        return res;
+    }
+
+    // a one line summary - for the capture server
+    public String getStatus() {
+        Capture latest = history.getLatest();
+        return (usbdevice == null ? "no probe" : "probe " + config.probetype.get() + " " + config.probeversion.get()
+                + (probestatewatchdog == null ? "" : ", " + probestatewatchdog.getProbeState()))
+                + (latest == null ? "" : ", last capture #" + latest.getId());
     }
 
     private boolean onlyYNExpected(String response) {
@@ -89,45 +406,334 @@ public class Controller {
     }
 
     public boolean stop() throws IOException {
+        if (!isprobeavailable()) {
+            return false;
+        }
         return usbdevice.sendCommandAndHandleResponse("s", (s) -> onlyYNExpected(s));
     }
 
+    private SampleRetriever retriever;
+
     public boolean data() throws IOException {
-        samples.clear();
-        boolean res = usbdevice.sendCommandAndHandleResponse("d", (s) -> sampleExpected(s));
-        window.refreshSampleDisplay(samples);
-        return res;
+        cancelRetrieval();
+        SampleRetriever newretriever = new SampleRetriever(this, usbdevice, config);
+        if (retentionfilters.isEmpty()) {
+            return showCapture(newretriever, true);
+        }
+        // the filters' pins are downloaded (and decoded) first, on the session - a capture
+        // which cannot match goes no further
+        retriever = newretriever; // so that a new capture, or closing, cancels it
+        List<RetentionFilter> filters = List.copyOf(retentionfilters);
+        long samplerate = config.speedcalculation();
+        session.execute(() -> ExecuteAndCatch.run(() -> {
+            Map<Integer, PinSamples> filtersamples = newretriever.retrievePins(RetentionFilter.getPins(filters));
+            boolean downloaded = true;
+            if (filtersamples == null && !newretriever.isCancelled()) {
+                // the probe does not support range downloads
+                downloaded = newretriever.retrieveAll();
+                filtersamples = newretriever.getCapture().getSamples();
+            }
+            // a refused download cannot be judged, and is kept like a capture no filter can evaluate
+            boolean retained = !newretriever.isCancelled()
+                    && (!downloaded || RetentionFilter.anyMatches(filters, filtersamples, samplerate));
+            boolean res = downloaded;
+            Platform.runLater(() -> filtered(newretriever, retained, res));
+        }));
+        return true;
     }
 
-    private int currentpinsample = 0;
-    private final Map<Integer, List<String>> samples = new LinkedHashMap<>();
-
-    private boolean sampleExpected(String responseline) {
-        if (responseline.startsWith("#")) {
-            currentpinsample = Integer.parseUnsignedInt(responseline.substring(2));
-            samples.put(currentpinsample, new ArrayList());
+    // the outcome of the retention filters, back on the FX application thread
+    private void filtered(SampleRetriever newretriever, boolean retained, boolean downloaded) {
+        if (retriever != newretriever || newretriever.isCancelled()) {
+            return; // superseded by a new capture, or the session closed
+        }
+        retriever = null;
+        if (retained) {
+            capturesretained++;
         } else {
-            samples.get(currentpinsample).add(responseline);
+            capturesdiscarded++;
+        }
+        window.showRetentionSummary(getRetentionSummary());
+        if (!retained) {
+            displayStatus("Capture discarded by the retention filters");
+            restartIfRepeating();
+            return;
         }
+        showCapture(newretriever, downloaded);
+    }
+
+    // the first samples are downloaded on the session (unless the retention filters have
+    // already downloaded them) and shown back on the FX application thread
+    private boolean showCapture(SampleRetriever newretriever, boolean downloaded) {
+        if (newretriever.getCapture() != null) {
+            displayCapture(newretriever, downloaded);
+            return downloaded;
+        }
+        int[] rows = window.visibleRows(config.pins.get());
+        newretriever.viewportChanged(0, config.samplesize.get(), rows[0], rows[1]);
+        retriever = newretriever; // so that a new capture, or closing, cancels it
+        session.execute(() -> ExecuteAndCatch.run(() -> {
+            boolean res = newretriever.retrieveFirst();
+            Platform.runLater(() -> {
+                if (retriever == newretriever && !newretriever.isCancelled()) {
+                    displayCapture(newretriever, res);
+                }
+            });
+        }));
         return true;
     }
-    
+
+    private void displayCapture(SampleRetriever newretriever, boolean downloaded) {
+        Capture capture = newretriever.getCapture();
+        window.refreshSampleDisplay(capture);
+        if (capture.isComplete() || !downloaded) {
+            if (retriever == newretriever) {
+                retriever = null;
+            }
+            if (!downloaded) {
+                displayStatus("Capture #" + capture.getId() + " is incomplete - the probe refused the download");
+            }
+            captureCompleted(capture);
+        } else {
+            retriever = newretriever;
+            displayStatus("Downloading the remaining samples ...");
+            newretriever.retrieveRest(session);
+        }
+    }
+
+    // a partial capture is kept in the history to look at, but is not published or analysed
+    private void captureCompleted(Capture capture) {
+        boolean complete = capture.isComplete();
+        Map<Integer, PinSamples> samples = capture.getSamples(); // held, even if the history spills the capture
+        if (server != null && complete) {
+            server.publish(capture);
+        }
+        history.add(capture);
+        window.refreshHistory(history.getCaptures());
+        if (glitchdetector.autoscan.get() && complete) {
+            glitchdetector.scan(capture, getChannels(), (result) -> window.showGlitches(result));
+        }
+        if (jitterstatistics.enabled.get() && complete) {
+            AnalysisWorker.run(() -> jitterstatistics.accumulate(capture, samples), (same) -> {
+                if (!same) {
+                    displayStatus("Timing statistics restarted for " + capture.getDescription());
+                }
+                window.showJitterStatistics(jitterstatistics.report());
+            });
+        }
+        restartIfRepeating();
+    }
+
+    private void restartIfRepeating() {
+        if (config.repeat.get()) {
+            try {
+                start();
+            } catch (IOException ex) {
+                displayStatus("Cannot restart sampling: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void cancelRetrieval() {
+        if (retriever != null) {
+            retriever.cancel();
+        }
+    }
+
+    // the viewport has moved over a capture which is still being downloaded
+    public void viewportChanged(Capture capture, long from, long to, int firstrow, int rows) {
+        if (retriever != null && retriever.getCapture() == capture) {
+            retriever.viewportChanged(from, to, firstrow, rows);
+        }
+    }
+
+    // called on the retriever thread after each piece - the display catches up once per frame
+    void samplesRetrieved(SampleRetriever updated) {
+        pump.progress(updated.getCapture());
+    }
+
+    void retrievalFinished(SampleRetriever finished) {
+        if (retriever == finished) {
+            retriever = null;
+        }
+        Capture capture = finished.getCapture();
+        displayStatus(capture.isComplete() ? "All samples downloaded"
+                : "Capture #" + capture.getId() + " is incomplete - the probe buffer is no longer available");
+        captureCompleted(capture);
+        window.captureUpdated(capture);
+    }
+
     public void resetProbe() {
-        System.out.println("RESETING");
+        if (usbdevice == null || probereconnector.isReconnecting()) {
+            return;
+        }
+        if (!usbdevice.supportsReconnect()) {
+            displayStatus("Reset is not available on " + usbdevice.getPath());
+            return;
+        }
+        if (exclusivework != null) {
+            displayStatus("The probe is busy - cancel the self test, auto range or batch before resetting");
+            return;
+        }
+        cancelRetrieval(); // the reset discards the probe buffer
         probestatewatchdog.stop();
-        usbdevice.write('!');
-        usbdevice.close();
-        try {
-            Thread.sleep(3000); // lets start with a 3 secs wait
-        } catch (InterruptedException ex) {
-            // ingnore 
+        window.setConnected(false);
+        probereconnector.reset();
+    }
+
+    // called on the reconnect thread once the port has been reopened
+    boolean verifyAndRestore() {
+        if (!isprobeconnected()) {
+            return false;
+        }
+        // restore the probe side state that the reset discarded
+        if (squarewaveon) {
+            usbdevice.sendCommandAndHandleResponse(config.getSquareWaveCommand("w", true), (s) -> onlyYNExpected(s));
         }
-        System.out.println("RESET");
-        usbdevice.open();
+        return true;
+    }
+
+    void probeReconnected(long recoveryms) {
         probestatewatchdog.start();
+        Platform.runLater(() -> {
+            window.setConnected(true);
+            displayStatus("Probe reconnected on " + usbdevice.getPath() + " in " + recoveryms + " ms");
+        });
     }
-    
+
+    // the session is dropped, so that discovery connects the probe afresh when it is plugged in again
+    void probeReconnectFailed(long elapsedms) {
+        displayStatus("Probe reconnect failed after " + elapsedms + " ms - waiting for a probe to be connected");
+        Platform.runLater(() -> dropSession());
+    }
+
+    private void dropSession() {
+        ProbeSession failed = session;
+        if (failed == null) {
+            return;
+        }
+        cancelRetrieval();
+        session = null;
+        usbdevice = null;
+        laststatus = null;
+        // only the ending reconnect task is left on it - closing waits for that, so not on the FX thread
+        new Thread(() -> ExecuteAndCatch.run(() -> {
+            if (!failed.close()) {
+                Logger.getLogger(Controller.class.getName()).warning(
+                        "Failed probe session work did not stop in time - the port was closed anyway");
+            }
+        }), "lafe-session-close").start();
+    }
+
+    void reconnectStateChanged(ProbeReconnector.ReconnectState newstate) {
+        displayStatus("Probe reset: " + newstate);
+    }
+
+    private boolean squarewaveon = false;
+
     public boolean squareWaveGenerator(boolean on) {
-        return usbdevice.sendCommandAndHandleResponse(config.getSquareWaveCommand("w", on), (s) -> onlyYNExpected(s));
+        if (!isprobeavailable()) {
+            return false;
+        }
+        boolean res = usbdevice.sendCommandAndHandleResponse(config.getSquareWaveCommand("w", on), (s) -> onlyYNExpected(s));
+        if (res) {
+            squarewaveon = on;
+        }
+        return res;
+    }
+
+    // the self test or a batch - work which drives the probe directly (cancels it)
+    private Runnable exclusivework;
+
+    // sweeps the probe's sample rates against its own square wave generator, in the background
+    public boolean runSelfTest(Consumer<String> report) {
+        ProbeDefinitions definitions = config.definitions.get();
+        if (definitions == null) {
+            displayStatus("Self test needs the definitions of the connected probe");
+            return false;
+        }
+        SelfTestSweep sweep = new SelfTestSweep(this, usbdevice, definitions, config.sqw_firstpin.get(),
+                (s) -> Platform.runLater(() -> report.accept(s)));
+        return runExclusively("Self test", () -> sweep.run(), () -> sweep.cancel());
+    }
+
+    // runs the capture jobs (configuration files) back to back, in the background
+    public boolean runBatch(List<File> jobfiles, File outputdir, Consumer<String> report) {
+        List<BatchJobRunner.Job> jobs = BatchJobRunner.load(jobfiles, config.definitions.get());
+        BatchJobRunner runner = new BatchJobRunner(this, usbdevice, jobs, outputdir,
+                (s) -> Platform.runLater(() -> report.accept(s)),
+                (capture) -> Platform.runLater(() -> {
+                    history.add(capture);
+                    window.refreshHistory(history.getCaptures());
+                }));
+        return runExclusively("Batch", () -> runner.run(), () -> runner.cancel());
+    }
+
+    // measures the pins with short pre-captures and sets the sample rate and size - then
+    // arms the capture if asked
+    public boolean runAutoRange(Consumer<String> report, boolean arm) {
+        ProbeDefinitions definitions = config.definitions.get();
+        if (definitions == null) {
+            displayStatus("Auto range needs the definitions of the connected probe");
+            return false;
+        }
+        AutoRange autorange = new AutoRange(this, usbdevice, definitions, config.firstpin.get(), config.pins.get(),
+                (s) -> Platform.runLater(() -> report.accept(s)));
+        AutoRange.Result[] result = {null};
+        return runExclusively("Auto range", () -> result[0] = autorange.run(), () -> autorange.cancel(), () -> {
+            if (result[0] != null) {
+                result[0].apply(config);
+                if (arm) {
+                    try {
+                        start();
+                    } catch (IOException ex) {
+                        displayStatus("Cannot start sampling: " + ex.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean runExclusively(String name, Runnable work, Runnable canceller) {
+        return runExclusively(name, work, canceller, () -> {
+        });
+    }
+
+    // afterwards is run on the FX application thread, once the probe is released
+    private boolean runExclusively(String name, Runnable work, Runnable canceller, Runnable afterwards) {
+        if (!isprobeavailable()) {
+            return false;
+        }
+        if (exclusivework != null) {
+            displayStatus("The probe is busy - the self test, auto range or a batch is running");
+            return false;
+        }
+        cancelRetrieval();
+        probestatewatchdog.stop();
+        exclusivework = canceller;
+        session.execute(() -> ExecuteAndCatch.run(() -> {
+            try {
+                work.run();
+            } finally {
+                // restore the user's square wave generator settings
+                if (squarewaveon) {
+                    usbdevice.sendCommandAndHandleResponse(config.getSquareWaveCommand("w", true), (s) -> onlyYNExpected(s));
+                }
+                probestatewatchdog.samplingDoneElsewhere();
+                probestatewatchdog.start();
+                Platform.runLater(() -> {
+                    exclusivework = null;
+                    displayStatus(name + " completed");
+                    afterwards.run();
+                });
+            }
+        }));
+        return true;
+    }
+
+    public void cancelExclusiveWork() {
+        if (exclusivework != null) {
+            exclusivework.run();
+        }
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+//  decodes each pin's RLE section on a worker pool as soon as the section is
+//  complete, so decoding overlaps the download of the following pins
+//
+public class DecodePipeline {
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            (r) -> {
+                Thread thread = new Thread(r, "lafe-decode");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final long expectedsize;
+    private final Map<Integer, Future<PinSamples>> pending = new LinkedHashMap<>();
+    private final AtomicLong decodenanos = new AtomicLong();
+
+    public DecodePipeline(long expectedsize) {
+        this.expectedsize = expectedsize;
+    }
+
+    // the section for this pin is complete - start decoding it
+    public void submit(int pin, List<String> lines) {
+        pending.put(pin, pool.submit(() -> {
+            long starttime = System.nanoTime();
+            PinSamples samples = RleDecoder.decode(pin, lines, expectedsize);
+            decodenanos.addAndGet(System.nanoTime() - starttime);
+            return samples;
+        }));
+    }
+
+    public int pins() {
+        return pending.size();
+    }
+
+    // wait for all submitted pins, returned in download order
+    public Map<Integer, PinSamples> complete() {
+        long starttime = System.nanoTime();
+        Map<Integer, PinSamples> decoded = new LinkedHashMap<>();
+        try {
+            for (var es : pending.entrySet()) {
+                decoded.put(es.getKey(), es.getValue().get());
+            }
+        } catch (InterruptedException ex) {
+            cancel();
+            throw new Failure("Interrupted while decoding samples", ex);
+        } catch (ExecutionException ex) {
+            cancel();
+            Throwable cause = ex.getCause();
+            throw cause instanceof Failure ? (Failure) cause : new Failure("Failure while decoding samples", ex);
+        }
+        // the decode time not hidden behind the download, and the total decode work
+        Metrics.duration(Metrics.DECODE, System.nanoTime() - starttime);
+        Metrics.duration(Metrics.DECODE_CPU, decodenanos.get());
+        return decoded;
+    }
+
+    public void cancel() {
+        pending.values().forEach(f -> f.cancel(true));
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//
+//  a virtual channel defined by an expression over the captured pins:
+//
+//      16                      a pin
+//      inv(e)                  inverted
+//      debounce(e, w)          pulses narrower than w samples removed
+//      and(e, e, ...)          logical and - also or(...) and xor(...)
+//      bus(15..22)             the pins as a bus value (first pin is bit 0),
+//      bus(15, 17, 16)         only at the outermost level
+//
+//  Expressions are evaluated on demand by a streaming merge of the input
+//  edges (never sample by sample) into the same representations as a
+//  downloaded pin, and the result is cached for the last capture evaluated.
+//
+public class DerivedChannel {
+
+    public final String name;
+    public final String expression;
+    private final Node root;
+    private final List<Node> bus; // non null for a bus
+    private WeakReference<Map<Integer, PinSamples>> cachedfor = new WeakReference<>(null);
+    private Object cached;
+
+    private DerivedChannel(String name, String expression, Node root, List<Node> bus) {
+        this.name = name;
+        this.expression = expression;
+        this.root = root;
+        this.bus = bus;
+    }
+
+    public static DerivedChannel parse(String name, String expression) {
+        if (name.isBlank() || name.contains("=") || name.contains(";")) {
+            throw new Failure("Channel name must not be blank or contain = or ;");
+        }
+        if (Channels.isPin(name)) {
+            throw new Failure("Channel name must not be a number - it would hide pin " + name);
+        }
+        Parser parser = new Parser(expression);
+        DerivedChannel channel = parser.parseChannel(name);
+        parser.expectEnd();
+        return channel;
+    }
+
+    public boolean isBus() {
+        return bus != null;
+    }
+
+    public Set<Integer> getPins() {
+        Set<Integer> pins = new LinkedHashSet<>();
+        if (bus != null) {
+            bus.forEach(n -> n.collectPins(pins));
+        } else {
+            root.collectPins(pins);
+        }
+        return pins;
+    }
+
+    public boolean canEvaluate(Map<Integer, PinSamples> samples) {
+        return samples != null && samples.keySet().containsAll(getPins());
+    }
+
+    public synchronized PinSamples evaluatePin(Map<Integer, PinSamples> samples) {
+        if (bus != null) {
+            throw new Failure("Channel " + name + " is a bus");
+        }
+        if (cachedfor.get() != samples) {
+            cached = root.evaluate(samples);
+            cachedfor = new WeakReference<>(samples);
+        }
+        return (PinSamples) cached;
+    }
+
+    public synchronized BusSamples evaluateBus(Map<Integer, PinSamples> samples) {
+        if (bus == null) {
+            throw new Failure("Channel " + name + " is not a bus");
+        }
+        if (cachedfor.get() != samples) {
+            List<PinSamples> inputs = new ArrayList<>();
+            bus.forEach(n -> inputs.add(n.evaluate(samples)));
+            cached = mergeBus(inputs);
+            cachedfor = new WeakReference<>(samples);
+        }
+        return (BusSamples) cached;
+    }
+
+    @Override
+    public String toString() {
+        return name + " = " + expression;
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  expression nodes
+    //
+    // -------------------------------------------------------------------------
+    private abstract static class Node {
+
+        abstract PinSamples evaluate(Map<Integer, PinSamples> samples);
+
+        abstract void collectPins(Set<Integer> pins);
+    }
+
+    private static class PinNode extends Node {
+
+        private final int pin;
+
+        PinNode(int pin) {
+            this.pin = pin;
+        }
+
+        @Override
+        PinSamples evaluate(Map<Integer, PinSamples> samples) {
+            PinSamples pinsamples = samples.get(pin);
+            if (pinsamples == null) {
+                throw new Failure("Pin " + pin + " is not in the capture");
+            }
+            return pinsamples;
+        }
+
+        @Override
+        void collectPins(Set<Integer> pins) {
+            pins.add(pin);
+        }
+    }
+
+    private static class InvertNode extends Node {
+
+        private final Node input;
+
+        InvertNode(Node input) {
+            this.input = input;
+        }
+
+        @Override
+        PinSamples evaluate(Map<Integer, PinSamples> samples) {
+            PinSamples in = input.evaluate(samples);
+            PinSamplesBuilder builder = new PinSamplesBuilder(in.size());
+            boolean level = in.initialLevel();
+            long pos = 0;
+            while (pos < in.size()) {
+                long next = in.nextEdge(pos);
+                builder.append(!level, next - pos);
+                level = !level;
+                pos = next;
+            }
+            return builder.build();
+        }
+
+        @Override
+        void collectPins(Set<Integer> pins) {
+            input.collectPins(pins);
+        }
+    }
+
+    // a run shorter than the minimum width is absorbed into the level before it
+    private static class DebounceNode extends Node {
+
+        private final Node input;
+        private final long minwidth;
+
+        DebounceNode(Node input, long minwidth) {
+            this.input = input;
+            this.minwidth = minwidth;
+        }
+
+        @Override
+        PinSamples evaluate(Map<Integer, PinSamples> samples) {
+            PinSamples in = input.evaluate(samples);
+            PinSamplesBuilder builder = new PinSamplesBuilder(in.size());
+            boolean outlevel = in.initialLevel();
+            long outstart = 0;
+            boolean level = outlevel;
+            long pos = 0;
+            while (pos < in.size()) {
+                long next = in.nextEdge(pos);
+                if (level != outlevel && next - pos >= minwidth) {
+                    builder.append(outlevel, pos - outstart);
+                    outlevel = level;
+                    outstart = pos;
+                }
+                level = !level;
+                pos = next;
+            }
+            builder.append(outlevel, in.size() - outstart);
+            return builder.build();
+        }
+
+        @Override
+        void collectPins(Set<Integer> pins) {
+            input.collectPins(pins);
+        }
+    }
+
+    private enum Op {
+        AND, OR, XOR
+    }
+
+    private static class LogicNode extends Node {
+
+        private final Op op;
+        private final List<Node> inputs;
+
+        LogicNode(Op op, List<Node> inputs) {
+            this.op = op;
+            this.inputs = inputs;
+        }
+
+        @Override
+        PinSamples evaluate(Map<Integer, PinSamples> samples) {
+            PinSamples[] in = new PinSamples[inputs.size()];
+            for (int i = 0; i < in.length; i++) {
+                in[i] = inputs.get(i).evaluate(samples);
+            }
+            long size = minSize(in);
+            boolean[] levels = new boolean[in.length];
+            long[] nexts = new long[in.length];
+            for (int i = 0; i < in.length; i++) {
+                levels[i] = in[i].initialLevel();
+                nexts[i] = in[i].nextEdge(0);
+            }
+            PinSamplesBuilder builder = new PinSamplesBuilder(size);
+            long pos = 0;
+            while (pos < size) {
+                long next = size;
+                for (long n : nexts) {
+                    next = Math.min(next, n);
+                }
+                builder.append(apply(levels), next - pos);
+                for (int i = 0; i < in.length; i++) {
+                    if (nexts[i] == next) {
+                        levels[i] = !levels[i];
+                        nexts[i] = in[i].nextEdge(next);
+                    }
+                }
+                pos = next;
+            }
+            return builder.build();
+        }
+
+        private boolean apply(boolean[] levels) {
+            boolean result = op == Op.AND;
+            for (boolean level : levels) {
+                switch (op) {
+                    case AND ->
+                        result &= level;
+                    case OR ->
+                        result |= level;
+                    case XOR ->
+                        result ^= level;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        void collectPins(Set<Integer> pins) {
+            inputs.forEach(n -> n.collectPins(pins));
+        }
+    }
+
+    private static long minSize(PinSamples[] in) {
+        long size = Long.MAX_VALUE;
+        for (PinSamples p : in) {
+            size = Math.min(size, p.size());
+        }
+        return in.length == 0 ? 0 : size;
+    }
+
+    private static BusSamples mergeBus(List<PinSamples> inputs) {
+        PinSamples[] in = inputs.toArray(new PinSamples[0]);
+        long size = minSize(in);
+        int value = 0;
+        long[] nexts = new long[in.length];
+        for (int i = 0; i < in.length; i++) {
+            if (in[i].initialLevel()) {
+                value |= 1 << i;
+            }
+            nexts[i] = in[i].nextEdge(0);
+        }
+        long[] changes = new long[64];
+        int[] values = new int[64];
+        int count = 0;
+        long pos = 0;
+        while (pos < size) {
+            if (count == changes.length) {
+                changes = Arrays.copyOf(changes, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            changes[count] = pos;
+            values[count++] = value;
+            long next = size;
+            for (long n : nexts) {
+                next = Math.min(next, n);
+            }
+            for (int i = 0; i < in.length; i++) {
+                if (nexts[i] == next) {
+                    value ^= 1 << i;
+                    nexts[i] = in[i].nextEdge(next);
+                }
+            }
+            pos = next;
+        }
+        return new BusSamples(Arrays.copyOf(changes, count), Arrays.copyOf(values, count), count, size, in.length);
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  expression parser
+    //
+    // -------------------------------------------------------------------------
+    private static class Parser {
+
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        DerivedChannel parseChannel(String name) {
+            skipSpaces();
+            if (text.startsWith("bus", pos)) {
+                pos += 3;
+                expect('(');
+                List<Node> pins = new ArrayList<>();
+                do {
+                    int first = number();
+                    skipSpaces();
+                    if (text.startsWith("..", pos)) {
+                        pos += 2;
+                        int last = number();
+                        for (int pin = first; first <= last ? pin <= last : pin >= last; pin += first <= last ? 1 : -1) {
+                            pins.add(new PinNode(pin));
+                        }
+                    } else {
+                        pins.add(new PinNode(first));
+                    }
+                } while (accept(','));
+                expect(')');
+                if (pins.size() > 31) {
+                    throw new Failure("A bus is limited to 31 pins");
+                }
+                return new DerivedChannel(name, text.strip(), null, pins);
+            }
+            return new DerivedChannel(name, text.strip(), expression(), null);
+        }
+
+        private Node expression() {
+            skipSpaces();
+            if (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                return new PinNode(number());
+            }
+            String function = word();
+            expect('(');
+            Node node;
+            switch (function) {
+                case "inv" ->
+                    node = new InvertNode(expression());
+                case "debounce" -> {
+                    Node input = expression();
+                    expect(',');
+                    node = new DebounceNode(input, number());
+                }
+                case "and", "or", "xor" -> {
+                    List<Node> inputs = new ArrayList<>();
+                    do {
+                        inputs.add(expression());
+                    } while (accept(','));
+                    node = new LogicNode(Op.valueOf(function.toUpperCase()), inputs);
+                }
+                default ->
+                    throw new Failure("Unknown function " + function + " in " + text);
+            }
+            expect(')');
+            return node;
+        }
+
+        private String word() {
+            int start = pos;
+            while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new Failure("Function or pin expected at position " + (pos + 1) + " in " + text);
+            }
+            return text.substring(start, pos).toLowerCase();
+        }
+
+        private int number() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new Failure("Number expected at position " + (pos + 1) + " in " + text);
+            }
+            return Integer.parseInt(text.substring(start, pos));
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw new Failure("'" + c + "' expected at position " + (pos + 1) + " in " + text);
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        void expectEnd() {
+            skipSpaces();
+            if (pos != text.length()) {
+                throw new Failure("Unexpected text at position " + (pos + 1) + " in " + text);
+            }
+        }
+    }
+}
@@ -15,12 +15,7 @@
  */
 package uk.theretiredprogrammer.lafe;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import javafx.application.Platform;
-import javafx.scene.control.ButtonBar;
-import javafx.scene.control.ButtonType;
-import javafx.scene.control.Dialog;
 
 public class ExecuteAndCatch {
 
@@ -40,34 +35,17 @@ public class ExecuteAndCatch {
         try {
             work.run();
         } catch (IllegalProgramStateFailure ex) {
-            catchDialog("Illegal Program State Failure", ex, exceptionaction);
+            catchFailure("Illegal Program State Failure", ex, exceptionaction);
         } catch (Exception ex) {
-            catchDialog("Program Failure", ex, exceptionaction);
+            catchFailure("Program Failure", ex, exceptionaction);
         }
     }
 
-    private static void catchDialog(String title, Exception ex, Runnable exceptionaction) {
+    // the failure is logged (and counted) rather than shown in a modal dialog
+    private static void catchFailure(String title, Exception ex, Runnable exceptionaction) {
         if (exceptionaction != null) {
             exceptionaction.run();
         }
-        StringWriter writer = new StringWriter();
-        PrintWriter pwriter = new PrintWriter(writer);
-        ex.printStackTrace(pwriter);
-        if (Platform.isFxApplicationThread()) {
-            buildAndShowCatchDialog(title, ex, writer);
-        } else {
-            Platform.runLater( () -> buildAndShowCatchDialog(title, ex, writer));
-        }
-    }
-        
-    private static void buildAndShowCatchDialog(String title, Exception ex, StringWriter writer) {
-        ButtonType loginButtonType = new ButtonType("Close", ButtonBar.ButtonData.OK_DONE);
-        Dialog<String> dialog = new Dialog<>();
-        dialog.getDialogPane().getButtonTypes().add(loginButtonType);
-        dialog.setTitle(title + " - " + ex.getLocalizedMessage());
-        dialog.setContentText(writer.toString());
-        dialog.getDialogPane().setMinWidth(900);
-        dialog.setResizable(true);
-        dialog.showAndWait();
+        FailureLog.record(title, ex);
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+
+//
+//  the failures caught by ExecuteAndCatch - deduplicated by title, exception
+//  type and the site which threw it, and counted. A single non modal panel
+//  lists them; it is refreshed at most once every REFRESH_MS however fast
+//  failures arrive, and a stack trace is only formatted when its entry is
+//  selected. The panel is only brought up by a new failure - a repeat of one
+//  already listed just updates its count if the panel is showing, so a
+//  closed panel stays closed under a stream of the same failure.
+//
+public class FailureLog {
+
+    private static final long REFRESH_MS = 500;
+    private static final DateTimeFormatter TIMEFORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicBoolean refreshscheduled = new AtomicBoolean(false);
+    private static final AtomicBoolean newentry = new AtomicBoolean(false);
+    private static FailurePanel panel; // FX application thread only
+
+    public static class Entry {
+
+        public final String title;
+        public final Exception first;
+        public final AtomicLong count = new AtomicLong();
+        private final LocalTime firsttime = LocalTime.now();
+        private volatile LocalTime lasttime = firsttime;
+        private volatile String lastmessage;
+
+        Entry(String title, Exception first) {
+            this.title = title;
+            this.first = first;
+            this.lastmessage = first.getLocalizedMessage();
+        }
+
+        void repeated(Exception ex) {
+            count.incrementAndGet();
+            lasttime = LocalTime.now();
+            lastmessage = ex.getLocalizedMessage();
+        }
+
+        public String getStackTrace() {
+            StringWriter writer = new StringWriter();
+            first.printStackTrace(new PrintWriter(writer));
+            return writer.toString();
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return (n > 1 ? n + " x " : "") + title + " - " + first.getClass().getSimpleName() + ": " + lastmessage
+                    + " (" + site(first) + ") " + TIMEFORMAT.format(firsttime)
+                    + (n > 1 ? " to " + TIMEFORMAT.format(lasttime) : "");
+        }
+    }
+
+    // may be called from any thread
+    public static void record(String title, Exception ex) {
+        String key = title + "|" + ex.getClass().getName() + "|" + site(ex);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(title, ex);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                newentry.set(true);
+            }
+        }
+        entry.repeated(ex);
+        if (refreshscheduled.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                PauseTransition delay = new PauseTransition(Duration.millis(REFRESH_MS));
+                delay.setOnFinished(e -> {
+                    refreshscheduled.set(false);
+                    refreshPanel();
+                });
+                delay.play();
+            });
+        }
+    }
+
+    public static List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> b.lasttime.compareTo(a.lasttime));
+        return list;
+    }
+
+    public static void clear() {
+        entries.clear();
+    }
+
+    private static String site(Exception ex) {
+        StackTraceElement[] trace = ex.getStackTrace();
+        return trace.length == 0 ? "unknown" : trace[0].getClassName() + "." + trace[0].getMethodName()
+                + ":" + trace[0].getLineNumber();
+    }
+
+    // shows the panel if a new failure was recorded, else refreshes it only if it is showing
+    private static void refreshPanel() {
+        boolean show = newentry.getAndSet(false);
+        if (show && panel == null) {
+            panel = new FailurePanel();
+        }
+        if (panel != null && (show || panel.isShowing())) {
+            panel.refresh();
+            if (!panel.isShowing()) {
+                panel.show();
+            }
+        }
+    }
+
+    private static class FailurePanel extends Stage {
+
+        private final ListView<Entry> list = new ListView<>();
+        private final TextArea trace = new TextArea();
+
+        FailurePanel() {
+            setTitle("Program Failures");
+            trace.setEditable(false);
+            list.getSelectionModel().selectedItemProperty().addListener(
+                    (o, oldv, newv) -> trace.setText(newv == null ? "" : newv.getStackTrace()));
+            Button clear = new Button("Clear");
+            clear.setOnAction(e -> {
+                FailureLog.clear();
+                refresh();
+            });
+            Button close = new Button("Close");
+            close.setOnAction(e -> hide());
+            BorderPane pane = new BorderPane();
+            pane.setTop(list);
+            pane.setCenter(trace);
+            pane.setBottom(new HBox(10, clear, close));
+            setScene(new Scene(pane, 900, 500));
+        }
+
+        void refresh() {
+            Entry selected = list.getSelectionModel().getSelectedItem();
+            list.getItems().setAll(getEntries());
+            if (selected != null && list.getItems().contains(selected)) {
+                list.getSelectionModel().select(selected);
+            }
+            list.refresh(); // counts change in place
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+
+//
+//  scans a capture for runt pulses (narrower than minpulsewidth samples) and
+//  for skewed edges (edges on two pins which are closer than maxskew samples,
+//  but not in the same sample).
+//
+//  All the pins' edges are merged into time order in a single pass - a heap
+//  of each pin's cursor (PinSamples.nextEdge), so nothing is copied - with a
+//  window of the edges within maxskew of the latest. Each edge then costs a
+//  heap step (log pins), a nextEdge and a look at the window - rather than
+//  a pass over every other pin.
+//
+//  The pins scanned include the derived channels which can be evaluated on
+//  the capture (see Channels). A scan runs on the AnalysisWorker, never on
+//  the FX application thread.
+//
+public class GlitchDetector {
+
+    public static final int MAX_RESULTS = 10000;
+
+    public final IntegerProperty minpulsewidth = new SimpleIntegerProperty(Integer.getInteger("lafe.glitch.minwidth", 2));
+    public final IntegerProperty maxskew = new SimpleIntegerProperty(Integer.getInteger("lafe.glitch.maxskew", 4));
+    public final BooleanProperty autoscan = new SimpleBooleanProperty(false);
+
+    private final AtomicLong scans = new AtomicLong();
+
+    public enum GlitchType {
+        RUNT("Runt pulse"), SKEW("Edge skew");
+
+        private final String fordisplay;
+
+        GlitchType(String fordisplay) {
+            this.fordisplay = fordisplay;
+        }
+
+        @Override
+        public String toString() {
+            return fordisplay;
+        }
+    }
+
+    public static class Glitch {
+
+        public final GlitchType type;
+        public final String channel;
+        public final String otherchannel;
+        public final long sample;
+        public final long width;
+        private final boolean high;
+        private final TimeBase timebase;
+
+        Glitch(GlitchType type, String channel, String otherchannel, long sample, long width, boolean high,
+                TimeBase timebase) {
+            this.type = type;
+            this.channel = channel;
+            this.otherchannel = otherchannel;
+            this.sample = sample;
+            this.width = width;
+            this.high = high;
+            this.timebase = timebase;
+        }
+
+        // formatted on demand - only the visible results are ever shown
+        @Override
+        public String toString() {
+            return type == GlitchType.RUNT
+                    ? "Runt " + (high ? "high" : "low") + " pulse on " + Channels.label(channel) + " at "
+                    + timebase.format(sample) + ": " + width + " samples"
+                    : "Edge skew " + Channels.label(channel) + " to " + Channels.label(otherchannel) + " at "
+                    + timebase.format(sample) + ": " + width + " samples";
+        }
+    }
+
+    public static class ScanResult {
+
+        public final Capture capture;
+        public final List<Glitch> glitches;
+        public final long runts;
+        public final long skews;
+        public final long edges;
+        public final long nanos;
+
+        ScanResult(Capture capture, List<Glitch> glitches, long runts, long skews, long edges, long nanos) {
+            this.capture = capture;
+            this.glitches = glitches;
+            this.runts = runts;
+            this.skews = skews;
+            this.edges = edges;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return runts + " runt pulses, " + skews + " skewed edges in " + edges + " edges ("
+                    + String.format("%.1f ms", nanos / 1e6) + ")"
+                    + (runts + skews > glitches.size() ? " - " + glitches.size() + " listed" : "");
+        }
+    }
+
+    // scans on the analysis worker and hands the result to done on the FX application thread -
+    // a scan still queued when a newer one is asked for is skipped
+    public void scan(Capture capture, Channels channels, Consumer<ScanResult> done) {
+        Map<Integer, PinSamples> samples = capture.getSamples(); // held, even if the history spills the capture
+        long minwidth = minpulsewidth.get();
+        long skewlimit = maxskew.get();
+        long generation = scans.incrementAndGet();
+        AnalysisWorker.execute(() -> {
+            if (generation == scans.get()) {
+                ScanResult result = scan(capture, channels.getAll(samples), minwidth, skewlimit);
+                Platform.runLater(() -> done.accept(result));
+            }
+        });
+    }
+
+    static ScanResult scan(Capture capture, Map<String, PinSamples> samples, long minwidth, long skewlimit) {
+        long starttime = System.nanoTime();
+        TimeBase timebase = capture.getTimeBase();
+        int count = samples.size();
+        String[] channels = new String[count];
+        PinSamples[] pinsamples = new PinSamples[count];
+        long[] next = new long[count]; // each pin's cursor - its next edge
+        long[] last = new long[count]; // each pin's last edge before the current sample, -1 if none
+        int[] heap = new int[count]; // the pins with edges to come, by next edge
+        int heapsize = 0;
+        int[] insample = new int[count]; // the pins with an edge in the current sample
+        int insamplecount = 0;
+        long sample = -1;
+        EdgeWindow window = new EdgeWindow();
+        List<Glitch> glitches = new ArrayList<>();
+        long runts = 0;
+        long skews = 0;
+        long totaledges = 0;
+        int p = 0;
+        for (var es : samples.entrySet()) {
+            channels[p] = es.getKey();
+            pinsamples[p] = es.getValue();
+            next[p] = pinsamples[p].nextEdge(0);
+            last[p] = -1;
+            if (next[p] < pinsamples[p].size()) {
+                heap[heapsize] = p;
+                siftUp(heap, heapsize++, next);
+            }
+            p++;
+        }
+        while (heapsize > 0) {
+            int q = heap[0];
+            long edge = next[q];
+            if (edge != sample) {
+                // the edges of the previous sample become the pins' last edges - edges in
+                // the same sample are coincident, not skewed
+                for (int i = 0; i < insamplecount; i++) {
+                    last[insample[i]] = sample;
+                    window.add(insample[i], sample);
+                }
+                insamplecount = 0;
+                sample = edge;
+                if (skewlimit > 1) {
+                    window.dropBefore(edge - skewlimit + 1);
+                }
+            }
+            long previous = last[q];
+            // runt pulse - from the previous edge on this pin
+            long width = edge - previous;
+            if (previous >= 0 && width < minwidth && runts++ < MAX_RESULTS) {
+                glitches.add(new Glitch(GlitchType.RUNT, channels[q], channels[q], previous, width,
+                        pinsamples[q].levelAt(previous), timebase));
+            }
+            // skew - the last edge of each other pin within the limit, if it is since
+            // this pin's previous edge (newest first, so stop at the first too old)
+            if (skewlimit > 1) {
+                for (int i = window.size - 1; i >= 0 && window.sampleAt(i) > previous; i--) {
+                    int other = window.pinAt(i);
+                    long at = window.sampleAt(i);
+                    if (last[other] == at && skews++ < MAX_RESULTS) { // else superseded by a later edge
+                        glitches.add(new Glitch(GlitchType.SKEW, channels[other], channels[q], at, edge - at, false, timebase));
+                    }
+                }
+            }
+            insample[insamplecount++] = q;
+            totaledges++;
+            // advance this pin's cursor
+            next[q] = pinsamples[q].nextEdge(edge);
+            if (next[q] >= pinsamples[q].size()) {
+                heap[0] = heap[--heapsize];
+            }
+            siftDown(heap, 0, heapsize, next);
+        }
+        glitches.sort((a, b) -> Long.compare(a.sample, b.sample));
+        if (glitches.size() > MAX_RESULTS) {
+            glitches = new ArrayList<>(glitches.subList(0, MAX_RESULTS));
+        }
+        long nanos = System.nanoTime() - starttime;
+        Metrics.duration(Metrics.GLITCH_SCAN, nanos);
+        return new ScanResult(capture, glitches, runts, skews, totaledges, nanos);
+    }
+
+    private static void siftUp(int[] heap, int i, long[] keys) {
+        int pin = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[heap[parent]] <= keys[pin]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = pin;
+    }
+
+    private static void siftDown(int[] heap, int i, int size, long[] keys) {
+        if (size == 0) {
+            return;
+        }
+        int pin = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+                child++;
+            }
+            if (keys[pin] <= keys[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = pin;
+    }
+
+    // the edges within the skew limit of the current sample, oldest first, as a ring buffer -
+    // an entry whose pin has edged again since is left in place, and skipped
+    private static class EdgeWindow {
+
+        private int[] pins = new int[64];
+        private long[] samples = new long[64];
+        private int head = 0;
+        private int size = 0;
+
+        void add(int pin, long sample) {
+            if (size == pins.length) {
+                int[] newpins = new int[size * 2];
+                long[] newsamples = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    newpins[i] = pinAt(i);
+                    newsamples[i] = sampleAt(i);
+                }
+                pins = newpins;
+                samples = newsamples;
+                head = 0;
+            }
+            int tail = (head + size++) & (pins.length - 1);
+            pins[tail] = pin;
+            samples[tail] = sample;
+        }
+
+        void dropBefore(long sample) {
+            while (size > 0 && samples[head] < sample) {
+                head = (head + 1) & (pins.length - 1);
+                size--;
+            }
+        }
+
+        int pinAt(int i) {
+            return pins[(head + i) & (pins.length - 1)];
+        }
+
+        long sampleAt(int i) {
+            return samples[(head + i) & (pins.length - 1)];
+        }
+    }
+}
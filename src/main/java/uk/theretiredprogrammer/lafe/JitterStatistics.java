@@ -0,0 +1,183 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.Map;
+import java.util.TreeMap;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+
+//
+//  timing statistics accumulated over repeated captures of one configuration,
+//  in constant memory - no capture is retained:
+//
+//  -   for each of the first MAX_EDGES edges of each pin, the running mean,
+//      standard deviation (the jitter) and min/max envelope of its position
+//  -   the distribution of each pin's periods (rising edge to rising edge),
+//      as a histogram of one sample buckets either side of the first period
+//      seen, with the running mean, standard deviation and min/max
+//
+//  A capture of a different configuration starts the statistics again.
+//
+public class JitterStatistics {
+
+    public static final int MAX_EDGES = 256;
+    public static final int HALF_BUCKETS = 64;
+    private static final int REPORT_EDGES = 16;
+
+    public final BooleanProperty enabled = new SimpleBooleanProperty(false);
+
+    private String configuration;
+    private TimeBase timebase;
+    private long runs = 0;
+    private final Map<Integer, PinStatistics> pins = new TreeMap<>();
+
+    // running mean and variance (Welford), with the min and max
+    private static class Moments {
+
+        long count = 0;
+        double mean = 0;
+        double m2 = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        void add(long value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        double sd() {
+            return count < 2 ? 0 : Math.sqrt(m2 / (count - 1));
+        }
+    }
+
+    private static class PinStatistics {
+
+        final Moments[] edges = new Moments[MAX_EDGES];
+        final Moments periods = new Moments();
+        final long[] buckets = new long[2 * HALF_BUCKETS + 1];
+        long base = -1; // the period at the centre bucket
+        long outside = 0;
+
+        void add(PinSamples samples) {
+            long[] lastrising = {-1};
+            int[] index = {0};
+            samples.forEachEdge(edge -> {
+                int i = index[0]++;
+                if (i < MAX_EDGES) {
+                    if (edges[i] == null) {
+                        edges[i] = new Moments();
+                    }
+                    edges[i].add(edge);
+                }
+                if (samples.levelAt(edge)) {
+                    if (lastrising[0] >= 0) {
+                        addPeriod(edge - lastrising[0]);
+                    }
+                    lastrising[0] = edge;
+                }
+            });
+        }
+
+        private void addPeriod(long period) {
+            periods.add(period);
+            if (base < 0) {
+                base = period;
+            }
+            long bucket = period - base + HALF_BUCKETS;
+            if (bucket >= 0 && bucket < buckets.length) {
+                buckets[(int) bucket]++;
+            } else {
+                outside++;
+            }
+        }
+
+        // the period at a percentile of those within the histogram
+        long percentile(double percent) {
+            long total = periods.count - outside;
+            long target = (long) Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(1, target)) {
+                    return base + i - HALF_BUCKETS;
+                }
+            }
+            return base;
+        }
+    }
+
+    // adds a completed capture, with its samples (held by the caller, as the history may
+    // spill the capture meanwhile) - returns false if it started the statistics again
+    public synchronized boolean accumulate(Capture capture, Map<Integer, PinSamples> samples) {
+        boolean same = capture.getDescription().equals(configuration);
+        if (!same) {
+            reset();
+            configuration = capture.getDescription();
+            timebase = capture.getTimeBase();
+        }
+        runs++;
+        samples.forEach((pin, pinsamples) -> pins.computeIfAbsent(pin, p -> new PinStatistics()).add(pinsamples));
+        return same;
+    }
+
+    public synchronized void reset() {
+        configuration = null;
+        runs = 0;
+        pins.clear();
+    }
+
+    public synchronized String report() {
+        if (runs == 0) {
+            return "No captures accumulated";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(runs).append(" captures of ").append(configuration).append('\n');
+        pins.forEach((pin, stats) -> {
+            sb.append("Pin ").append(pin).append(":\n");
+            Moments p = stats.periods;
+            if (p.count == 0) {
+                sb.append("  no complete periods\n");
+            } else {
+                sb.append(String.format("  %d periods: mean %.3f samples (%s) sd %.3f min %d max %d"
+                        + " - p1 %d p50 %d p99 %d%s%n", p.count, p.mean, timebase.format(Math.round(p.mean)), p.sd(),
+                        p.min, p.max, stats.percentile(1), stats.percentile(50), stats.percentile(99),
+                        stats.outside == 0 ? "" : " (" + stats.outside + " outside the histogram)"));
+            }
+            int worst = -1;
+            for (int i = 0; i < MAX_EDGES && stats.edges[i] != null; i++) {
+                if (worst < 0 || stats.edges[i].sd() > stats.edges[worst].sd()) {
+                    worst = i;
+                }
+            }
+            if (worst >= 0) {
+                Moments w = stats.edges[worst];
+                sb.append(String.format("  worst edge jitter: edge %d sd %.3f samples, envelope %d to %d%n",
+                        worst, w.sd(), w.min, w.max));
+            }
+            for (int i = 0; i < REPORT_EDGES && stats.edges[i] != null; i++) {
+                Moments e = stats.edges[i];
+                sb.append(String.format("  edge %3d: %d runs, mean %.2f sd %.3f envelope %d to %d%n",
+                        i, e.count, e.mean, e.sd(), e.min, e.max));
+            }
+        });
+        return sb.toString();
+    }
+}
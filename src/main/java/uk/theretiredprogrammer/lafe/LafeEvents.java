@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+//
+//  Java Flight Recorder events for the transport, download, decode and render
+//  paths - record with -XX:StartFlightRecording and view in JDK Mission Control
+//
+public class LafeEvents {
+
+    @Name("uk.theretiredprogrammer.lafe.Command")
+    @Label("Probe Command")
+    @Category({"Logic Analyser", "Transport"})
+    @Description("A probe command and its complete response")
+    public static class CommandEvent extends Event {
+
+        @Label("Command")
+        public String command;
+
+        @Label("Success")
+        public boolean success;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        public long bytessent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        public long bytesreceived;
+    }
+
+    @Name("uk.theretiredprogrammer.lafe.Download")
+    @Label("Sample Download")
+    @Category({"Logic Analyser", "Transport"})
+    public static class DownloadEvent extends Event {
+
+        @Label("Pins")
+        public int pins;
+
+        @Label("Bytes Received")
+        @DataAmount
+        public long bytesreceived;
+    }
+
+    @Name("uk.theretiredprogrammer.lafe.Decode")
+    @Label("RLE Decode")
+    @Category({"Logic Analyser", "Decode"})
+    public static class DecodeEvent extends Event {
+
+        @Label("Pin")
+        public int pin;
+
+        @Label("Samples")
+        public long samples;
+    }
+
+    @Name("uk.theretiredprogrammer.lafe.Render")
+    @Label("Sample Display Render")
+    @Category({"Logic Analyser", "Render"})
+    public static class RenderEvent extends Event {
+
+        @Label("Pins")
+        public int pins;
+
+        @Label("Annotations Drawn")
+        @Description("Labelled boxes and summary blocks drawn for the decoders")
+        public int annotations;
+    }
+}
@@ -28,6 +28,11 @@ public class LafePreferences {
     private static final String WINDOW_X_POS = "windowXPos";
     private static final String WINDOW_Y_POS = "windowYPos";
     private static final String WINDOW_MAXIMIZED = "windowMaximized";
+    // probe selection
+    private static final String LAST_PROBE = "lastProbe";
+    // derived channel definitions
+    private static final String DERIVED_CHANNELS = "derivedChannels";
+    private static final String RETENTION_FILTERS = "retentionFilters";
 
     public static void applyWindowSizePreferences(Stage stage, Class clazz, Rectangle2D windowsize) {
         String windowname = clazz.getSimpleName();
@@ -84,4 +89,47 @@ public class LafePreferences {
             throw new Failure("Could not flush preferences for window " + windowname, ex);
         }
     }
+
+    public static String getLastProbe(Class clazz) {
+        return Preferences.userNodeForPackage(clazz).get(LAST_PROBE, null);
+    }
+
+    public static void saveLastProbe(Class clazz, String identity) {
+        try {
+            Preferences packagePreferences = Preferences.userNodeForPackage(clazz);
+            packagePreferences.put(LAST_PROBE, identity);
+            packagePreferences.flush();
+        } catch (BackingStoreException ex) {
+            throw new Failure("Could not flush preferences for last used probe", ex);
+        }
+    }
+
+    // name=expression pairs separated by ;
+    public static String getDerivedChannels(Class clazz) {
+        return Preferences.userNodeForPackage(clazz).get(DERIVED_CHANNELS, "");
+    }
+
+    public static void saveDerivedChannels(Class clazz, String definitions) {
+        try {
+            Preferences packagePreferences = Preferences.userNodeForPackage(clazz);
+            packagePreferences.put(DERIVED_CHANNELS, definitions);
+            packagePreferences.flush();
+        } catch (BackingStoreException ex) {
+            throw new Failure("Could not flush preferences for derived channels", ex);
+        }
+    }
+
+    public static String getRetentionFilters(Class clazz) {
+        return Preferences.userNodeForPackage(clazz).get(RETENTION_FILTERS, "");
+    }
+
+    public static void saveRetentionFilters(Class clazz, String filters) {
+        try {
+            Preferences packagePreferences = Preferences.userNodeForPackage(clazz);
+            packagePreferences.put(RETENTION_FILTERS, filters);
+            packagePreferences.flush();
+        } catch (BackingStoreException ex) {
+            throw new Failure("Could not flush preferences for retention filters", ex);
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+//  in-app metrics registry for the hot paths (serial transport, download,
+//  decode and render) - cheap enough to be left enabled permanently
+//
+public class Metrics {
+
+    public static final String DOWNLOAD = "download";
+    public static final String DECODE = "decode";
+    public static final String DECODE_CPU = "decode_cpu";
+    public static final String RENDER = "render";
+    public static final String ANNOTATIONS = "annotations"; // the part of a render drawing decoder annotations
+    public static final String GLITCH_SCAN = "glitch_scan";
+    public static final String CAPTURE_DIFF = "capture_diff";
+
+    private static final LongAdder bytesreceived = new LongAdder();
+    private static final LongAdder bytessent = new LongAdder();
+    private static final Map<String, Histogram> commandlatency = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> durations = new ConcurrentHashMap<>();
+    private static final long starttime = System.nanoTime();
+
+    // state for the rate calculation in readout()
+    private static long lastreadouttime = System.nanoTime();
+    private static long lastreadoutreceived = 0;
+    private static long lastreadoutsent = 0;
+
+    public static void bytesReceived(int count) {
+        bytesreceived.add(count);
+    }
+
+    public static void bytesSent(int count) {
+        bytessent.add(count);
+    }
+
+    public static void commandCompleted(String command, long nanos) {
+        commandlatency.computeIfAbsent(command, k -> new Histogram()).record(nanos);
+    }
+
+    public static void duration(String name, long nanos) {
+        durations.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+    }
+
+    public static long totalBytesReceived() {
+        return bytesreceived.sum();
+    }
+
+    public static long totalBytesSent() {
+        return bytessent.sum();
+    }
+
+    public static Histogram getDuration(String name) {
+        return durations.get(name);
+    }
+
+    // a compact one line summary, rates are since the previous call
+    public static synchronized String readout() {
+        long now = System.nanoTime();
+        long received = bytesreceived.sum();
+        long sent = bytessent.sum();
+        double seconds = (now - lastreadouttime) / 1e9;
+        String rates = seconds <= 0 ? ""
+                : String.format("RX %.1f kB/s TX %.1f kB/s", (received - lastreadoutreceived) / seconds / 1000,
+                        (sent - lastreadoutsent) / seconds / 1000);
+        lastreadouttime = now;
+        lastreadoutreceived = received;
+        lastreadoutsent = sent;
+        StringBuilder sb = new StringBuilder(rates);
+        appendLast(sb, DOWNLOAD);
+        appendLast(sb, DECODE);
+        appendLast(sb, RENDER);
+        return sb.toString();
+    }
+
+    private static void appendLast(StringBuilder sb, String name) {
+        Histogram h = durations.get(name);
+        if (h != null) {
+            sb.append(" | ").append(name).append(' ').append(formatms(h.last())).append(" ms");
+        }
+    }
+
+    public static void export(File file) {
+        try ( PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            export(out);
+        } catch (IOException ex) {
+            throw new Failure("Could not export metrics to " + file, ex);
+        }
+    }
+
+    public static void export(PrintWriter out) {
+        double uptime = (System.nanoTime() - starttime) / 1e9;
+        out.println("# Logic Analyser Front End metrics");
+        out.println("metric,count,min_ms,p50_ms,p90_ms,p99_ms,max_ms,mean_ms");
+        out.println("uptime_s," + String.format("%.3f", uptime));
+        out.println("bytes_received," + bytesreceived.sum());
+        out.println("bytes_sent," + bytessent.sum());
+        out.println("mean_rx_bytes_per_s," + String.format("%.1f", bytesreceived.sum() / uptime));
+        commandlatency.forEach((command, h) -> out.println("command " + command + "," + h.toCSV()));
+        durations.forEach((name, h) -> out.println(name + "," + h.toCSV()));
+    }
+
+    private static String formatms(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    //
+    // a fixed bucket latency histogram - bucket n holds values in [2^n, 2^(n+1)) microseconds
+    //
+    public static class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(0);
+        private volatile long last;
+
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sum.add(nanos);
+            min.accumulateAndGet(nanos, Math::min);
+            max.accumulateAndGet(nanos, Math::max);
+            last = nanos;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long last() {
+            return last;
+        }
+
+        // the upper bound of the bucket containing the requested percentile
+        public long percentile(double percent) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(max.get(), (2L << i) * 1000);
+                }
+            }
+            return max.get();
+        }
+
+        private String toCSV() {
+            long n = count.sum();
+            return n + "," + formatms(n == 0 ? 0 : min.get()) + "," + formatms(percentile(50))
+                    + "," + formatms(percentile(90)) + "," + formatms(percentile(99))
+                    + "," + formatms(max.get()) + "," + formatms(n == 0 ? 0 : sum.sum() / n);
+        }
+    }
+}
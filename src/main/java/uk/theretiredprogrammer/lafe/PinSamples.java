@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.LongConsumer;
+
+//
+//  the samples for one pin - the common access API over the transition list
+//  and bitset representations (see PinSamplesBuilder for how one is chosen).
+//
+//  An edge at sample e means that the level of sample e differs from that of
+//  sample e-1; ranges are half open [from, to). Sample positions are 64 bit so
+//  that long (segmented) captures can exceed 2^31 samples.
+//
+public interface PinSamples {
+
+    public static final byte TRANSITIONS = 0;
+    public static final byte BITSET = 1;
+    public static final byte SEGMENTED = 2;
+
+    public long size();
+
+    public boolean initialLevel();
+
+    public boolean levelAt(long sample);
+
+    // the first edge after sample from, or size() if there are no more edges
+    public long nextEdge(long from);
+
+    public long edgeCount();
+
+    // the number of edges e with from < e < to
+    public long edgeCount(long from, long to);
+
+    // the number of high samples in [from, to)
+    public long highCount(long from, long to);
+
+    // visits every edge in order - a single pass over the underlying representation
+    public void forEachEdge(LongConsumer action);
+
+    public long memoryBytes();
+
+    public void write(DataOutputStream out) throws IOException;
+
+    public static PinSamples read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TRANSITIONS:
+                return TransitionPinSamples.read(in, in.readInt());
+            case BITSET:
+                return BitsetPinSamples.read(in, in.readInt());
+            case SEGMENTED:
+                return SegmentedPinSamples.read(in);
+            default:
+                throw new IOException("Unknown pin samples representation: " + type);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//
+//  accumulates runs of samples for a pin and chooses the representation by
+//  edge density: a transition list costs 32 bits per edge, a bitset one bit per
+//  sample, so the builder switches to a bitset as soon as the edges would cost
+//  more. The edge array grows no further than that switch point, and the
+//  bitset is sized to the expected samples, so while building either one
+//  stays within about one bit per sample; the switch itself briefly holds
+//  both (about two bits per sample).
+//
+//  Captures longer than SEGMENT_SAMPLES are built as a series of segments,
+//  each choosing its own representation.
+//
+public class PinSamplesBuilder {
+
+    public static final int SEGMENT_SAMPLES = 1 << 30;
+
+    private final long expectedsize;
+    private final List<PinSamples> segments = new ArrayList<>();
+    private SegmentBuilder current;
+    private long size = 0;
+
+    public PinSamplesBuilder(long expectedsize) {
+        this.expectedsize = expectedsize;
+        current = new SegmentBuilder((int) Math.min(expectedsize, SEGMENT_SAMPLES));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void append(boolean level, long count) {
+        while (count > 0) {
+            int room = SEGMENT_SAMPLES - current.size;
+            if (room == 0) {
+                segments.add(current.build());
+                current = new SegmentBuilder((int) Math.min(expectedsize - size, SEGMENT_SAMPLES));
+                room = SEGMENT_SAMPLES;
+            }
+            int n = (int) Math.min(count, room);
+            current.append(level, n);
+            size += n;
+            count -= n;
+        }
+    }
+
+    public PinSamples build() {
+        if (segments.isEmpty()) {
+            return current.build();
+        }
+        List<PinSamples> all = new ArrayList<>(segments);
+        if (current.size > 0) {
+            all.add(current.build());
+        }
+        return new SegmentedPinSamples(all);
+    }
+
+    private static class SegmentBuilder {
+
+        private static final int BITS_PER_EDGE = 32;
+
+        private final int expectedsize;
+        private int size = 0;
+        private boolean started = false;
+        private boolean initiallevel;
+        private boolean currentlevel;
+        private int[] edges = new int[16];
+        private int edgecount = 0;
+        private long[] words; // non null once switched to a bitset
+
+        SegmentBuilder(int expectedsize) {
+            this.expectedsize = expectedsize;
+        }
+
+        void append(boolean level, int count) {
+            if (count <= 0) {
+                return;
+            }
+            if (!started) {
+                started = true;
+                initiallevel = level;
+                currentlevel = level;
+            } else if (level != currentlevel) {
+                currentlevel = level;
+                if (words == null) {
+                    addEdge(size);
+                }
+            }
+            if (words != null) {
+                ensureBits(size + count);
+                if (level) {
+                    setBits(size, size + count);
+                }
+            }
+            size += count;
+        }
+
+        private void addEdge(int edge) {
+            if (edgecount == edges.length) {
+                // no more than the edges at which the bitset takes over
+                int switchpoint = Math.max(expectedsize, size) / BITS_PER_EDGE + 1;
+                edges = Arrays.copyOf(edges, Math.max(edgecount + 1, Math.min(edgecount * 2, switchpoint)));
+            }
+            edges[edgecount++] = edge;
+            if ((long) edgecount * BITS_PER_EDGE > Math.max(expectedsize, size)) {
+                switchToBitset();
+            }
+        }
+
+        private void switchToBitset() {
+            words = new long[(Math.max(expectedsize, size) + 63) >>> 6];
+            boolean level = initiallevel;
+            int pos = 0;
+            for (int i = 0; i < edgecount; i++) {
+                if (level) {
+                    setBits(pos, edges[i]);
+                }
+                pos = edges[i];
+                level = !level;
+            }
+            if (level) {
+                setBits(pos, size);
+            }
+            edges = null;
+        }
+
+        private void ensureBits(int bits) {
+            int needed = (bits + 63) >>> 6;
+            if (needed > words.length) {
+                // only when more samples arrive than expected - an eighth more than needed
+                words = Arrays.copyOf(words, needed + (needed >>> 3));
+            }
+        }
+
+        private void setBits(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int firstword = from >>> 6;
+            int lastword = (to - 1) >>> 6;
+            for (int k = firstword; k <= lastword; k++) {
+                long mask = -1L;
+                if (k == firstword) {
+                    mask &= -1L << from;
+                }
+                if (k == lastword) {
+                    mask &= -1L >>> (63 - ((to - 1) & 63));
+                }
+                words[k] |= mask;
+            }
+        }
+
+        PinSamples build() {
+            if (words == null && (long) edgecount * BITS_PER_EDGE > size) {
+                switchToBitset();
+            }
+            if (words != null) {
+                int length = (size + 63) >>> 6;
+                return new BitsetPinSamples(words.length == length ? words : Arrays.copyOf(words, length), size);
+            }
+            return new TransitionPinSamples(initiallevel,
+                    edges.length == edgecount ? edges : Arrays.copyOf(edges, edgecount), size);
+        }
+    }
+}
@@ -15,12 +15,16 @@
  */
 package uk.theretiredprogrammer.lafe;
 
-import java.text.MessageFormat;
+import java.util.Properties;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.LongProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleLongProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
@@ -43,7 +47,8 @@ public class ProbeConfiguration {
     public final IntegerProperty et_pin = new SimpleIntegerProperty(15);
     public final ObjectProperty<Trigger> et_level = new SimpleObjectProperty<Trigger>(RISING);
     public final ObjectProperty<SampleEndMode> sampleendmode = new SimpleObjectProperty<SampleEndMode>(MANUAL);
-    public final IntegerProperty samplesize = new SimpleIntegerProperty(1280);
+    public final LongProperty samplesize = new SimpleLongProperty(1280);
+    public final BooleanProperty repeat = new SimpleBooleanProperty(false); // restart sampling after each capture
     public final StringProperty probetype = new SimpleStringProperty("Unknown");
     public final StringProperty probeversion = new SimpleStringProperty("???");
     
@@ -52,32 +57,166 @@ public class ProbeConfiguration {
     public final ObjectProperty<HzUnits> sqw_speedunit = new SimpleObjectProperty<HzUnits>(HZ);
     
 
+    // the probe's capabilities - null until a known probe has been connected
+    public final ObjectProperty<ProbeDefinitions> definitions = new SimpleObjectProperty<>(null);
+    // why the probe would reject the configuration - empty if it is acceptable
+    public final StringProperty configurationerror = new SimpleStringProperty("");
+
+    public ProbeConfiguration() {
+        InvalidationListener revalidate = (o) -> configurationerror.set(validate());
+        for (Observable property : new Observable[]{firstpin, pins, speed, speedunit, speedmultiplier,
+            st_enabled, st_pin, et_enabled, et_pin, sampleendmode, samplesize, definitions}) {
+            property.addListener(revalidate);
+        }
+    }
+
+    // checks the configuration against the probe's definitions, so that an
+    // unacceptable configuration is reported as it is entered, rather than by
+    // the probe rejecting the arm command
+    public String validate() {
+        ProbeDefinitions probe = definitions.get();
+        if (pins.get() < 1) {
+            return "At least one pin must be sampled";
+        }
+        if (samplesize.get() < 1) {
+            return "Sample size must be at least 1";
+        }
+        long rate;
+        try {
+            rate = speedcalculation();
+        } catch (Failure ex) {
+            return ex.getMessage();
+        }
+        if (probe == null) {
+            return "";
+        }
+        int lastpin = firstpin.get() + pins.get() - 1;
+        if (!probe.isSamplePin(firstpin.get()) || !probe.isSamplePin(lastpin)) {
+            return "Sampled pins must be in the range " + probe.minPin + " to " + probe.maxPin;
+        }
+        if (rate < probe.minFrequence || rate > probe.maxFrequency) {
+            return "Sampling speed must be between " + probe.minFrequence + " Hz and " + probe.maxFrequency + " Hz";
+        }
+        if (samplesize.get() > probe.maxSamplesize) {
+            return "Sample size must not exceed " + probe.maxSamplesize;
+        }
+        if (samplesize.get() % probe.sampleUnitSize != 0) {
+            return "Sample size must be a multiple of " + probe.sampleUnitSize; // the probe's buffer unit
+        }
+        if (st_enabled.get() && !probe.isTriggerPin(st_pin.get())) {
+            return "Start trigger pin " + st_pin.get() + " cannot be used as a trigger";
+        }
+        if (et_enabled.get() && !probe.isTriggerPin(et_pin.get())) {
+            return "Event trigger pin " + et_pin.get() + " cannot be used as a trigger";
+        }
+        return "";
+    }
+
+    // sets the sampling configuration from a configuration file's properties
+    // (FIRST_PIN, PINS, SPEED, ...) - settings which are not present are unchanged
+    public void load(Properties properties) {
+        setInt(properties, "FIRST_PIN", firstpin);
+        setInt(properties, "PINS", pins);
+        setInt(properties, "SPEED", speed);
+        setEnum(properties, "SPEED_UNIT", speedunit, HzUnits.class);
+        setInt(properties, "SPEED_MULTIPLIER", speedmultiplier);
+        setOnOff(properties, "START_TRIGGER", st_enabled);
+        setInt(properties, "START_TRIGGER_PIN", st_pin);
+        setEnum(properties, "START_TRIGGER_LEVEL", st_level, Trigger.class);
+        setOnOff(properties, "EVENT_TRIGGER", et_enabled);
+        setInt(properties, "EVENT_TRIGGER_PIN", et_pin);
+        setEnum(properties, "EVENT_TRIGGER_LEVEL", et_level, Trigger.class);
+        setEnum(properties, "SAMPLE_END_MODE", sampleendmode, SampleEndMode.class);
+        String size = properties.getProperty("SAMPLE_SIZE");
+        if (size != null) {
+            try {
+                samplesize.set(Long.parseLong(size.strip()));
+            } catch (NumberFormatException ex) {
+                throw new Failure("SAMPLE_SIZE is not a number: " + size, ex);
+            }
+        }
+    }
+
+    private static void setInt(Properties properties, String key, IntegerProperty property) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                property.set(Integer.parseInt(value.strip()));
+            } catch (NumberFormatException ex) {
+                throw new Failure(key + " is not a number: " + value, ex);
+            }
+        }
+    }
+
+    private static void setOnOff(Properties properties, String key, BooleanProperty property) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            switch (value.strip().toUpperCase()) {
+                case "ON" ->
+                    property.set(true);
+                case "OFF" ->
+                    property.set(false);
+                default ->
+                    throw new Failure(key + " must be ON or OFF: " + value);
+            }
+        }
+    }
+
+    private static <E extends Enum<E>> void setEnum(Properties properties, String key, ObjectProperty<E> property, Class<E> type) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                property.set(Enum.valueOf(type, value.strip().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                throw new Failure(key + " is not a valid setting: " + value, ex);
+            }
+        }
+    }
+
     public String getprobecommand(String command) {
-        return MessageFormat.format("{0}-{1,number,#}-{2,number,#}-"
-                + "{3,number,#}-"
-                + "{4,number,#}-{5,number,#}-{6,number,#}-"
-                + "{7,number,#}-{8,number,#}-{9,number,#}-"
-                + "{10,number,#}-{11,number,#}",
-                command, firstpin.get(), pins.get(),
-                speedcalculation(),
-                st_enabled.get() ? 1 : 0, st_pin.get(), st_level.get().ordinal(),
-                et_enabled.get() ? 1 : 0, et_pin.get(), et_level.get().ordinal(),
-                sampleendmode.get().ordinal(), samplesize.get());
+        return new StringBuilder(64).append(command)
+                .append('-').append(firstpin.get())
+                .append('-').append(pins.get())
+                .append('-').append(speedcalculation())
+                .append('-').append(st_enabled.get() ? 1 : 0)
+                .append('-').append(st_pin.get())
+                .append('-').append(st_level.get().ordinal())
+                .append('-').append(et_enabled.get() ? 1 : 0)
+                .append('-').append(et_pin.get())
+                .append('-').append(et_level.get().ordinal())
+                .append('-').append(sampleendmode.get().ordinal())
+                .append('-').append(samplesize.get())
+                .toString();
+    }
+
+    // the sample rate in Hz - calculated in 64 bits and checked for overflow
+    public long speedcalculation() {
+        try {
+            return Math.multiplyExact(Math.multiplyExact((long) speed.get(), (long) speedmultiplier.get()),
+                    (long) speedunit.get().getMultiplier());
+        } catch (ArithmeticException ex) {
+            throw new Failure("Sampling speed is too large", ex);
+        }
     }
 
-    private int speedcalculation() {
-        return speed.get() * speedmultiplier.get() * speedunit.get().getMultiplier();
+    public TimeBase getTimeBase() {
+        return new TimeBase(speedcalculation());
     }
     
     public String getSquareWaveCommand(String command, boolean on) {
-        return MessageFormat.format("{0}-{1,number,#}-"
-                + "{2,number,#}-{3,number,#}",
-                command, on ? 1: 0,
-                sqw_firstpin.get(), sqw_speedcalculation());
+        return new StringBuilder(32).append(command)
+                .append('-').append(on ? 1 : 0)
+                .append('-').append(sqw_firstpin.get())
+                .append('-').append(sqw_speedcalculation())
+                .toString();
     }
-    
-    private int sqw_speedcalculation() {
-        return sqw_speed.get() * sqw_speedunit.get().getMultiplier();
+
+    public long sqw_speedcalculation() {
+        try {
+            return Math.multiplyExact((long) sqw_speed.get(), (long) sqw_speedunit.get().getMultiplier());
+        } catch (ArithmeticException ex) {
+            throw new Failure("Waveform generator speed is too large", ex);
+        }
     }
 
     public enum HzUnits {
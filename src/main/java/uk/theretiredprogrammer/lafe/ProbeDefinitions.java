@@ -15,6 +15,13 @@
  */
 package uk.theretiredprogrammer.lafe;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class ProbeDefinitions {
 
     public final String probename;
@@ -23,12 +30,26 @@ public class ProbeDefinitions {
     public final int maxPin;
     public final long maxFrequency;
     public final long maxSamplesize;
+    public final long sampleUnitSize;
+    public final int[] extraTriggerPins;
+
+    private static final Map<String, ProbeDefinitions> cache = new ConcurrentHashMap<>();
     
     public ProbeDefinitions(
             String probename,
             int minPin, int maxPin,
             long minFrequency, long maxFrequency,
             long maxSamplesize
+    ){
+        this(probename, minPin, maxPin, minFrequency, maxFrequency, maxSamplesize, 1, new int[0]);
+    }
+
+    public ProbeDefinitions(
+            String probename,
+            int minPin, int maxPin,
+            long minFrequency, long maxFrequency,
+            long maxSamplesize, long sampleUnitSize,
+            int[] extraTriggerPins
     ){
         this.probename = probename;
         this.minPin = minPin;
@@ -36,5 +57,65 @@ public class ProbeDefinitions {
         this.minFrequence = minFrequency;
         this.maxFrequency = maxFrequency;
         this.maxSamplesize = maxSamplesize;
+        this.sampleUnitSize = sampleUnitSize;
+        this.extraTriggerPins = extraTriggerPins;
+    }
+
+    public boolean isSamplePin(int pin) {
+        return pin >= minPin && pin <= maxPin;
+    }
+
+    public boolean isTriggerPin(int pin) {
+        return isSamplePin(pin) || Arrays.stream(extraTriggerPins).anyMatch(p -> p == pin);
+    }
+
+    // the definitions for a probe type and version - read once and cached
+    public static ProbeDefinitions get(String probetype, String probeversion) {
+        return cache.computeIfAbsent(probetype.toLowerCase() + "-" + probeversion, k -> load(probetype, probeversion));
+    }
+
+    // the definitions for a probe type and version, from <type>-<version>.properties
+    private static ProbeDefinitions load(String probetype, String probeversion) {
+        String resource = probetype.toLowerCase() + "-" + probeversion + ".properties";
+        Properties properties = new Properties();
+        try ( InputStream in = ProbeDefinitions.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new Failure("No probe definitions for " + probetype + " version " + probeversion);
+            }
+            properties.load(in);
+        } catch (IOException ex) {
+            throw new Failure("Cannot read probe definitions " + resource, ex);
+        }
+        return new ProbeDefinitions(probetype + "-" + probeversion,
+                intProperty(properties, "MINSAMPLEPIN"), intProperty(properties, "MAXSAMPLEPIN"),
+                longProperty(properties, "MINFREQUENCY"), longProperty(properties, "MAXFREQUENCY"),
+                longProperty(properties, "SAMPLEUNITSIZE") * longProperty(properties, "SAMPLEMAXUNITS"),
+                longProperty(properties, "SAMPLEUNITSIZE"), pinsProperty(properties, "EXTRATRIGGERPINS"));
+    }
+
+    private static int[] pinsProperty(Properties properties, String key) {
+        String value = properties.getProperty(key, "").strip();
+        try {
+            return value.isEmpty() ? new int[0]
+                    : Arrays.stream(value.split(",")).mapToInt(p -> Integer.parseInt(p.strip())).toArray();
+        } catch (NumberFormatException ex) {
+            throw new Failure("Probe definition " + key + " is not a list of pins: " + value, ex);
+        }
+    }
+
+    private static int intProperty(Properties properties, String key) {
+        return (int) longProperty(properties, key);
+    }
+
+    private static long longProperty(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new Failure("Probe definitions do not include " + key);
+        }
+        try {
+            return Long.parseLong(value.strip());
+        } catch (NumberFormatException ex) {
+            throw new Failure("Probe definition " + key + " is not a number: " + value, ex);
+        }
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//
+//  background function which keeps a cached list of the connected probes and
+//  informs listeners as probes arrive and are removed (hot-plug)
+//
+public class ProbeDiscovery implements Runnable {
+
+    private static final long SCAN_INTERVAL_MS = 500;
+
+    private ScheduledExecutorService service;
+    private volatile List<ProbePort> probes = Collections.emptyList();
+    private volatile boolean scanned = false;
+    private final List<DiscoveryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface DiscoveryListener {
+
+        void probesScanned(List<ProbePort> probes);
+
+        void probeArrived(ProbePort probe);
+
+        void probeRemoved(ProbePort probe);
+    }
+
+    public static class ProbePort {
+
+        public final String path;
+        public final String identity;
+
+        public ProbePort(String path, String identity) {
+            this.path = path;
+            this.identity = identity;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    public void addListener(DiscoveryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DiscoveryListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void start() {
+        if (service != null) {
+            return;
+        }
+        service = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "lafe-probe-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        service.scheduleWithFixedDelay(this, 0, SCAN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (service != null) {
+            service.shutdownNow();
+            service = null;
+        }
+    }
+
+    public boolean hasScanned() {
+        return scanned;
+    }
+
+    public List<ProbePort> getProbes() {
+        return probes;
+    }
+
+    public ProbePort findByIdentity(String identity) {
+        for (ProbePort probe : probes) {
+            if (identity != null && identity.equals(probe.identity)) {
+                return probe;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        ExecuteAndCatch.run(() -> scan());
+    }
+
+    private void scan() {
+        List<ProbePort> found = new ArrayList<>();
+        for (SerialPort port : USBSerialDevice.findPicoPorts()) {
+            found.add(new ProbePort(USBSerialDevice.pathOf(port), USBSerialDevice.identityOf(port)));
+        }
+        List<ProbePort> previous = probes;
+        probes = Collections.unmodifiableList(found);
+        scanned = true;
+        for (ProbePort probe : previous) {
+            if (!contains(found, probe)) {
+                listeners.forEach(l -> l.probeRemoved(probe));
+            }
+        }
+        for (ProbePort probe : found) {
+            if (!contains(previous, probe)) {
+                listeners.forEach(l -> l.probeArrived(probe));
+            }
+        }
+        listeners.forEach(l -> l.probesScanned(probes));
+    }
+
+    private boolean contains(List<ProbePort> list, ProbePort probe) {
+        for (ProbePort p : list) {
+            if (p.path.equals(probe.path) && p.identity.equals(probe.identity)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
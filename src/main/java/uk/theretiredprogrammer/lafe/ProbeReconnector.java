@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import javafx.application.Platform;
+import uk.theretiredprogrammer.lafe.ProbeDiscovery.ProbePort;
+
+//
+//  background state machine which resets the probe and then reconnects to it,
+//  matching the probe by its identity rather than by its /dev path (which
+//  can change when the probe re-enumerates after a reset). It runs on the
+//  probe session, so closing the session cancels it.
+//
+public class ProbeReconnector implements Runnable {
+
+    private static final long SETTLE_MS = 500;
+    private static final long INITIAL_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 4000;
+    private static final long GIVE_UP_MS = 30000;
+
+    private final Controller controller;
+    private final USBSerialDevice usbdevice;
+    private final ProbeDiscovery discovery;
+    private final ProbeSession session;
+    private Future<?> reconnecting;
+    private volatile boolean sendreset;
+    private volatile ReconnectState state = ReconnectState.STATE_CONNECTED;
+
+    public ProbeReconnector(Controller controller, USBSerialDevice usbdevice, ProbeDiscovery discovery,
+            ProbeSession session) {
+        this.controller = controller;
+        this.usbdevice = usbdevice;
+        this.discovery = discovery;
+        this.session = session;
+    }
+
+    public enum ReconnectState {
+        STATE_CONNECTED("Connected"),
+        STATE_RESETTING("Resetting"),
+        STATE_WAITING_FOR_PROBE("Waiting for probe"),
+        STATE_OPENING("Opening"),
+        STATE_VERIFYING("Verifying"),
+        STATE_FAILED("Reconnect failed");
+
+        private final String stringvalue;
+
+        ReconnectState(String stringvalue) {
+            this.stringvalue = stringvalue;
+        }
+
+        @Override
+        public String toString() {
+            return stringvalue;
+        }
+    }
+
+    public ReconnectState getState() {
+        return state;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return reconnecting != null && !reconnecting.isDone();
+    }
+
+    public synchronized void reset() {
+        startReconnect(true);
+    }
+
+    // the probe has been unplugged (or has otherwise gone away) - wait for it to return
+    public synchronized void reconnect() {
+        startReconnect(false);
+    }
+
+    private void startReconnect(boolean sendreset) {
+        if (isReconnecting()) {
+            return;
+        }
+        this.sendreset = sendreset;
+        reconnecting = session.submit(this);
+    }
+
+    public synchronized void cancel() {
+        if (isReconnecting()) {
+            reconnecting.cancel(true);
+        }
+    }
+
+    @Override
+    public void run() {
+        ExecuteAndCatch.run(() -> reconnectworker(), () -> setState(ReconnectState.STATE_FAILED));
+    }
+
+    private void reconnectworker() {
+        long starttime = System.nanoTime();
+        String identity = usbdevice.getIdentity();
+        String oldpath = usbdevice.getPath();
+        boolean removalseen = !sendreset;
+        if (sendreset) {
+            setState(ReconnectState.STATE_RESETTING);
+            usbdevice.resetAndClose();
+        } else {
+            usbdevice.close();
+        }
+        long backoff = INITIAL_BACKOFF_MS;
+        setState(ReconnectState.STATE_WAITING_FOR_PROBE);
+        try {
+            Thread.sleep(SETTLE_MS);
+            while (elapsedms(starttime) < GIVE_UP_MS) {
+                String path = matchProbe(discovery.getProbes(), identity);
+                if (path == null) {
+                    removalseen = true;
+                } else if (removalseen || !path.equals(oldpath) || backoff > INITIAL_BACKOFF_MS) {
+                    // the probe has re-enumerated (or has had time to do so) - try it
+                    if (tryConnect(path)) {
+                        long recoveryms = elapsedms(starttime);
+                        setState(ReconnectState.STATE_CONNECTED);
+                        controller.probeReconnected(recoveryms);
+                        return;
+                    }
+                    setState(ReconnectState.STATE_WAITING_FOR_PROBE);
+                }
+                Thread.sleep(jittered(backoff));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        } catch (InterruptedException ex) {
+            // cancelled - fall through to report the failure
+        }
+        setState(ReconnectState.STATE_FAILED);
+        controller.probeReconnectFailed(elapsedms(starttime));
+    }
+
+    private String matchProbe(List<ProbePort> probes, String identity) {
+        for (ProbePort probe : probes) {
+            if (identity != null && identity.equals(probe.identity)) {
+                return probe.path;
+            }
+        }
+        // identity unknown (or not reported by this OS) - accept a single probe
+        if (identity == null && probes.size() == 1) {
+            return probes.get(0).path;
+        }
+        return null;
+    }
+
+    private boolean tryConnect(String path) {
+        setState(ReconnectState.STATE_OPENING);
+        try {
+            usbdevice.reopen(path);
+        } catch (Failure ex) {
+            return false;
+        }
+        setState(ReconnectState.STATE_VERIFYING);
+        if (controller.verifyAndRestore()) {
+            return true;
+        }
+        usbdevice.close();
+        return false;
+    }
+
+    private long jittered(long backoff) {
+        // +/- 50% jitter so that several probes reset together do not retry in step
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    private long elapsedms(long starttime) {
+        return (System.nanoTime() - starttime) / 1000000;
+    }
+
+    private void setState(ReconnectState newstate) {
+        state = newstate;
+        Platform.runLater(() -> controller.reconnectStateChanged(newstate));
+    }
+}
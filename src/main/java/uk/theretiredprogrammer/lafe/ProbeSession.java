@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+//  everything which uses one connected probe - the device, its state
+//  watchdog, its reconnector and the background work (downloads, the self
+//  test, batches) - runs on the session's own executor, so that closing the
+//  session cancels all of it and waits (at most SHUTDOWN_MS, set by
+//  -Dlafe.session.shutdown.ms) for it to finish before the port is closed.
+//  No task can then be left polling or downloading on a closed port.
+//
+//  The executor's threads are daemons, created as work arrives and retired
+//  after IDLE_SECONDS without work, so an idle session holds no threads and
+//  sessions for several probes can be open at once.
+//
+public class ProbeSession implements Executor {
+
+    private static final int THREADS = 4; // the poller, a download, the exclusive work and the reconnector
+    private static final long IDLE_SECONDS = 30;
+    private static final long SHUTDOWN_MS = Long.getLong("lafe.session.shutdown.ms", 2000);
+    private static final AtomicInteger sessions = new AtomicInteger();
+
+    private final USBSerialDevice usbdevice;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ProbeStateWatchDog watchdog;
+    private final ProbeReconnector reconnector;
+    private volatile boolean closed = false;
+
+    public ProbeSession(Controller controller, USBSerialDevice usbdevice, ProbeDiscovery discovery) {
+        this.usbdevice = usbdevice;
+        String name = "lafe-session-" + sessions.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(THREADS, (r) -> {
+            Thread thread = new Thread(r, name + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(IDLE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        watchdog = new ProbeStateWatchDog(controller, usbdevice, executor);
+        reconnector = new ProbeReconnector(controller, usbdevice, discovery, this);
+    }
+
+    public USBSerialDevice getDevice() {
+        return usbdevice;
+    }
+
+    public ProbeStateWatchDog getWatchDog() {
+        return watchdog;
+    }
+
+    public ProbeReconnector getReconnector() {
+        return reconnector;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // runs work on the session - it is cancelled (interrupted) if the session closes first
+    @Override
+    public void execute(Runnable work) {
+        submit(work);
+    }
+
+    public Future<?> submit(Runnable work) {
+        try {
+            return executor.submit(work);
+        } catch (RejectedExecutionException ex) {
+            throw new Failure("The probe session on " + usbdevice.getPath() + " is closed", ex);
+        }
+    }
+
+    // cancels the session's work and closes the port once it has stopped - returns
+    // false if some work was still running after SHUTDOWN_MS (the port is closed anyway)
+    public boolean close() {
+        closed = true;
+        reconnector.cancel();
+        executor.shutdownNow(); // interrupts the running work, and drops the queued and scheduled work
+        boolean stopped;
+        try {
+            stopped = executor.awaitTermination(SHUTDOWN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            stopped = false;
+        }
+        usbdevice.close();
+        return stopped;
+    }
+}
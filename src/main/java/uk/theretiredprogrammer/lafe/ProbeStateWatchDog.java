@@ -16,38 +16,44 @@
 package uk.theretiredprogrammer.lafe;
 
 import java.io.IOException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import javafx.application.Platform;
 import static uk.theretiredprogrammer.lafe.ProbeStateWatchDog.ProbeState.STATE_SAMPLING_DONE;
 
 //
-//  background function which polls the probe for its state
+//  background function which polls the probe for its state - on the probe
+//  session's executor, so start and stop only schedule and cancel the poll
 //
 
 public class ProbeStateWatchDog implements Runnable {
 
     private final USBSerialDevice usbdevice;
-    private ScheduledExecutorService service;
+    private final ScheduledExecutorService service;
     private ScheduledFuture<?>  watchdogHandle;
     private final Controller controller;
     
-    public ProbeStateWatchDog(Controller controller, USBSerialDevice usbdevice) {
+    public ProbeStateWatchDog(Controller controller, USBSerialDevice usbdevice, ScheduledExecutorService service) {
         this.controller = controller;
         this.usbdevice = usbdevice;
+        this.service = service;
     }
     
-    public void start() {
-        service = Executors.newSingleThreadScheduledExecutor();
-        watchdogHandle = service.scheduleAtFixedRate(this, 0, 1, TimeUnit.SECONDS);
+    // polling never overlaps - a second start while polling is ignored
+    public synchronized void start() {
+        if (service.isShutdown() || (watchdogHandle != null && !watchdogHandle.isDone())) {
+            return;
+        }
+        watchdogHandle = service.scheduleWithFixedDelay(this, 0, 1, TimeUnit.SECONDS);
     }
     
-    public void stop() {
-        Runnable canceller = () -> watchdogHandle.cancel(false);
-        service.schedule(canceller, 0, TimeUnit.SECONDS);
-        service.shutdown();
+    // a poll in progress completes, but no other is started
+    public synchronized void stop() {
+        if (watchdogHandle != null) {
+            watchdogHandle.cancel(false);
+        }
     }
    
     @Override
@@ -59,7 +65,18 @@ public class ProbeStateWatchDog implements Runnable {
         return state;
     }
 
-    private ProbeState state = ProbeState.STATE_IDLE;
+    private volatile ProbeState state = ProbeState.STATE_IDLE;
+
+    // sampling has been restarted - so that its completion is seen even if it
+    // finishes between two polls
+    public void samplingStarted() {
+        state = ProbeState.STATE_SAMPLING;
+    }
+
+    // the probe has been used directly (the self test) - its buffer is not a user capture
+    public void samplingDoneElsewhere() {
+        state = ProbeState.STATE_SAMPLING_DONE;
+    }
     
     public enum ProbeState {
         STATE_IDLE(0, "Waiting to Sample"), STATE_SAMPLING(1, "Sampling"),
@@ -92,6 +109,30 @@ public class ProbeStateWatchDog implements Runnable {
         throw new IllegalProgramStateFailure("Unknow probestate numeric value during lookup: " + numericvalue);
     }
 
+    private static final long WAIT_POLL_MS = 20;
+
+    // for work which drives the probe directly while the watchdog is stopped:
+    // polls until sampling has completed - returns false on timeout or if cancelled
+    public static boolean waitForSamplingDone(USBSerialDevice usbdevice, long timeoutms, BooleanSupplier cancelled) {
+        long starttime = System.nanoTime();
+        int[] state = {-1};
+        while ((System.nanoTime() - starttime) / 1000000 < timeoutms && !cancelled.getAsBoolean()) {
+            usbdevice.sendCommandAndHandleResponse("?", (s) -> {
+                state[0] = Integer.parseInt(s.strip());
+                return true;
+            });
+            if (state[0] == STATE_SAMPLING_DONE.numericvalue()) {
+                return true;
+            }
+            try {
+                Thread.sleep(WAIT_POLL_MS);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
     public boolean pollForProbeState() {
         return usbdevice.sendCommandAndHandleResponse("?", (s) -> statusExpected(s));
     }
@@ -107,7 +148,7 @@ public class ProbeStateWatchDog implements Runnable {
     }
     
     private void changedProbeState(ProbeState oldstate, ProbeState newstate) {
-        Platform.runLater(() -> controller.probeStateChanged(newstate));
+        controller.probeStateChanged(newstate);
         if (newstate == STATE_SAMPLING_DONE) {
             Platform.runLater(() -> getAndDisplaySampleData());
         }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+//
+//  the byte stream connection to a probe - a real serial port, or a stand-in
+//  used when no probe is on the desk
+//
+public interface ProbeTransport extends Closeable {
+
+    public void open();
+
+    public boolean isOpen();
+
+    @Override
+    public void close();
+
+    public InputStream getInputStream();
+
+    public OutputStream getOutputStream();
+
+    public String getPath();
+
+    public String getIdentity();
+
+    public boolean supportsReconnect();
+}
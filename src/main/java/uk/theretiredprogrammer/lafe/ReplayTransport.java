@@ -0,0 +1,290 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+//
+//  a transport which replays a trace recorded by the TrafficRecorder.
+//
+//  Each command written is matched against the next recorded command (skipping
+//  forward if the recording contains commands not issued in this run, e.g. a
+//  user pressing Start) and the responses recorded after it are fed to the
+//  reader - either with the recorded delays (ORIGINAL) or immediately (FAST).
+//  Once the recording is exhausted every command is answered with N.
+//
+//  Select with -Dlafe.replay=<tracefile> [-Dlafe.replay.speed=ORIGINAL|FAST]
+//
+public class ReplayTransport implements ProbeTransport {
+
+    public enum ReplaySpeed {
+        ORIGINAL, FAST
+    }
+
+    private static final byte[] EXHAUSTED_RESPONSE = "N\n".getBytes();
+
+    private final File tracefile;
+    private final ReplaySpeed speed;
+    private final Consumer<String> oncompletion;
+    private final List<TraceRecord> records = new ArrayList<>();
+    private final Deque<PendingResponse> pending = new ArrayDeque<>();
+    private final ByteArrayOutputStream command = new ByteArrayOutputStream();
+    private int cursor = 0;
+    private boolean open = false;
+    private boolean completed = false;
+    private int mismatches = 0;
+    private long bytesreplayed = 0;
+    private long replaystart;
+
+    public ReplayTransport(File tracefile, ReplaySpeed speed, Consumer<String> oncompletion) {
+        this.tracefile = tracefile;
+        this.speed = speed;
+        this.oncompletion = oncompletion;
+    }
+
+    private static class TraceRecord {
+
+        final long timestamp;
+        final byte direction;
+        final byte[] payload;
+
+        TraceRecord(long timestamp, byte direction, byte[] payload) {
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.payload = payload;
+        }
+    }
+
+    private static class PendingResponse {
+
+        final long due;
+        final byte[] payload;
+        int offset = 0;
+
+        PendingResponse(long due, byte[] payload) {
+            this.due = due;
+            this.payload = payload;
+        }
+    }
+
+    private static List<TraceRecord> load(File tracefile) {
+        List<TraceRecord> records = new ArrayList<>();
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tracefile)))) {
+            byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TrafficRecorder.MAGIC)) {
+                throw new Failure("Not a trace file: " + tracefile);
+            }
+            in.readLong(); // recording start time
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch (EOFException ex) {
+                    break;
+                }
+                byte direction = in.readByte();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                records.add(new TraceRecord(timestamp, direction, payload));
+            }
+        } catch (EOFException ex) {
+            // a truncated final record (recording stopped mid write) - ignore it
+        } catch (IOException ex) {
+            throw new Failure("Cannot read trace file " + tracefile, ex);
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized void open() {
+        records.clear();
+        records.addAll(load(tracefile));
+        cursor = 0;
+        open = true;
+        replaystart = System.nanoTime();
+        // anything the probe sent before the first command
+        releaseResponses(replaystart, firstTimestamp());
+    }
+
+    private long firstTimestamp() {
+        return records.isEmpty() ? 0 : records.get(0).timestamp;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        notifyAll();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return readbyte();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writebyte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writebytes(b, off, len);
+            }
+        };
+    }
+
+    @Override
+    public String getPath() {
+        return tracefile.getPath();
+    }
+
+    @Override
+    public String getIdentity() {
+        return "REPLAY:" + tracefile.getName();
+    }
+
+    @Override
+    public boolean supportsReconnect() {
+        return false;
+    }
+
+    private synchronized void writebyte(int b) throws IOException {
+        if (!open) {
+            throw new IOException("Replay transport closed");
+        }
+        command.write(b);
+        if (b == '\n' || (b == '!' && command.size() == 1)) {
+            commandWritten(command.toByteArray());
+            command.reset();
+        }
+    }
+
+    // a multi-byte write is a complete command line
+    private synchronized void writebytes(byte[] b, int off, int len) throws IOException {
+        if (!open) {
+            throw new IOException("Replay transport closed");
+        }
+        command.write(b, off, len);
+        if (len > 0 && b[off + len - 1] == '\n') {
+            commandWritten(command.toByteArray());
+            command.reset();
+        }
+    }
+
+    private void commandWritten(byte[] written) {
+        long now = System.nanoTime();
+        int match = findRecordedCommand(written);
+        if (match < 0) {
+            if (cursor < records.size()) {
+                mismatches++;
+            }
+            pending.add(new PendingResponse(now, EXHAUSTED_RESPONSE));
+            if (cursor >= records.size()) {
+                replayCompleted();
+            }
+        } else {
+            cursor = match + 1;
+            releaseResponses(now, records.get(match).timestamp);
+        }
+        notifyAll();
+    }
+
+    private int findRecordedCommand(byte[] written) {
+        for (int i = cursor; i < records.size(); i++) {
+            TraceRecord record = records.get(i);
+            if (record.direction == TrafficRecorder.TX && Arrays.equals(record.payload, written)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // queue the responses recorded after the command, up to the next recorded command
+    private void releaseResponses(long now, long commandtimestamp) {
+        while (cursor < records.size() && records.get(cursor).direction == TrafficRecorder.RX) {
+            TraceRecord record = records.get(cursor++);
+            long due = speed == ReplaySpeed.FAST ? now : now + (record.timestamp - commandtimestamp);
+            pending.add(new PendingResponse(due, record.payload));
+            bytesreplayed += record.payload.length;
+        }
+    }
+
+    private void replayCompleted() {
+        if (!completed) {
+            completed = true;
+            long elapsedms = (System.nanoTime() - replaystart) / 1000000;
+            String message = "Replay complete: " + bytesreplayed + " bytes in " + elapsedms + " ms"
+                    + (elapsedms > 0 ? String.format(" (%.1f kB/s)", (double) bytesreplayed / elapsedms) : "")
+                    + (mismatches > 0 ? ", " + mismatches + " unmatched commands" : "");
+            oncompletion.accept(message);
+        }
+    }
+
+    private synchronized int readbyte() throws IOException {
+        try {
+            while (true) {
+                if (!open) {
+                    return -1;
+                }
+                PendingResponse response = pending.peekFirst();
+                if (response == null) {
+                    wait();
+                    continue;
+                }
+                long delay = response.due - System.nanoTime();
+                if (delay > 0) {
+                    wait(delay / 1000000, (int) (delay % 1000000));
+                    continue;
+                }
+                int b = response.payload[response.offset++] & 0xff;
+                if (response.offset == response.payload.length) {
+                    pending.removeFirst();
+                }
+                return b;
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Replay read interrupted", ex);
+        }
+    }
+}
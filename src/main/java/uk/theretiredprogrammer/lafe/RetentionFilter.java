@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//
+//  a predicate over one pin of a capture, deciding whether the capture is
+//  worth keeping:
+//
+//      pulse(17) < 2us             a pulse (high or low, between two edges)
+//      pulse(17, high) > 1.5ms     a high (or low) pulse
+//      edges(17) >= 100            the number of edges
+//      uart(17, 115200) == 0x7E    a byte received (8N1, idle high, lsb first)
+//
+//  Comparisons are <, <=, >, >=, == and !=. Durations take a unit of s, ms,
+//  us (or µs) or ns; without a unit they are in samples.
+//
+//  A filter only looks at its own pin, so it can be evaluated as soon as
+//  that pin is decoded, and stops at the first match.
+//
+public class RetentionFilter {
+
+    private enum Kind {
+        PULSE, EDGES, UART
+    }
+
+    private static final Pattern SYNTAX = Pattern.compile(
+            "\\s*(pulse|edges|uart)\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(\\w+)\\s*)?\\)\\s*(<=|>=|==|!=|<|>)\\s*(\\S+)\\s*");
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d*)?)\\s*(s|ms|us|µs|ns)?");
+
+    public final String expression;
+    private final Kind kind;
+    private final int pin;
+    private final Boolean level; // a pulse of either level if null
+    private final long baud;
+    private final String comparison;
+    private final long value;
+    private final boolean nanos; // value is a duration in nanoseconds, rather than samples
+
+    private RetentionFilter(String expression, Kind kind, int pin, Boolean level, long baud, String comparison,
+            long value, boolean nanos) {
+        this.expression = expression;
+        this.kind = kind;
+        this.pin = pin;
+        this.level = level;
+        this.baud = baud;
+        this.comparison = comparison;
+        this.value = value;
+        this.nanos = nanos;
+    }
+
+    public static RetentionFilter parse(String expression) {
+        String text = expression.strip();
+        Matcher matcher = SYNTAX.matcher(text.toLowerCase());
+        if (!matcher.matches()) {
+            throw new Failure("Retention filter must be pulse(pin[, high|low]), edges(pin) or uart(pin, baud)"
+                    + " compared with a value: " + text);
+        }
+        Kind kind = Kind.valueOf(matcher.group(1).toUpperCase());
+        int pin = Integer.parseInt(matcher.group(2));
+        String argument = matcher.group(3);
+        String comparison = matcher.group(4);
+        String operand = matcher.group(5);
+        switch (kind) {
+            case PULSE:
+                Boolean level = null;
+                if (argument != null) {
+                    if (!argument.equals("high") && !argument.equals("low")) {
+                        throw new Failure("Pulse level must be high or low: " + text);
+                    }
+                    level = argument.equals("high");
+                }
+                Matcher duration = DURATION.matcher(operand);
+                if (!duration.matches()) {
+                    throw new Failure("Pulse width must be a number with an optional unit (s, ms, us or ns): " + text);
+                }
+                String unit = duration.group(2);
+                if (unit == null) {
+                    return new RetentionFilter(text, kind, pin, level, 0, comparison, parseWhole(duration.group(1), text), false);
+                }
+                double multiplier = switch (unit) {
+                    case "s" ->
+                        1e9;
+                    case "ms" ->
+                        1e6;
+                    case "ns" ->
+                        1;
+                    default ->
+                        1e3;
+                };
+                return new RetentionFilter(text, kind, pin, level, 0, comparison,
+                        Math.round(Double.parseDouble(duration.group(1)) * multiplier), true);
+            case EDGES:
+                if (argument != null) {
+                    throw new Failure("edges takes only a pin: " + text);
+                }
+                return new RetentionFilter(text, kind, pin, null, 0, comparison, parseWhole(operand, text), false);
+            default:
+                if (argument == null) {
+                    throw new Failure("uart needs a pin and a baud rate: " + text);
+                }
+                long baud = parseWhole(argument, text);
+                long value = operand.startsWith("0x") ? parseHex(operand.substring(2), text) : parseWhole(operand, text);
+                if (baud <= 0 || value > 0xFF) {
+                    throw new Failure("uart needs a positive baud rate and a byte value: " + text);
+                }
+                return new RetentionFilter(text, kind, pin, null, baud, comparison, value, false);
+        }
+    }
+
+    private static long parseWhole(String number, String text) {
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException ex) {
+            throw new Failure("Not a whole number: " + number + " in " + text, ex);
+        }
+    }
+
+    private static long parseHex(String number, String text) {
+        try {
+            return Long.parseLong(number, 16);
+        } catch (NumberFormatException ex) {
+            throw new Failure("Not a hex number: " + number + " in " + text, ex);
+        }
+    }
+
+    public int getPin() {
+        return pin;
+    }
+
+    // the pins which the filters look at
+    public static Set<Integer> getPins(Collection<RetentionFilter> filters) {
+        Set<Integer> pins = new LinkedHashSet<>();
+        filters.forEach(f -> pins.add(f.pin));
+        return pins;
+    }
+
+    // true if any filter matches - filters on pins which were not sampled are ignored,
+    // and if none can be evaluated the capture is kept
+    public static boolean anyMatches(Collection<RetentionFilter> filters, Map<Integer, PinSamples> samples,
+            long samplerate) {
+        TimeBase timebase = new TimeBase(samplerate);
+        boolean evaluated = false;
+        for (RetentionFilter filter : filters) {
+            PinSamples pinsamples = samples.get(filter.pin);
+            if (pinsamples != null) {
+                if (filter.matches(pinsamples, timebase)) {
+                    return true;
+                }
+                evaluated = true;
+            }
+        }
+        return !evaluated;
+    }
+
+    public boolean matches(PinSamples samples, TimeBase timebase) {
+        return switch (kind) {
+            case PULSE ->
+                matchesPulse(samples, timebase);
+            case EDGES ->
+                compare(samples.edgeCount());
+            default ->
+                !UartDecoder.decode(samples, timebase.getSampleRate(), baud, (from, to, data) -> !compare(data));
+        };
+    }
+
+    private boolean matchesPulse(PinSamples samples, TimeBase timebase) {
+        long size = samples.size();
+        long start = samples.nextEdge(0);
+        while (start < size) {
+            long end = samples.nextEdge(start);
+            if (end >= size) {
+                return false; // the last level is not a complete pulse
+            }
+            if (level == null || samples.levelAt(start) == level) {
+                long width = end - start;
+                if (compare(nanos ? timebase.nanosAt(width) : width)) {
+                    return true;
+                }
+            }
+            start = end;
+        }
+        return false;
+    }
+
+    private boolean compare(long actual) {
+        return switch (comparison) {
+            case "<" ->
+                actual < value;
+            case "<=" ->
+                actual <= value;
+            case ">" ->
+                actual > value;
+            case ">=" ->
+                actual >= value;
+            case "==" ->
+                actual == value;
+            default ->
+                actual != value;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.List;
+
+//
+//  decodes the RLE text downloaded from the probe for one pin, e.g. "H3L12H"
+//
+public class RleDecoder {
+
+    public static PinSamples decode(int pin, List<String> lines, long expectedsize) {
+        LafeEvents.DecodeEvent event = new LafeEvents.DecodeEvent();
+        event.begin();
+        PinSamplesBuilder builder = new PinSamplesBuilder(expectedsize);
+        lines.forEach(line -> decodeline(line, builder));
+        PinSamples samples = builder.build();
+        event.pin = pin;
+        event.samples = samples.size();
+        event.commit();
+        return samples;
+    }
+
+    private static void decodeline(String line, PinSamplesBuilder builder) {
+        long count = 0;
+        for (int cptr = 0; cptr < line.length(); cptr++) {
+            char c = line.charAt(cptr);
+            switch (c) {
+                case 'H' -> {
+                    builder.append(true, count == 0 ? 1 : count);
+                    count = 0;
+                }
+                case 'L' -> {
+                    builder.append(false, count == 0 ? 1 : count);
+                    count = 0;
+                }
+                default -> {
+                    if (c < '0' || c > '9') {
+                        throw new Failure("Badly encoded RLE data: " + c);
+                    }
+                    count = count * 10 + (c - '0');
+                }
+            }
+        }
+        if (count != 0) {
+            throw new Failure("Badly encoded RLE data: count without level at end of line");
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import javafx.application.Platform;
+import uk.theretiredprogrammer.lafe.ProbeConfiguration.SampleEndMode;
+
+//
+//  downloads the samples of a completed capture, piece by piece: each piece
+//  is one pin over one window of the probe buffer (r-<start>-<count>-<pin>).
+//
+//  With the EVENTINWINDOW1..4 end modes the probe buffer is treated as four
+//  windows, and sampling ends once the event falls in the selected window;
+//  other end modes treat the whole buffer as a single window.
+//
+//  The pins visible in the viewport are downloaded first (over the event
+//  window) and shown at once. The remaining pieces are then downloaded in the
+//  background - visible pins first, then nearest the viewport. With
+//  -Dlafe.download.rest=ONSCROLL a piece is only downloaded once the user
+//  scrolls to it.
+//
+//  Retention filters may first download the whole of the pins they look at
+//  (retrievePins), and those pieces are not downloaded again.
+//
+//  Probes which refuse the range command download the whole buffer in one
+//  command (d).
+//
+public class SampleRetriever {
+
+    public enum RestMode {
+        BACKGROUND, ONSCROLL
+    }
+
+    private static final int EVENT_WINDOWS = 4;
+    private static final long ONSCROLL_POLL_MS = 500;
+    private static final RestMode restmode = RestMode.valueOf(System.getProperty("lafe.download.rest", "BACKGROUND").toUpperCase());
+
+    private final Controller controller;
+    private final USBSerialDevice usbdevice;
+    private final ProbeConfiguration config;
+    private final long samplesize;
+    private final int[] pins;
+    private final int windows;
+    private final int eventwindow;
+    private final long[] windowstarts;
+    private final PinSamples[][] pieces; // [window][pin index], null until downloaded
+    private Capture capture;
+    private volatile boolean cancelled = false;
+    private long viewfrom;
+    private long viewto;
+    private int firstrow;
+    private int rows;
+
+    public SampleRetriever(Controller controller, USBSerialDevice usbdevice, ProbeConfiguration config) {
+        this.controller = controller;
+        this.usbdevice = usbdevice;
+        this.config = config;
+        this.samplesize = config.samplesize.get();
+        pins = new int[config.pins.get()];
+        for (int i = 0; i < pins.length; i++) {
+            pins[i] = config.firstpin.get() + i;
+        }
+        SampleEndMode endmode = config.sampleendmode.get();
+        if (samplesize >= EVENT_WINDOWS && endmode.ordinal() >= SampleEndMode.EVENTINWINDOW1.ordinal()) {
+            windows = EVENT_WINDOWS;
+            eventwindow = endmode.ordinal() - SampleEndMode.EVENTINWINDOW1.ordinal();
+        } else {
+            windows = 1;
+            eventwindow = 0;
+        }
+        windowstarts = new long[windows + 1];
+        for (int i = 0; i < windows; i++) {
+            windowstarts[i] = samplesize / windows * i;
+        }
+        windowstarts[windows] = samplesize;
+        pieces = new PinSamples[windows][pins.length];
+        viewfrom = windowstarts[eventwindow];
+        viewto = windowstarts[eventwindow + 1];
+        rows = pins.length;
+    }
+
+    public Capture getCapture() {
+        return capture;
+    }
+
+    // downloads the visible pins of the event window (or the whole buffer) and creates the capture
+    public boolean retrieveFirst() {
+        if (windowSize(eventwindow) > 0) {
+            boolean rangesupported = true;
+            for (int p = firstrow; p < Math.min(pins.length, firstrow + rows) && rangesupported; p++) {
+                if (pieces[eventwindow][p] == null) {
+                    rangesupported = downloadPiece(eventwindow, p);
+                }
+            }
+            if (rangesupported) {
+                Map<Integer, PinSamples> samples = assemble();
+                capture = new Capture(config, samples);
+                capture.setSamples(samples, pendingRanges());
+                return true;
+            }
+            // the probe does not support range downloads
+        }
+        return retrieveAll();
+    }
+
+    // downloads the whole buffer in a single command and creates the capture -
+    // the fewest round trips, when every sample is wanted at once. If the probe
+    // refuses the command, the capture holds whatever was received and the rest
+    // is pending, so that it is not taken as complete
+    public boolean retrieveAll() {
+        Map<Integer, PinSamples> samples = download("d", samplesize);
+        if (samples != null) {
+            capture = new Capture(config, samples);
+            return true;
+        }
+        Map<Integer, PinSamples> received = new LinkedHashMap<>();
+        Map<Integer, long[]> pending = new LinkedHashMap<>();
+        for (int pin : pins) {
+            PinSamples pinsamples = lastdownload.get(pin);
+            long size = pinsamples == null ? 0 : pinsamples.size();
+            if (size >= samplesize) {
+                received.put(pin, pinsamples);
+            } else {
+                received.put(pin, size == 0 ? placeholder(samplesize)
+                        : new SegmentedPinSamples(List.of(pinsamples, placeholder(samplesize - size))));
+                pending.put(pin, new long[]{size, samplesize});
+            }
+        }
+        capture = new Capture(config, received);
+        capture.setSamples(received, pending);
+        return false;
+    }
+
+    // downloads every window of the wanted pins, ahead of the capture being created, so that
+    // they can be looked at before anything else is downloaded - returns their samples (only
+    // some of them if cancelled), or null if the probe does not support range downloads
+    public Map<Integer, PinSamples> retrievePins(Set<Integer> wanted) {
+        Map<Integer, PinSamples> samples = new LinkedHashMap<>();
+        for (int p = 0; p < pins.length; p++) {
+            if (!wanted.contains(pins[p])) {
+                continue;
+            }
+            List<PinSamples> segments = new ArrayList<>();
+            for (int w = 0; w < windows && !cancelled; w++) {
+                if (windowSize(w) > 0) {
+                    if (pieces[w][p] == null && !downloadPiece(w, p)) {
+                        return null;
+                    }
+                    segments.add(pieces[w][p]);
+                }
+            }
+            if (!segments.isEmpty()) {
+                samples.put(pins[p], segments.size() == 1 ? segments.get(0) : new SegmentedPinSamples(segments));
+            }
+        }
+        return samples;
+    }
+
+    // download the remaining pieces in the background - on the probe session, which
+    // cancels the download if it is closed
+    public void retrieveRest(Executor background) {
+        background.execute(() -> ExecuteAndCatch.run(() -> retrieveRestworker()));
+    }
+
+    private void retrieveRestworker() {
+        try {
+            while (!cancelled) {
+                int[] next = nextPiece();
+                if (next == null) {
+                    if (capture.isComplete()) {
+                        break;
+                    }
+                    waitForViewport();
+                    continue;
+                }
+                if (!downloadPiece(next[0], next[1]) || cancelled) {
+                    break;
+                }
+                capture.setSamples(assemble(), pendingRanges());
+                controller.samplesRetrieved(this);
+            }
+        } finally {
+            Platform.runLater(() -> controller.retrievalFinished(this));
+        }
+    }
+
+    // the probe buffer is about to be overwritten, or the application is closing
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // the samples and pin rows currently shown - used to choose the next piece to download
+    public synchronized void viewportChanged(long from, long to, int firstrow, int rows) {
+        viewfrom = from;
+        viewto = to;
+        this.firstrow = Math.max(0, firstrow);
+        this.rows = rows;
+        notifyAll();
+    }
+
+    private synchronized void waitForViewport() {
+        try {
+            wait(ONSCROLL_POLL_MS);
+        } catch (InterruptedException ex) {
+            cancelled = true;
+        }
+    }
+
+    // the undownloaded piece with the highest priority (null if none is wanted yet):
+    // visible pins first, then the window nearest the viewport
+    private synchronized int[] nextPiece() {
+        int[] next = null;
+        long best = Long.MAX_VALUE;
+        for (int w = 0; w < windows; w++) {
+            if (windowSize(w) == 0) {
+                continue;
+            }
+            long distance = viewto <= windowstarts[w] ? windowstarts[w] - viewto + 1
+                    : viewfrom >= windowstarts[w + 1] ? viewfrom - windowstarts[w + 1] + 1 : 0;
+            for (int p = 0; p < pins.length; p++) {
+                if (pieces[w][p] != null) {
+                    continue;
+                }
+                boolean visible = p >= firstrow && p < firstrow + rows;
+                if (restmode == RestMode.ONSCROLL && (distance > 0 || !visible)) {
+                    continue;
+                }
+                long priority = visible ? distance : samplesize + distance;
+                if (priority < best) {
+                    best = priority;
+                    next = new int[]{w, p};
+                }
+            }
+        }
+        return next;
+    }
+
+    // returns false if the probe refused the command
+    private boolean downloadPiece(int window, int pinindex) {
+        Map<Integer, PinSamples> samples = download(rangeCommand(window, pins[pinindex]), windowSize(window));
+        if (samples == null || !samples.containsKey(pins[pinindex])) {
+            return false;
+        }
+        pieces[window][pinindex] = samples.get(pins[pinindex]);
+        return true;
+    }
+
+    private long windowSize(int window) {
+        return windowstarts[window + 1] - windowstarts[window];
+    }
+
+    private String rangeCommand(int window, int pin) {
+        return "r-" + windowstarts[window] + "-" + windowSize(window) + "-" + pin;
+    }
+
+    // each pin's samples as the downloaded pieces, with constant placeholders for the others
+    private Map<Integer, PinSamples> assemble() {
+        Map<Integer, PinSamples> samples = new LinkedHashMap<>();
+        for (int p = 0; p < pins.length; p++) {
+            List<PinSamples> segments = new ArrayList<>();
+            for (int w = 0; w < windows; w++) {
+                if (pieces[w][p] != null) {
+                    segments.add(pieces[w][p]);
+                } else if (windowSize(w) > 0) {
+                    segments.add(placeholder(windowSize(w)));
+                }
+            }
+            samples.put(pins[p], segments.size() == 1 ? segments.get(0) : new SegmentedPinSamples(segments));
+        }
+        return samples;
+    }
+
+    private PinSamples placeholder(long size) {
+        PinSamplesBuilder builder = new PinSamplesBuilder(size);
+        builder.append(false, size);
+        return builder.build();
+    }
+
+    private Map<Integer, long[]> pendingRanges() {
+        Map<Integer, long[]> pending = new LinkedHashMap<>();
+        for (int p = 0; p < pins.length; p++) {
+            long[] ranges = new long[2 * windows];
+            int count = 0;
+            for (int w = 0; w < windows; w++) {
+                if (pieces[w][p] == null && windowSize(w) > 0) {
+                    if (count > 0 && ranges[count - 1] == windowstarts[w]) {
+                        ranges[count - 1] = windowstarts[w + 1];
+                    } else {
+                        ranges[count++] = windowstarts[w];
+                        ranges[count++] = windowstarts[w + 1];
+                    }
+                }
+            }
+            if (count > 0) {
+                pending.put(pins[p], Arrays.copyOf(ranges, count));
+            }
+        }
+        return pending;
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  a single download command and its response
+    //
+    // -------------------------------------------------------------------------
+    private DecodePipeline decodepipeline;
+    private int currentpinsample = 0;
+    private List<String> currentpinlines;
+    private Map<Integer, PinSamples> lastdownload;
+
+    // returns null if the probe refused the command (lastdownload holds whatever was received)
+    private Map<Integer, PinSamples> download(String command, long expectedsize) {
+        decodepipeline = new DecodePipeline(expectedsize);
+        currentpinlines = null;
+        LafeEvents.DownloadEvent event = new LafeEvents.DownloadEvent();
+        event.begin();
+        long starttime = System.nanoTime();
+        long receivedbefore = Metrics.totalBytesReceived();
+        boolean res;
+        try {
+            res = usbdevice.sendCommandAndHandleResponse(command, (s) -> sampleExpected(s));
+        } catch (RuntimeException ex) {
+            decodepipeline.cancel();
+            throw ex;
+        }
+        submitCurrentPin();
+        Metrics.duration(Metrics.DOWNLOAD, System.nanoTime() - starttime);
+        event.pins = decodepipeline.pins();
+        event.bytesreceived = Metrics.totalBytesReceived() - receivedbefore;
+        event.commit();
+        lastdownload = decodepipeline.complete();
+        return res ? lastdownload : null;
+    }
+
+    private boolean sampleExpected(String responseline) {
+        if (responseline.startsWith("#")) {
+            submitCurrentPin();
+            currentpinsample = Integer.parseUnsignedInt(responseline.substring(2));
+            currentpinlines = new ArrayList<>();
+        } else if (currentpinlines != null) {
+            currentpinlines.add(responseline);
+        }
+        return true;
+    }
+
+    private void submitCurrentPin() {
+        if (currentpinlines != null) {
+            decodepipeline.submit(currentpinsample, currentpinlines);
+            currentpinlines = null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+//
+//  pin samples made of consecutive segments (each a transition list or a
+//  bitset) - used for captures longer than a single block, or merged from
+//  repeated or segmented runs, so no array is ever sized to the whole capture
+//
+public class SegmentedPinSamples implements PinSamples {
+
+    private final PinSamples[] segments;
+    private final long[] bases;
+    private final long size;
+
+    public SegmentedPinSamples(List<PinSamples> segments) {
+        this.segments = segments.toArray(new PinSamples[0]);
+        this.bases = new long[this.segments.length];
+        long base = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            bases[i] = base;
+            base += this.segments[i].size();
+        }
+        this.size = base;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private int segmentOf(long sample) {
+        int index = Arrays.binarySearch(bases, sample);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // true if there is an edge at the start of segment i (i > 0)
+    private boolean boundaryEdge(int i) {
+        PinSamples previous = segments[i - 1];
+        return previous.levelAt(previous.size() - 1) != segments[i].initialLevel();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean initialLevel() {
+        return segments.length > 0 && segments[0].initialLevel();
+    }
+
+    @Override
+    public boolean levelAt(long sample) {
+        int i = segmentOf(sample);
+        return segments[i].levelAt(sample - bases[i]);
+    }
+
+    @Override
+    public long nextEdge(long from) {
+        if (from + 1 >= size) {
+            return size;
+        }
+        int i = Math.max(0, segmentOf(from));
+        long edge = segments[i].nextEdge(from - bases[i]);
+        if (edge < segments[i].size()) {
+            return bases[i] + edge;
+        }
+        for (int j = i + 1; j < segments.length; j++) {
+            if (boundaryEdge(j)) {
+                return bases[j];
+            }
+            edge = segments[j].nextEdge(0);
+            if (edge < segments[j].size()) {
+                return bases[j] + edge;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long edgeCount() {
+        return edgeCount(0, size);
+    }
+
+    @Override
+    public long edgeCount(long from, long to) {
+        long count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            long base = bases[i];
+            long end = base + segments[i].size();
+            if (end <= from || base >= to) {
+                continue;
+            }
+            count += segments[i].edgeCount(from - base, to - base);
+            if (i > 0 && base > from && base < to && boundaryEdge(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long highCount(long from, long to) {
+        long count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            long base = bases[i];
+            long end = base + segments[i].size();
+            if (end > from && base < to) {
+                count += segments[i].highCount(from - base, to - base);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void forEachEdge(LongConsumer action) {
+        for (int i = 0; i < segments.length; i++) {
+            long base = bases[i];
+            if (i > 0 && boundaryEdge(i)) {
+                action.accept(base);
+            }
+            segments[i].forEachEdge(edge -> action.accept(base + edge));
+        }
+    }
+
+    @Override
+    public long memoryBytes() {
+        long bytes = 48 + 16L * segments.length;
+        for (PinSamples segment : segments) {
+            bytes += segment.memoryBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(SEGMENTED);
+        out.writeInt(segments.length);
+        for (PinSamples segment : segments) {
+            segment.write(out);
+        }
+    }
+
+    static SegmentedPinSamples read(DataInputStream in) throws IOException {
+        PinSamples[] segments = new PinSamples[in.readInt()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = PinSamples.read(in);
+        }
+        return new SegmentedPinSamples(Arrays.asList(segments));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import uk.theretiredprogrammer.lafe.ProbeConfiguration.HzUnits;
+import uk.theretiredprogrammer.lafe.ProbeConfiguration.SampleEndMode;
+
+//
+//  self test - sweeps the sample rate across the probe's range (1-2-5 steps,
+//  from the larger of MIN_RATE and MINFREQUENCY up to MAXFREQUENCY), with the
+//  square wave generator running at a tenth of the sample rate. The generator
+//  pin itself is sampled; at each step the measured period is checked against
+//  the expected one, and the download throughput and the end to end latency
+//  (arm to decoded capture) are recorded.
+//
+//  The watchdog must be stopped while the sweep runs, as it drives the probe
+//  directly.
+//
+public class SelfTestSweep {
+
+    private static final long MIN_RATE = 1000;
+    private static final int OVERSAMPLE = 10;
+    private static final long MIN_SAMPLES = 2000;
+    private static final long MAX_SAMPLES = 16000;
+    private static final double TOLERANCE = 0.02;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final Controller controller;
+    private final USBSerialDevice usbdevice;
+    private final ProbeDefinitions definitions;
+    private final int pin;
+    private final Consumer<String> report;
+    private volatile boolean cancelled = false;
+
+    public SelfTestSweep(Controller controller, USBSerialDevice usbdevice, ProbeDefinitions definitions, int pin,
+            Consumer<String> report) {
+        this.controller = controller;
+        this.usbdevice = usbdevice;
+        this.definitions = definitions;
+        this.pin = pin;
+        this.report = report;
+    }
+
+    public static class StepResult {
+
+        public final long samplerate;
+        public final long frequency;
+        public final double expectedperiod;
+        public final double measuredperiod;
+        public final long maxdeviation;
+        public final boolean passed;
+        public final double downloadkbps;
+        public final long latencyms;
+
+        StepResult(long samplerate, long frequency, double expectedperiod, double measuredperiod, long maxdeviation,
+                boolean passed, double downloadkbps, long latencyms) {
+            this.samplerate = samplerate;
+            this.frequency = frequency;
+            this.expectedperiod = expectedperiod;
+            this.measuredperiod = measuredperiod;
+            this.maxdeviation = maxdeviation;
+            this.passed = passed;
+            this.downloadkbps = downloadkbps;
+            this.latencyms = latencyms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%12d %10d %10.2f %10.2f %8d %6s %10.1f %10d", samplerate, frequency, expectedperiod,
+                    measuredperiod, maxdeviation, passed ? "pass" : "FAIL", downloadkbps, latencyms);
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public List<StepResult> run() {
+        List<StepResult> results = new ArrayList<>();
+        report.accept("Self test of " + definitions.probename + " sampling pin " + pin);
+        report.accept(String.format("%12s %10s %10s %10s %8s %6s %10s %10s", "rate Hz", "wave Hz", "expected",
+                "measured", "maxdev", "result", "dl kB/s", "latency ms"));
+        try {
+            for (long rate : rates()) {
+                if (cancelled) {
+                    report.accept("Self test cancelled");
+                    break;
+                }
+                StepResult result = step(rate);
+                results.add(result);
+                report.accept(result.toString());
+            }
+        } finally {
+            usbdevice.sendCommandAndHandleResponse(squareWaveConfiguration(1).getSquareWaveCommand("w", false), (s) -> false);
+        }
+        report.accept(summary(results));
+        return results;
+    }
+
+    private List<Long> rates() {
+        List<Long> rates = new ArrayList<>();
+        long first = Math.max(MIN_RATE, definitions.minFrequence * OVERSAMPLE);
+        for (long decade = 1; decade <= definitions.maxFrequency; decade *= 10) {
+            for (long step : new long[]{1, 2, 5}) {
+                long rate = decade * step;
+                if (rate >= first && rate <= definitions.maxFrequency) {
+                    rates.add(rate);
+                }
+            }
+        }
+        if (rates.isEmpty() || rates.get(rates.size() - 1) != definitions.maxFrequency) {
+            rates.add(definitions.maxFrequency);
+        }
+        return rates;
+    }
+
+    private ProbeConfiguration squareWaveConfiguration(long frequency) {
+        ProbeConfiguration config = new ProbeConfiguration();
+        config.sqw_firstpin.set(pin);
+        config.sqw_speed.set((int) frequency);
+        config.sqw_speedunit.set(HzUnits.HZ);
+        return config;
+    }
+
+    private ProbeConfiguration samplingConfiguration(long rate) {
+        ProbeConfiguration config = new ProbeConfiguration();
+        config.firstpin.set(pin);
+        config.pins.set(1);
+        config.speed.set((int) rate);
+        config.speedunit.set(HzUnits.HZ);
+        config.speedmultiplier.set(1);
+        config.st_enabled.set(false);
+        config.et_enabled.set(false);
+        config.sampleendmode.set(SampleEndMode.BUFFERFULL);
+        config.samplesize.set(Math.min(definitions.maxSamplesize, Math.max(MIN_SAMPLES, Math.min(MAX_SAMPLES, rate / 10))));
+        return config;
+    }
+
+    private StepResult step(long rate) {
+        long frequency = Math.max(1, rate / OVERSAMPLE);
+        double expectedperiod = (double) rate / frequency;
+        ProbeConfiguration config = samplingConfiguration(rate);
+        if (!usbdevice.sendCommandAndHandleResponse(squareWaveConfiguration(frequency).getSquareWaveCommand("w", true), (s) -> false)) {
+            return failed(rate, frequency, expectedperiod);
+        }
+        long armtime = System.nanoTime();
+        if (!usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> false) || !waitForSamplingDone()) {
+            return failed(rate, frequency, expectedperiod);
+        }
+        long downloadstart = System.nanoTime();
+        long receivedbefore = Metrics.totalBytesReceived();
+        SampleRetriever retriever = new SampleRetriever(controller, usbdevice, config);
+        boolean downloaded = retriever.retrieveFirst();
+        long endtime = System.nanoTime();
+        double downloadkbps = (Metrics.totalBytesReceived() - receivedbefore) / ((endtime - downloadstart) / 1e9) / 1000;
+        long latencyms = (endtime - armtime) / 1000000;
+        PinSamples samples = retriever.getCapture().getSamples().get(pin);
+        if (!downloaded || samples == null) {
+            return new StepResult(rate, frequency, expectedperiod, 0, 0, false, downloadkbps, latencyms);
+        }
+        // the periods between rising edges
+        long[] first = {-1};
+        long[] last = {-1};
+        long[] count = {0};
+        long[] maxdeviation = {0};
+        samples.forEachEdge(edge -> {
+            if (samples.levelAt(edge)) {
+                if (last[0] >= 0) {
+                    maxdeviation[0] = Math.max(maxdeviation[0], (long) Math.ceil(Math.abs(edge - last[0] - expectedperiod)));
+                } else {
+                    first[0] = edge;
+                }
+                last[0] = edge;
+                count[0]++;
+            }
+        });
+        double measuredperiod = count[0] < 2 ? 0 : (double) (last[0] - first[0]) / (count[0] - 1);
+        boolean passed = count[0] >= 3
+                && Math.abs(measuredperiod - expectedperiod) <= expectedperiod * TOLERANCE
+                && maxdeviation[0] <= 1 + expectedperiod * TOLERANCE;
+        return new StepResult(rate, frequency, expectedperiod, measuredperiod, maxdeviation[0], passed, downloadkbps, latencyms);
+    }
+
+    private StepResult failed(long rate, long frequency, double expectedperiod) {
+        return new StepResult(rate, frequency, expectedperiod, 0, 0, false, 0, 0);
+    }
+
+    private boolean waitForSamplingDone() {
+        if (ProbeStateWatchDog.waitForSamplingDone(usbdevice, TIMEOUT_MS, () -> cancelled)) {
+            return true;
+        }
+        usbdevice.sendCommandAndHandleResponse("s", (s) -> false);
+        return false;
+    }
+
+    private String summary(List<StepResult> results) {
+        long maxreliable = 0;
+        double bestthroughput = 0;
+        for (StepResult result : results) {
+            if (!result.passed) {
+                break;
+            }
+            maxreliable = result.samplerate;
+        }
+        for (StepResult result : results) {
+            bestthroughput = Math.max(bestthroughput, result.downloadkbps);
+        }
+        return maxreliable == 0 ? "No sample rate passed"
+                : String.format("Maximum reliable sample rate %d Hz; best download throughput %.1f kB/s", maxreliable, bestthroughput);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class SerialTransport implements ProbeTransport {
+
+    private final String path;
+    private SerialPort commPort;
+    private OutputStream out;
+    private InputStream in;
+    private String identity;
+
+    public SerialTransport(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void open() {
+        this.commPort = SerialPort.getCommPort(path);
+        if (!commPort.openPort()) {
+            throw new Failure("Cannot open serial port " + path);
+        }
+        commPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 0, 0);
+        identity = identityOfPath(path);
+        out = commPort.getOutputStream();
+        in = commPort.getInputStream();
+    }
+
+    private static String identityOfPath(String path) {
+        for (SerialPort port : USBSerialDevice.findPicoPorts()) {
+            if (USBSerialDevice.pathOf(port).equals(path)) {
+                return USBSerialDevice.identityOf(port);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return commPort != null && commPort.isOpen();
+    }
+
+    @Override
+    public void close() {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            in.close();
+            out.close();
+            commPort.closePort();
+        } catch (IOException ex) {
+            throw new Failure("Failure during SerialTransport.close()", ex);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getIdentity() {
+        return identity;
+    }
+
+    @Override
+    public boolean supportsReconnect() {
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+//
+//  a local stand-in for the probe, answering the probe protocol from a
+//  generated signal (pin n of the capture is a square wave with a half period
+//  of 4 x 2^n samples, except that the square wave generator pin, when on,
+//  follows the generator frequency at the sampling rate) - for trying the
+//  frontend, including the range download command r-<start>-<count>[-<pin>]
+//  and the self test, without a probe on the desk.
+//
+//  Sampling ends on a stop command (MANUAL) or SAMPLING_MS after the start.
+//
+//  Select with -Dlafe.simulate=true
+//
+public class SimulatedProbeTransport implements ProbeTransport {
+
+    private static final long SAMPLING_MS = 1500;
+    private static final int RUNS_PER_LINE = 16;
+    private static final int MAX_SHIFT = 40;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_SAMPLING = 1;
+    private static final int STATE_SAMPLING_DONE = 3;
+
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private final ByteArrayOutputStream command = new ByteArrayOutputStream();
+    private byte[] current;
+    private int offset;
+    private boolean open = false;
+    private int state = STATE_IDLE;
+    private long samplingstarted;
+    private int firstpin;
+    private int pins;
+    private boolean manualend;
+    private long samplesize;
+    private long samplerate = 1;
+    private int sqwpin = -1; // -1 when the generator is off
+    private long sqwfrequency;
+
+    @Override
+    public synchronized void open() {
+        open = true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        notifyAll();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return readbyte();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writebyte(b);
+            }
+        };
+    }
+
+    @Override
+    public String getPath() {
+        return "simulated probe";
+    }
+
+    @Override
+    public String getIdentity() {
+        return "SIM:1";
+    }
+
+    @Override
+    public boolean supportsReconnect() {
+        return false;
+    }
+
+    private synchronized void writebyte(int b) throws IOException {
+        if (!open) {
+            throw new IOException("Simulated probe closed");
+        }
+        if (b == '!' && command.size() == 0) {
+            state = STATE_IDLE; // reset - there is no response
+            return;
+        }
+        if (b != '\n') {
+            command.write(b);
+            return;
+        }
+        String line = command.toString(StandardCharsets.US_ASCII);
+        command.reset();
+        StringBuilder response = new StringBuilder();
+        try {
+            respond(line.split("-"), response);
+        } catch (RuntimeException ex) {
+            response.setLength(0);
+            response.append("N Bad command ").append(line).append('\n');
+        }
+        pending.add(response.toString().getBytes(StandardCharsets.US_ASCII));
+        notifyAll();
+    }
+
+    private void respond(String[] args, StringBuilder response) {
+        switch (args[0]) {
+            case "p" ->
+                response.append("pico,1\nY\n");
+            case "g" -> {
+                firstpin = Integer.parseInt(args[1]);
+                pins = Integer.parseInt(args[2]);
+                samplerate = Math.max(1, Long.parseLong(args[3]));
+                manualend = Integer.parseInt(args[10]) == 0;
+                samplesize = Long.parseLong(args[11]);
+                samplingstarted = System.nanoTime();
+                state = STATE_SAMPLING;
+                response.append("Y\n");
+            }
+            case "s" -> {
+                if (state == STATE_SAMPLING) {
+                    state = STATE_SAMPLING_DONE;
+                }
+                response.append("Y\n");
+            }
+            case "?" -> {
+                if (state == STATE_SAMPLING && !manualend
+                        && System.nanoTime() - samplingstarted >= SAMPLING_MS * 1000000) {
+                    state = STATE_SAMPLING_DONE;
+                }
+                response.append(state).append("\nY\n");
+            }
+            case "d" ->
+                samples(0, samplesize, firstpin, firstpin + pins, response);
+            case "r" -> {
+                int pin = args.length > 3 ? Integer.parseInt(args[3]) : -1;
+                samples(Long.parseLong(args[1]), Long.parseLong(args[2]),
+                        pin < 0 ? firstpin : pin, pin < 0 ? firstpin + pins : pin + 1, response);
+            }
+            case "w" -> {
+                sqwpin = Integer.parseInt(args[1]) == 1 ? Integer.parseInt(args[2]) : -1;
+                sqwfrequency = Math.max(1, Long.parseLong(args[3]));
+                response.append("Y\n");
+            }
+            case "f" ->
+                response.append("Y\n");
+            default ->
+                response.append("N Unknown command\n");
+        }
+    }
+
+    private void samples(long start, long count, int frompin, int topin, StringBuilder response) {
+        if (state != STATE_SAMPLING_DONE || start < 0 || count <= 0 || start + count > samplesize
+                || frompin < firstpin || topin > firstpin + pins) {
+            response.append("N No samples in range\n");
+            return;
+        }
+        for (int pin = frompin; pin < topin; pin++) {
+            response.append("#-").append(pin).append('\n');
+            long halfperiod = pin == sqwpin ? Math.max(1, samplerate / (2 * sqwfrequency))
+                    : 1L << Math.min(MAX_SHIFT, pin - firstpin + 2);
+            long pos = start;
+            long end = start + count;
+            int runs = 0;
+            while (pos < end) {
+                long runend = Math.min(end, (pos / halfperiod + 1) * halfperiod);
+                long run = runend - pos;
+                if (run > 1) {
+                    response.append(run);
+                }
+                response.append((pos / halfperiod & 1) == 1 ? 'H' : 'L');
+                pos = runend;
+                if (++runs == RUNS_PER_LINE) {
+                    response.append('\n');
+                    runs = 0;
+                }
+            }
+            if (runs > 0) {
+                response.append('\n');
+            }
+        }
+        response.append("Y\n");
+    }
+
+    private synchronized int readbyte() throws IOException {
+        try {
+            while (current == null || offset == current.length) {
+                if (!open) {
+                    return -1;
+                }
+                current = pending.pollFirst();
+                offset = 0;
+                if (current == null) {
+                    wait();
+                }
+            }
+            return current[offset++] & 0xff;
+        } catch (InterruptedException ex) {
+            throw new IOException("Simulated probe read interrupted", ex);
+        }
+    }
+}
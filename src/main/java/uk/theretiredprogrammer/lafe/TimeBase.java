@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+//
+//  the exact time base of a capture: sample n is at n / samplerate seconds.
+//  Conversions are done in integer arithmetic (splitting whole seconds from
+//  the remainder) so there is no overflow or rounding drift at 64 bit indices.
+//
+public class TimeBase {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long samplerate;
+
+    public TimeBase(long samplerate) {
+        if (samplerate <= 0) {
+            throw new Failure("Sample rate must be positive: " + samplerate);
+        }
+        this.samplerate = samplerate;
+    }
+
+    public long getSampleRate() {
+        return samplerate;
+    }
+
+    // the time of a sample, truncated to whole nanoseconds
+    public long nanosAt(long sample) {
+        return sample / samplerate * NANOS_PER_SECOND + muldiv(sample % samplerate, NANOS_PER_SECOND, samplerate);
+    }
+
+    // the number of whole samples in a duration
+    public long samplesIn(long nanos) {
+        return nanos / NANOS_PER_SECOND * samplerate + muldiv(nanos % NANOS_PER_SECOND, samplerate, NANOS_PER_SECOND);
+    }
+
+    // a * b / c for non negative a < c, without overflow of the intermediate product
+    private static long muldiv(long a, long b, long c) {
+        if (Math.multiplyHigh(a, b) == 0 && a * b >= 0) {
+            return a * b / c;
+        }
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).divide(BigInteger.valueOf(c)).longValueExact();
+    }
+
+    // the exact time of a sample in seconds, to the requested significant digits
+    public BigDecimal secondsAt(long sample, int digits) {
+        return BigDecimal.valueOf(sample).divide(BigDecimal.valueOf(samplerate), new MathContext(digits, RoundingMode.HALF_EVEN));
+    }
+
+    public String format(long sample) {
+        return formatNanos(nanosAt(sample));
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos >= NANOS_PER_SECOND) {
+            return String.format("%.6f s", nanos / 1e9);
+        }
+        if (nanos >= 1000000) {
+            return String.format("%.3f ms", nanos / 1e6);
+        }
+        if (nanos >= 1000) {
+            return String.format("%.3f \u00b5s", nanos / 1e3);
+        }
+        return nanos + " ns";
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//
+//  low overhead recorder of the raw serial traffic.
+//
+//  The serial I/O threads append timestamped RX/TX byte records to a lock-free
+//  ring buffer (records are dropped, never blocked on, if the ring is full);
+//  a background thread drains the ring to a rotating binary trace file and/or
+//  echoes the lines to the console.
+//
+//  Verbosity is set with -Dlafe.trace=OFF|CONSOLE|TRACE|ALL (default OFF)
+//
+public class TrafficRecorder {
+
+    public static final byte RX = 0;
+    public static final byte TX = 1;
+
+    public static final byte[] MAGIC = "LAFETRC1".getBytes(StandardCharsets.US_ASCII);
+
+    public enum Verbosity {
+        OFF(false, false), CONSOLE(true, false), TRACE(false, true), ALL(true, true);
+
+        private final boolean console;
+        private final boolean trace;
+
+        Verbosity(boolean console, boolean trace) {
+            this.console = console;
+            this.trace = trace;
+        }
+    }
+
+    private static final int CAPACITY = 8192; // must be a power of 2
+    private static final int MASK = CAPACITY - 1;
+    private static final long FLUSH_PARK_NANOS = 10000000;
+
+    private static final Verbosity verbosity = verbosityProperty();
+    private static final File tracedir = new File(System.getProperty("lafe.trace.dir",
+            System.getProperty("java.io.tmpdir") + File.separator + "lafe"));
+    private static final long maxfilesize = Long.getLong("lafe.trace.maxsize", 16 * 1024 * 1024);
+    private static final int keepfiles = Integer.getInteger("lafe.trace.keep", 4);
+
+    // the ring buffer - a bounded multi producer / single consumer queue
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final byte[] directions = new byte[CAPACITY];
+    private static final byte[][] payloads = new byte[CAPACITY][];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static long tail = 0;
+    private static final LongAdder dropped = new LongAdder();
+    private static final long basenanos = System.nanoTime();
+
+    private static final AtomicBoolean flusherstarted = new AtomicBoolean(false);
+    private static volatile Thread flusher;
+    private static volatile boolean closing = false;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // a mistyped setting turns recording off rather than failing the first serial write
+    private static Verbosity verbosityProperty() {
+        String value = System.getProperty("lafe.trace", "OFF");
+        try {
+            return Verbosity.valueOf(value.strip().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(TrafficRecorder.class.getName()).warning(
+                    "Unknown lafe.trace setting " + value + " (OFF, CONSOLE, TRACE or ALL) - traffic is not recorded");
+            return Verbosity.OFF;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return verbosity != Verbosity.OFF;
+    }
+
+    public static long droppedRecords() {
+        return dropped.sum();
+    }
+
+    public static void recordTx(byte[] bytes, int length) {
+        if (verbosity != Verbosity.OFF) {
+            record(TX, bytes, length);
+        }
+    }
+
+    public static void recordRx(byte[] bytes, int length) {
+        if (verbosity != Verbosity.OFF) {
+            record(RX, bytes, length);
+        }
+    }
+
+    private static void record(byte direction, byte[] bytes, int length) {
+        long timestamp = System.nanoTime() - basenanos;
+        long pos;
+        while (true) {
+            pos = head.get();
+            int index = (int) (pos & MASK);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                dropped.increment(); // ring full
+                return;
+            }
+        }
+        int index = (int) (pos & MASK);
+        timestamps[index] = timestamp;
+        directions[index] = direction;
+        payloads[index] = Arrays.copyOf(bytes, length);
+        sequences.set(index, pos + 1); // publish
+        if (!flusherstarted.get()) {
+            startFlusher();
+        }
+    }
+
+    // started once, by whichever record wins the race - no lock on the record path
+    private static void startFlusher() {
+        if (flusherstarted.compareAndSet(false, true)) {
+            Thread t = new Thread(() -> flushworker(), "lafe-traffic-recorder");
+            t.setDaemon(true);
+            flusher = t;
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> close()));
+        }
+    }
+
+    public static void close() {
+        Thread t = flusher;
+        if (t != null) {
+            closing = true;
+            LockSupport.unpark(t);
+            try {
+                t.join(2000);
+            } catch (InterruptedException ex) {
+                // give up waiting
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  the background flusher
+    //
+    // -------------------------------------------------------------------------
+    private static DataOutputStream traceout;
+    private static long tracesize;
+
+    private static void flushworker() {
+        try {
+            while (true) {
+                boolean drained = drain();
+                if (closing && drained) {
+                    break;
+                }
+                if (drained) {
+                    if (traceout != null) {
+                        traceout.flush();
+                    }
+                    LockSupport.parkNanos(FLUSH_PARK_NANOS);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TrafficRecorder.class.getName()).log(Level.WARNING,
+                    "Traffic recorder stopped - traffic is no longer recorded", ex);
+        } finally {
+            closeTraceFile();
+        }
+    }
+
+    // returns true if the ring was emptied
+    private static boolean drain() throws IOException {
+        for (int n = 0; n < CAPACITY; n++) {
+            int index = (int) (tail & MASK);
+            if (sequences.get(index) != tail + 1) {
+                return true;
+            }
+            long timestamp = timestamps[index];
+            byte direction = directions[index];
+            byte[] payload = payloads[index];
+            payloads[index] = null;
+            sequences.set(index, tail + CAPACITY); // release the slot
+            tail++;
+            write(timestamp, direction, payload);
+        }
+        return false;
+    }
+
+    private static void write(long timestamp, byte direction, byte[] payload) throws IOException {
+        if (verbosity.console) {
+            String line = new String(payload, StandardCharsets.US_ASCII).strip();
+            System.out.println((direction == TX ? "W: " : "R: ") + line);
+        }
+        if (verbosity.trace) {
+            if (traceout == null || tracesize >= maxfilesize) {
+                rotate();
+            }
+            traceout.writeLong(timestamp);
+            traceout.writeByte(direction);
+            traceout.writeInt(payload.length);
+            traceout.write(payload);
+            tracesize += 13 + payload.length;
+        }
+    }
+
+    private static void rotate() throws IOException {
+        closeTraceFile();
+        if (!tracedir.isDirectory() && !tracedir.mkdirs()) {
+            throw new IOException("Cannot create trace directory " + tracedir);
+        }
+        String name = "lafe-trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".bin";
+        traceout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(tracedir, name)), 65536));
+        traceout.write(MAGIC);
+        traceout.writeLong(System.currentTimeMillis());
+        tracesize = MAGIC.length + 8;
+        removeOldTraceFiles();
+    }
+
+    private static void removeOldTraceFiles() {
+        File[] files = tracedir.listFiles((d, n) -> n.startsWith("lafe-trace-") && n.endsWith(".bin"));
+        if (files != null && files.length > keepfiles) {
+            Arrays.sort(files);
+            for (int i = 0; i < files.length - keepfiles; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private static void closeTraceFile() {
+        if (traceout != null) {
+            try {
+                traceout.close();
+            } catch (IOException ex) {
+                // nothing more can be done
+            }
+            traceout = null;
+        }
+    }
+}
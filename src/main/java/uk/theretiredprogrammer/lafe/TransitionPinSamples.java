@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+//
+//  pin samples held as a list of edge positions - compact for slow signals.
+//  A single block is limited to int positions; longer captures are segmented.
+//
+public class TransitionPinSamples implements PinSamples {
+
+    private final boolean initiallevel;
+    private final int[] edges;
+    private final int size;
+
+    public TransitionPinSamples(boolean initiallevel, int[] edges, int size) {
+        this.initiallevel = initiallevel;
+        this.edges = edges;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean initialLevel() {
+        return initiallevel;
+    }
+
+    // the number of edges at or before sample
+    private int edgesUpTo(long sample) {
+        int index = Arrays.binarySearch(edges, (int) Math.max(-1, Math.min(sample, size)));
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    @Override
+    public boolean levelAt(long sample) {
+        return initiallevel ^ ((edgesUpTo(sample) & 1) == 1);
+    }
+
+    @Override
+    public long nextEdge(long from) {
+        int index = edgesUpTo(from);
+        return index < edges.length ? edges[index] : size;
+    }
+
+    @Override
+    public long edgeCount() {
+        return edges.length;
+    }
+
+    @Override
+    public long edgeCount(long from, long to) {
+        return to <= from + 1 ? 0 : edgesUpTo(to - 1) - edgesUpTo(from);
+    }
+
+    @Override
+    public long highCount(long from, long to) {
+        long count = 0;
+        int index = edgesUpTo(from);
+        boolean level = initiallevel ^ ((index & 1) == 1);
+        long pos = Math.max(0, from);
+        to = Math.min(to, size);
+        while (pos < to) {
+            long next = Math.min(to, index < edges.length ? edges[index] : size);
+            if (level) {
+                count += next - pos;
+            }
+            pos = next;
+            level = !level;
+            index++;
+        }
+        return count;
+    }
+
+    @Override
+    public void forEachEdge(LongConsumer action) {
+        for (int edge : edges) {
+            action.accept(edge);
+        }
+    }
+
+    @Override
+    public long memoryBytes() {
+        return 32 + 16 + 4L * edges.length;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(TRANSITIONS);
+        out.writeInt(size);
+        out.writeBoolean(initiallevel);
+        out.writeInt(edges.length);
+        for (int edge : edges) {
+            out.writeInt(edge);
+        }
+    }
+
+    static TransitionPinSamples read(DataInputStream in, int size) throws IOException {
+        boolean initiallevel = in.readBoolean();
+        int[] edges = new int[in.readInt()];
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = in.readInt();
+        }
+        return new TransitionPinSamples(initiallevel, edges, size);
+    }
+}
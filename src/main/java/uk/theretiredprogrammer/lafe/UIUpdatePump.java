@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javafx.animation.AnimationTimer;
+import uk.theretiredprogrammer.lafe.ProbeStateWatchDog.ProbeState;
+
+//
+//  carries the frequent updates from the background threads to the UI:
+//  producers (any thread) write the latest value into a slot, and once per
+//  frame the pump applies whatever has changed - so a chatty probe costs one
+//  UI update per frame rather than one queued runnable per line.
+//
+//  Intermediate status messages, probe states and download progress are
+//  dropped (only the latest is shown); debug lines are counted and kept in a
+//  scrollback of the last SCROLLBACK lines.
+//
+public class UIUpdatePump extends AnimationTimer {
+
+    public static final int SCROLLBACK = 256;
+    private static final long METRICS_NANOS = 1000000000L;
+
+    private final Window window;
+    private final AtomicReference<String> status = new AtomicReference<>();
+    private final AtomicReference<ProbeState> state = new AtomicReference<>();
+    private final AtomicReference<Capture> progress = new AtomicReference<>();
+    private final AtomicLong debuglines = new AtomicLong();
+    private final AtomicReferenceArray<String> scrollback = new AtomicReferenceArray<>(SCROLLBACK);
+    private long shownlines = 0;
+    private long lastmetrics = 0;
+
+    public UIUpdatePump(Window window) {
+        this.window = window;
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  producers - may be called from any thread
+    //
+    // -------------------------------------------------------------------------
+    public void status(String message) {
+        if (message.startsWith("**DEBUG:")) {
+            debug(message);
+        } else if (!message.isBlank()) {
+            status.set(message);
+        }
+    }
+
+    public void debug(String line) {
+        long index = debuglines.getAndIncrement();
+        scrollback.set((int) (index % SCROLLBACK), line);
+    }
+
+    public void probeState(ProbeState newstate) {
+        state.set(newstate);
+    }
+
+    public void progress(Capture capture) {
+        progress.set(capture);
+    }
+
+    // -------------------------------------------------------------------------
+    //
+    //  the consumer - once per frame, on the FX application thread
+    //
+    // -------------------------------------------------------------------------
+    @Override
+    public void handle(long now) {
+        ProbeState newstate = state.getAndSet(null);
+        if (newstate != null) {
+            window.probeStateChanged(newstate);
+        }
+        Capture updated = progress.getAndSet(null);
+        if (updated != null) {
+            window.captureUpdated(updated);
+        }
+        String message = status.getAndSet(null);
+        if (message != null) {
+            window.displayStatus(message);
+        }
+        long lines = debuglines.get();
+        if (lines != shownlines) {
+            window.showDebugLines(lines, getScrollback(lines));
+            shownlines = lines;
+        }
+        if (now - lastmetrics >= METRICS_NANOS) {
+            window.showMetrics(Metrics.readout());
+            lastmetrics = now;
+        }
+    }
+
+    // the last lines of the scrollback, oldest first (a line being written as
+    // it is read may be the newer one)
+    private String getScrollback(long lines) {
+        StringBuilder sb = new StringBuilder();
+        for (long i = Math.max(0, lines - SCROLLBACK); i < lines; i++) {
+            String line = scrollback.get((int) (i % SCROLLBACK));
+            if (line != null) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
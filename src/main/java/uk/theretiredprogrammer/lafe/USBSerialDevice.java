@@ -21,119 +21,169 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.application.Platform;
 
 public class USBSerialDevice implements Closeable {
 
-    public static USBSerialDevice selectCommPort(Consumer<String> displaystatus) {
-        List<String> picoPorts = new ArrayList<>();
-        String selected = null;
-        while (selected == null) {
-            var commPorts = SerialPort.getCommPorts();
-            picoPorts.clear();
-            for (SerialPort port : commPorts) {
-                if (port.getDescriptivePortName().equals("Pico (Dial-In)")) {
-                    picoPorts.add("/dev/" + port.getSystemPortName());
-                }
-            }
-            if (picoPorts.size() == 1) {
-                selected = picoPorts.get(0);
-            } else if (picoPorts.isEmpty()) {
-                selected = Window.buildAndShowNoPicoProbeDialog();
-            } else {
-                selected = Window.buildAndShowManyPicoProbeDialog(picoPorts, (p) -> setLocate(p, displaystatus), (d) -> clearLocate(d, displaystatus));
+    public static final String PICO_PORT_NAME = "Pico (Dial-In)";
+
+    public static List<SerialPort> findPicoPorts() {
+        List<SerialPort> picoPorts = new ArrayList<>();
+        for (SerialPort port : SerialPort.getCommPorts()) {
+            if (port.getDescriptivePortName().equals(PICO_PORT_NAME)) {
+                picoPorts.add(port);
             }
         }
-        USBSerialDevice usbdevice = setLocate(selected, displaystatus);
-        return usbdevice;
+        return picoPorts;
     }
 
-    private static USBSerialDevice setLocate(String path, Consumer<String> displaystatus) {
-        USBSerialDevice usbdevice = new USBSerialDevice(path, displaystatus);
-        usbdevice.sendCommandAndHandleResponse("f-1", (s) -> false);
-        return usbdevice;
+    public static String pathOf(SerialPort port) {
+        return "/dev/" + port.getSystemPortName();
     }
 
-    private static void clearLocate(USBSerialDevice usbdevice, Consumer<String> displaystatus) {
-        usbdevice.sendCommandAndHandleResponse("f-0", (s) -> false);
-        usbdevice.close();
+    // the identity of a probe survives re-enumeration, whereas its /dev path may not;
+    // use the USB serial number where the OS reports one, else the physical port location
+    public static String identityOf(SerialPort port) {
+        String serialnumber = port.getSerialNumber();
+        if (serialnumber != null && !serialnumber.isBlank() && !serialnumber.equalsIgnoreCase("Unknown")) {
+            return "SN:" + serialnumber;
+        }
+        return "LOC:" + port.getPortLocation();
     }
 
-    private SerialPort commPort;
+    private ProbeTransport transport;
     private OutputStream out;
     private InputStream in;
     private final Consumer<String> displaystatus;
-    private final String path;
 
     public USBSerialDevice(String path, Consumer<String> displaystatus) {
+        this(new SerialTransport(path), displaystatus);
+    }
+
+    public USBSerialDevice(ProbeTransport transport, Consumer<String> displaystatus) {
         this.displaystatus = displaystatus;
-        this.path = path;
+        this.transport = transport;
         open();
     }
-    
+
     public final void open() {
-        this.commPort = SerialPort.getCommPort(path);
-        commPort.openPort();
-        commPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 0, 0);
-        out = commPort.getOutputStream();
-        in = commPort.getInputStream();
+        transport.open();
+        out = transport.getOutputStream();
+        in = transport.getInputStream();
+    }
+
+    public final void reopen(String newpath) {
+        transport = new SerialTransport(newpath);
+        open();
+    }
+
+    public String getPath() {
+        return transport.getPath();
+    }
+
+    public String getIdentity() {
+        return transport.getIdentity();
+    }
+
+    public boolean isOpen() {
+        return transport.isOpen();
     }
 
+    public boolean supportsReconnect() {
+        return transport.supportsReconnect();
+    }
+
+    // closes the port at once, even under a command in progress - for shutdown
     @Override
     public void close() {
-        try {
-            in.close();
-            out.close();
-            commPort.closePort();
-        } catch (IOException ex) {
-            throw new Failure("Failure during USBSerialDevice.close()", ex);
+        transport.close();
+    }
 
+    // sends the reset byte and closes the port between commands, so that a
+    // command in progress (a poll, a download) completes first
+    public synchronized void resetAndClose() {
+        try {
+            write('!');
+        } catch (Failure ex) {
+            // the port may already have gone - it is closed regardless
         }
+        close();
     }
 
-    public void write(char c) {
+    public synchronized void write(char c) {
         try {
             out.write(c);
+            TrafficRecorder.recordTx(new byte[]{(byte) c}, 1);
         } catch (IOException ex) {
             throw new Failure("write(" + c + ") failed ", ex);
         }
     }
 
     public void writeln(String s) throws IOException {
+        byte[] bytes = new byte[s.length() + 1];
+        int count = 0;
         for (int val : s.toCharArray()) {
             if (val >= 32 && val <= 126) {
-                out.write(val);
+                bytes[count++] = (byte) val;
             }
         }
-        out.write(10); // newline
+        bytes[count++] = 10; // newline
+        out.write(bytes, 0, count);
+        Metrics.bytesSent(count);
+        TrafficRecorder.recordTx(bytes, count);
     }
 
+    private byte[] linebuffer = new byte[256];
+
     public String readln() throws IOException {
-        String response = "";
+        StringBuilder response = new StringBuilder();
+        int count = 0;
         int c = 0;
         while (c != '\n') {
             c = in.read();
+            if (c < 0) {
+                throw new IOException("Port " + transport.getPath() + " closed during read");
+            }
+            if (count == linebuffer.length) {
+                linebuffer = Arrays.copyOf(linebuffer, count * 2);
+            }
+            linebuffer[count++] = (byte) c;
             if (c >= 32 && c <= 126) {
-                response += (char) c;
+                response.append((char) c);
             }
         }
-        return response;
+        Metrics.bytesReceived(count);
+        TrafficRecorder.recordRx(linebuffer, count);
+        return response.toString();
     }
 
     // higher level probe specific command poll/response functions
     public synchronized boolean sendCommandAndHandleResponse(String s, Function<String, Boolean> responselinehandler) {
+        LafeEvents.CommandEvent event = new LafeEvents.CommandEvent();
+        event.begin();
+        long starttime = System.nanoTime();
+        long sentbefore = Metrics.totalBytesSent();
+        long receivedbefore = Metrics.totalBytesReceived();
         sendcommand(s);
-        return handleResponse(responselinehandler);
+        boolean res = handleResponse(responselinehandler);
+        Metrics.commandCompleted(s.isEmpty() ? "" : s.substring(0, 1), System.nanoTime() - starttime);
+        if (event.shouldCommit()) {
+            event.command = s;
+            event.success = res;
+            event.bytessent = Metrics.totalBytesSent() - sentbefore;
+            event.bytesreceived = Metrics.totalBytesReceived() - receivedbefore;
+            event.commit();
+        }
+        return res;
     }
 
     private void sendcommand(String s) {
         IOException ioex;
-        System.out.println("W: " + s);
         try {
             writeln(s);
             return;
@@ -141,7 +191,6 @@ public class USBSerialDevice implements Closeable {
             ioex = ex;
         }
         try {
-            System.out.println("W: !");
             writeln("!"); // attempt to send an abandon command
         } catch (IOException ex) {
         }
@@ -155,7 +204,6 @@ public class USBSerialDevice implements Closeable {
                 if (response.startsWith("**DEBUG:")) {
                     displayStatus(response);
                 } else {
-                    System.out.println("R: " + response);
                     if (response.startsWith("Y")) {
                         displayStatus(response, 2);
                         return true;
@@ -181,6 +229,6 @@ public class USBSerialDevice implements Closeable {
     }
 
     private void displayStatus(String message) {
-        Platform.runLater(() -> displaystatus.accept(message));
+        displaystatus.accept(message); // coalesced by the consumer - no runnable per line
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+//
+//  decodes the bytes on a UART line (8N1, idle high, lsb first): each start
+//  bit (a falling edge from idle) is followed to its stop bit, reading the
+//  level at the middle of each bit - a few lookups per byte rather than per
+//  sample. A start bit which is not low at its middle, or a stop bit which is
+//  not high, is skipped and the search resumes at the next falling edge.
+//
+//  The line is a channel - a pin or a derived channel (see Channels). The
+//  annotations for the last capture decoded are cached.
+//
+public class UartDecoder {
+
+    public interface FrameVisitor {
+
+        // a byte from sample from to sample to - return false to stop decoding
+        boolean frame(long from, long to, int data);
+    }
+
+    public final String channel;
+    public final long baud;
+    private WeakReference<Map<Integer, PinSamples>> cachedfor = new WeakReference<>(null);
+    private AnnotationLayer cached;
+
+    public UartDecoder(String channel, long baud) {
+        if (baud <= 0) {
+            throw new Failure("Baud rate must be positive: " + baud);
+        }
+        this.channel = channel;
+        this.baud = baud;
+    }
+
+    public boolean canDecode(Channels channels, Map<Integer, PinSamples> samples) {
+        return channels.get(channel, samples) != null;
+    }
+
+    // each decoded byte as an annotation, in time order
+    public AnnotationLayer annotate(Channels channels, Map<Integer, PinSamples> samples, long samplerate) {
+        if (cachedfor.get() != samples) {
+            AnnotationLayer.Builder builder = new AnnotationLayer.Builder();
+            decode(channels.get(channel, samples), samplerate, baud, (from, to, data) -> {
+                builder.add(from, to, String.format("%02X", data));
+                return true;
+            });
+            cached = builder.build();
+            cachedfor = new WeakReference<>(samples);
+        }
+        return cached;
+    }
+
+    // returns false if the visitor stopped the decode
+    public static boolean decode(PinSamples samples, long samplerate, long baud, FrameVisitor visitor) {
+        double bitsamples = (double) samplerate / baud;
+        long size = samples.size();
+        long framesize = (long) Math.ceil(bitsamples * 10);
+        long pos = samples.levelAt(0) ? samples.nextEdge(0) : idleFrom(samples, 0);
+        while (pos < size && pos + framesize <= size) {
+            // pos is a falling edge - the start of a start bit
+            if (!samples.levelAt(pos + (long) (bitsamples / 2))) {
+                int data = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    if (samples.levelAt(pos + (long) (bitsamples * (bit + 1.5)))) {
+                        data |= 1 << bit;
+                    }
+                }
+                long stopbit = pos + (long) (bitsamples * 9.5);
+                if (samples.levelAt(stopbit)) {
+                    if (!visitor.frame(pos, pos + (long) (bitsamples * 10), data)) {
+                        return false;
+                    }
+                    pos = idleFrom(samples, stopbit);
+                    continue;
+                }
+            }
+            // a glitch or a framing error - look for the next start bit
+            pos = idleFrom(samples, pos + 1);
+        }
+        return true;
+    }
+
+    // the next falling edge at or after a sample
+    private static long idleFrom(PinSamples samples, long from) {
+        long size = samples.size();
+        if (from >= size) {
+            return size;
+        }
+        long edge = samples.levelAt(from) ? from : samples.nextEdge(from);
+        if (edge >= size) {
+            return size;
+        }
+        // edge is now at a high level - the following edge falls
+        return samples.nextEdge(edge);
+    }
+
+    @Override
+    public String toString() {
+        return "UART " + Channels.label(channel) + " @ " + baud + " baud";
+    }
+}
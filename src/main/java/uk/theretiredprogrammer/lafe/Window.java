@@ -15,21 +15,26 @@
  */
 package uk.theretiredprogrammer.lafe;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.Property;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
+import javafx.collections.ListChangeListener;
 import javafx.event.ActionEvent;
 import javafx.event.Event;
 import javafx.event.EventHandler;
+import javafx.geometry.Orientation;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.Group;
 import javafx.scene.Node;
@@ -38,32 +43,39 @@ import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Accordion;
 import javafx.scene.control.Button;
-import javafx.scene.control.ButtonBar;
-import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.ComboBox;
-import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextFormatter;
 import javafx.scene.control.TitledPane;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
 import static javafx.scene.paint.Color.DARKGREY;
 import static javafx.scene.paint.Color.GREEN;
 import static javafx.scene.paint.Color.ORANGE;
 import static javafx.scene.paint.Color.RED;
 import javafx.scene.paint.Paint;
 import javafx.scene.shape.Circle;
+import javafx.scene.text.Font;
 import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import javafx.util.converter.NumberStringConverter;
+import uk.theretiredprogrammer.lafe.ProbeDiscovery.ProbePort;
 import uk.theretiredprogrammer.lafe.ProbeStateWatchDog.ProbeState;
 
 public class Window {
@@ -73,12 +85,18 @@ public class Window {
     private Rectangle2D windowsize;
     private final ProbeConfiguration config;
     private final Controller controller;
+    private final CaptureHistory history;
+    private final GlitchDetector glitchdetector;
+    private final CaptureDiff capturediff;
 
     public Window(Stage stage, Controller controller) {
         this.clazz = Window.class;
         this.stage = stage;
         this.controller = controller;
         this.config = controller.getProbeConfiguration();
+        this.history = controller.getCaptureHistory();
+        this.glitchdetector = controller.getGlitchDetector();
+        this.capturediff = controller.getCaptureDiff();
         setDefaultWindowWidth(400);
         LafePreferences.applyWindowSizePreferences(stage, clazz, windowsize);
         stage.setScene(buildScene());
@@ -90,7 +108,7 @@ public class Window {
 
     private Scene buildScene() {
         BorderPane borderpane = new BorderPane();
-        borderpane.setCenter(new ScrollPane(buildEmptySampleDisplay()));
+        borderpane.setCenter(buildSampleDisplay());
         borderpane.setRight(buildConfiguration());
         borderpane.setTop(buildControls());
         borderpane.setBottom(buildStatus());
@@ -129,25 +147,13 @@ public class Window {
     //  CommPort selection dialogs
     //
     // -------------------------------------------------------------------------
-    public static String buildAndShowNoPicoProbeDialog() {
-        ButtonType doneButtonType = new ButtonType("Done", ButtonBar.ButtonData.OK_DONE);
-        Dialog<String> dialog = new Dialog<>();
-        dialog.getDialogPane().getButtonTypes().add(doneButtonType);
-        dialog.setTitle("Missing Probe");
-        dialog.setContentText("Cannot find a PICO Probe connected to this machine\n\nPlease connect one and then press the Done button\n\n");
-        dialog.getDialogPane().setMinWidth(500);
-        dialog.setResizable(false);
-        dialog.showAndWait();
-        return null; // after connecting device then asked to try again
-    }
-
-    public static String buildAndShowManyPicoProbeDialog(List<String> commPorts, Consumer<String> setLocate, Consumer<USBSerialDevice> clearLocate) {
-        ChoiceDialog<String> dialog = new ChoiceDialog<>(null, commPorts);
+    public void showManyPicoProbeDialog(List<ProbePort> probes, Consumer<ProbePort> onselection) {
+        ChoiceDialog<ProbePort> dialog = new ChoiceDialog<>(null, probes);
         dialog.setTitle("Multiple Probes Available");
         dialog.setHeaderText("More than one PICO probe appear to be connected to this machine\nPlease select one and then press the OK button\n");
         dialog.setGraphic(null);
-        Optional<String> selected = dialog.showAndWait();
-        return selected.orElse(null);
+        dialog.setOnHidden(e -> onselection.accept(dialog.getResult()));
+        dialog.show();
     }
 
     // -------------------------------------------------------------------------
@@ -181,7 +187,25 @@ public class Window {
     }
 
     private Node buildStatusReporting() {
-        return statusnode = new Text();
+        return new HBox(10,
+                statusnode = new Text(),
+                metricsnode = new Text(),
+                debugnode = new Text()
+        );
+    }
+
+    private Text metricsnode;
+    private Text debugnode;
+    private TextArea debugscrollback;
+
+    public void showMetrics(String readout) {
+        metricsnode.setText(readout);
+    }
+
+    public void showDebugLines(long count, String scrollback) {
+        debugnode.setText(count + " debug lines");
+        debugscrollback.setText(scrollback);
+        debugscrollback.setScrollTop(Double.MAX_VALUE);
     }
 
     public void setConnected(boolean isconnected) {
@@ -254,7 +278,8 @@ public class Window {
                 new ControlButton("End Sampling", (ev) -> onStopSamplingRequest(ev)),
                 new ControlButton("Reset Probe", (ev) -> onResetProbeRequest(ev)),
                 new ControlButton("Start Probe Waveform Generator", (ev) -> onStartSQW(ev)),
-                new ControlButton("Stop Probe Waveform Generator", (ev) -> onStopSQW(ev))
+                new ControlButton("Stop Probe Waveform Generator", (ev) -> onStopSQW(ev)),
+                new ControlButton("Export Metrics", (ev) -> onExportMetrics(ev))
         );
     }
 
@@ -284,6 +309,16 @@ public class Window {
         controller.squareWaveGenerator(false);
     }
 
+    public void onExportMetrics(Event ev) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export Metrics");
+        chooser.setInitialFileName("lafe-metrics.csv");
+        File file = chooser.showSaveDialog(stage);
+        if (file != null) {
+            ExecuteAndCatch.run(() -> Metrics.export(file));
+        }
+    }
+
     public class ControlButton extends Button {
 
         public ControlButton(String caption, EventHandler<ActionEvent> buttonPressedAction) {
@@ -300,10 +335,415 @@ public class Window {
     private Node buildConfiguration() {
         return new Accordion(
                 new TitledPane("WaveForm Generator Configuration", buildWaveFormGeneratorForm()),
-                new TitledPane("Sampling Configuration", buildSamplingConfigurationForm())
+                new TitledPane("Sampling Configuration", buildSamplingConfigurationForm()),
+                new TitledPane("Capture History", buildCaptureHistory()),
+                new TitledPane("Glitch Detector", buildGlitchDetector()),
+                new TitledPane("Capture Diff", buildCaptureDiff()),
+                new TitledPane("Timing Statistics", buildJitterStatistics()),
+                new TitledPane("Derived Channels", buildDerivedChannels()),
+                new TitledPane("Protocol Decode", buildDecoders()),
+                new TitledPane("Retention Filters", buildRetentionFilters()),
+                new TitledPane("Auto Range", buildAutoRange()),
+                new TitledPane("Self Test", buildSelfTest()),
+                new TitledPane("Batch Capture", buildBatch()),
+                new TitledPane("Probe Debug", buildProbeDebug())
         );
     }
 
+    private ListView<Capture> historylist;
+
+    private Node buildCaptureHistory() {
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Captures kept", integerField(history.maxcaptures, 4));
+        insertField(pane, "Memory budget (KB)", integerField(history.budgetkb, 8));
+        historylist = new ListView<>();
+        historylist.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        historylist.getSelectionModel().selectedItemProperty().addListener((o, oldv, newv) -> onCaptureSelected(newv));
+        return new VBox(pane, historylist,
+                new ControlButton("Merge Selected", ev -> onMergeCaptures(ev)));
+    }
+
+    private void onMergeCaptures(Event ev) {
+        List<Capture> selected = new ArrayList<>(historylist.getSelectionModel().getSelectedItems());
+        if (selected.size() < 2) {
+            displayStatus("Select two or more captures to merge");
+            return;
+        }
+        ExecuteAndCatch.run(() -> {
+            List<Integer> ids = new ArrayList<>();
+            // the list is newest first - merge in capture order
+            for (int i = selected.size() - 1; i >= 0; i--) {
+                ids.add(selected.get(i).getId());
+            }
+            Capture merged = history.merge(ids);
+            refreshHistory(history.getCaptures());
+            refreshSampleDisplay(merged);
+        });
+    }
+
+    private boolean refreshinghistory = false;
+
+    public void refreshHistory(List<Capture> captures) {
+        refreshinghistory = true;
+        historylist.getItems().setAll(captures);
+        refreshinghistory = false;
+    }
+
+    private void onCaptureSelected(Capture selected) {
+        if (selected != null && !refreshinghistory) {
+            ExecuteAndCatch.run(() -> {
+                refreshSampleDisplay(history.get(selected.getId()));
+                historylist.refresh(); // resident state may have changed
+            });
+        }
+    }
+
+    private Node buildDerivedChannels() {
+        TextField name = new TextField();
+        name.setPrefColumnCount(8);
+        TextField expression = new TextField();
+        expression.setPrefColumnCount(16);
+        expression.setPromptText("e.g. xor(15, inv(16)) or bus(15..22)");
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Name", name);
+        insertField(pane, "Expression", expression);
+        ListView<DerivedChannel> channellist = new ListView<>(controller.getDerivedChannels());
+        controller.getDerivedChannels().addListener((ListChangeListener<DerivedChannel>) c -> redrawSampleDisplay());
+        return new VBox(pane,
+                new HBox(10,
+                        new ControlButton("Add", ev -> {
+                            try {
+                                controller.addDerivedChannel(name.getText(), expression.getText());
+                            } catch (Failure ex) {
+                                displayStatus(ex.getMessage());
+                            }
+                        }),
+                        new ControlButton("Remove", ev -> {
+                            DerivedChannel selected = channellist.getSelectionModel().getSelectedItem();
+                            if (selected != null) {
+                                ExecuteAndCatch.run(() -> controller.removeDerivedChannel(selected));
+                            }
+                        })),
+                channellist);
+    }
+
+    private Node buildDecoders() {
+        StringProperty channel = new SimpleStringProperty("");
+        TextField baud = new TextField("115200");
+        baud.setPrefColumnCount(8);
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "UART channel", channelSelectionField(channel));
+        insertField(pane, "Baud rate", baud);
+        ListView<UartDecoder> decoderlist = new ListView<>(controller.getDecoders());
+        controller.getDecoders().addListener((ListChangeListener<UartDecoder>) c -> redrawSampleDisplay());
+        return new VBox(pane,
+                new HBox(10,
+                        new ControlButton("Add", ev -> {
+                            try {
+                                String line = channel.get() == null ? "" : channel.get().strip();
+                                if (line.isEmpty()) {
+                                    displayStatus("Choose the pin or derived channel to decode");
+                                    return;
+                                }
+                                controller.addDecoder(line, Long.parseLong(baud.getText().strip()));
+                            } catch (NumberFormatException ex) {
+                                displayStatus("Baud rate must be a whole number");
+                            } catch (Failure ex) {
+                                displayStatus(ex.getMessage());
+                            }
+                        }),
+                        new ControlButton("Remove", ev -> {
+                            UartDecoder selected = decoderlist.getSelectionModel().getSelectedItem();
+                            if (selected != null) {
+                                controller.removeDecoder(selected);
+                            }
+                        })),
+                decoderlist);
+    }
+
+    private Text retentionsummary;
+
+    private Node buildRetentionFilters() {
+        TextField expression = new TextField();
+        expression.setPrefColumnCount(16);
+        expression.setPromptText("e.g. pulse(17) < 2us or uart(17, 115200) == 0x7E");
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Keep if", expression);
+        ListView<RetentionFilter> filterlist = new ListView<>(controller.getRetentionFilters());
+        retentionsummary = new Text(controller.getRetentionSummary());
+        controller.getRetentionFilters().addListener(
+                (ListChangeListener<RetentionFilter>) c -> showRetentionSummary(controller.getRetentionSummary()));
+        return new VBox(pane,
+                new HBox(10,
+                        new ControlButton("Add", ev -> {
+                            try {
+                                controller.addRetentionFilter(expression.getText());
+                            } catch (Failure ex) {
+                                displayStatus(ex.getMessage());
+                            }
+                        }),
+                        new ControlButton("Remove", ev -> {
+                            RetentionFilter selected = filterlist.getSelectionModel().getSelectedItem();
+                            if (selected != null) {
+                                ExecuteAndCatch.run(() -> controller.removeRetentionFilter(selected));
+                            }
+                        })),
+                filterlist,
+                retentionsummary);
+    }
+
+    public void showRetentionSummary(String summary) {
+        retentionsummary.setText(summary);
+    }
+
+    private Node buildBatch() {
+        TextArea report = new TextArea();
+        report.setEditable(false);
+        report.setPrefRowCount(16);
+        report.setFont(Font.font("Monospaced", 11));
+        return new VBox(
+                new HBox(10,
+                        new ControlButton("Run Jobs ...", ev -> onRunBatch(report)),
+                        new ControlButton("Cancel", ev -> controller.cancelExclusiveWork())),
+                report);
+    }
+
+    private void onRunBatch(TextArea report) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Select the Job Configurations");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Configurations", "*.properties"));
+        List<File> jobs = chooser.showOpenMultipleDialog(stage);
+        if (jobs == null) {
+            return;
+        }
+        DirectoryChooser dirchooser = new DirectoryChooser();
+        dirchooser.setTitle("Select the Directory for the Captures");
+        dirchooser.setInitialDirectory(jobs.get(0).getParentFile());
+        File outputdir = dirchooser.showDialog(stage);
+        if (outputdir != null) {
+            report.clear();
+            List<File> sorted = new ArrayList<>(jobs);
+            sorted.sort((a, b) -> a.getName().compareTo(b.getName()));
+            try {
+                controller.runBatch(sorted, outputdir, line -> report.appendText(line + "\n"));
+            } catch (Failure ex) {
+                displayStatus(ex.getMessage());
+            }
+        }
+    }
+
+    private Node buildProbeDebug() {
+        debugscrollback = new TextArea();
+        debugscrollback.setEditable(false);
+        debugscrollback.setPrefRowCount(16);
+        debugscrollback.setFont(Font.font("Monospaced", 11));
+        return debugscrollback;
+    }
+
+    private Node buildAutoRange() {
+        TextArea report = new TextArea();
+        report.setEditable(false);
+        report.setPrefRowCount(16);
+        report.setFont(Font.font("Monospaced", 11));
+        return new VBox(
+                new HBox(10,
+                        new ControlButton("Auto Range", ev -> onAutoRange(report, false)),
+                        new ControlButton("Auto Range and Start", ev -> onAutoRange(report, true)),
+                        new ControlButton("Cancel", ev -> controller.cancelExclusiveWork())),
+                report);
+    }
+
+    private void onAutoRange(TextArea report, boolean arm) {
+        report.clear();
+        ExecuteAndCatch.run(() -> controller.runAutoRange(line -> report.appendText(line + "\n"), arm));
+    }
+
+    private Node buildSelfTest() {
+        TextArea report = new TextArea();
+        report.setEditable(false);
+        report.setPrefRowCount(16);
+        report.setFont(Font.font("Monospaced", 11));
+        return new VBox(
+                new HBox(10,
+                        new ControlButton("Run Self Test", ev -> {
+                            report.clear();
+                            ExecuteAndCatch.run(() -> controller.runSelfTest(line -> report.appendText(line + "\n")));
+                        }),
+                        new ControlButton("Cancel", ev -> controller.cancelExclusiveWork()),
+                        new ControlButton("Save Report", ev -> onSaveSelfTestReport(report.getText()))),
+                report);
+    }
+
+    private void onSaveSelfTestReport(String report) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Save Self Test Report");
+        chooser.setInitialFileName("lafe-self-test.txt");
+        File file = chooser.showSaveDialog(stage);
+        if (file != null) {
+            ExecuteAndCatch.run(() -> {
+                try {
+                    Files.writeString(file.toPath(), report);
+                } catch (IOException ex) {
+                    throw new Failure("Cannot save self test report " + file, ex);
+                }
+            });
+        }
+    }
+
+    private TextArea jitterreport;
+
+    private Node buildJitterStatistics() {
+        JitterStatistics statistics = controller.getJitterStatistics();
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Accumulate each capture", checkboxField(statistics.enabled));
+        jitterreport = new TextArea();
+        jitterreport.setEditable(false);
+        jitterreport.setPrefRowCount(16);
+        jitterreport.setFont(Font.font("Monospaced", 11));
+        return new VBox(pane,
+                new ControlButton("Reset", ev -> {
+                    statistics.reset();
+                    showJitterStatistics(statistics.report());
+                }),
+                jitterreport);
+    }
+
+    public void showJitterStatistics(String report) {
+        jitterreport.setText(report);
+    }
+
+    private ListView<CaptureDiff.Difference> differencelist;
+    private final Text diffsummary = new Text();
+    private CaptureDiff.DiffResult diffresult;
+
+    private Node buildCaptureDiff() {
+        StringProperty channela = new SimpleStringProperty(Channels.ofPin(config.firstpin.get()));
+        StringProperty channelb = new SimpleStringProperty(Channels.ofPin(config.firstpin.get() + 1));
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Edge tolerance (samples)", integerField(capturediff.tolerance, 6));
+        insertField(pane, "Channel A", channelSelectionField(channela));
+        insertField(pane, "Channel B", channelSelectionField(channelb));
+        differencelist = new ListView<>();
+        differencelist.getSelectionModel().selectedItemProperty().addListener((o, oldv, newv) -> onDifferenceSelected(newv));
+        return new VBox(pane,
+                new HBox(10,
+                        new ControlButton("Diff Selected Captures", ev -> onDiffCaptures(ev)),
+                        new ControlButton("Diff Channels", ev -> onDiffChannels(channela.get(), channelb.get())),
+                        new ControlButton("Clear", ev -> showDiff(null))),
+                diffsummary, differencelist);
+    }
+
+    private void onDiffCaptures(Event ev) {
+        List<Capture> selected = historylist.getSelectionModel().getSelectedItems();
+        if (selected.size() != 2) {
+            displayStatus("Select two captures in the capture history to diff");
+            return;
+        }
+        // the list is newest first - the older capture is the reference
+        int reference = selected.get(1).getId();
+        int other = selected.get(0).getId();
+        ExecuteAndCatch.run(() -> {
+            // hold each capture's samples as it is got - getting the other may spill it
+            Capture a = history.get(reference);
+            Map<Integer, PinSamples> samplesa = a == null ? null : a.getSamples();
+            Capture b = history.get(other);
+            Map<Integer, PinSamples> samplesb = b == null ? null : b.getSamples();
+            if (samplesa == null || samplesb == null) {
+                displayStatus("The captures are no longer in the history");
+                return;
+            }
+            capturediff.diffCaptures(a, samplesa, b, samplesb, (result) -> showDiff(result));
+        });
+    }
+
+    private void onDiffChannels(String channela, String channelb) {
+        if (displayedcapture == null || !displayedcapture.isResident()) {
+            displayStatus("No capture to diff");
+            return;
+        }
+        try {
+            capturediff.diffPins(displayedcapture, displayedcapture.getSamples(), controller.getChannels(),
+                    channela == null ? "" : channela.strip(), channelb == null ? "" : channelb.strip(),
+                    (result) -> showDiff(result));
+        } catch (Failure ex) {
+            displayStatus(ex.getMessage());
+        }
+    }
+
+    private void showDiff(CaptureDiff.DiffResult result) {
+        diffresult = result;
+        diffsummary.setText(result == null ? "" : result.toString());
+        differencelist.getItems().setAll(result == null ? List.of() : result.differences);
+        redrawSampleDisplay();
+    }
+
+    private void onDifferenceSelected(CaptureDiff.Difference selected) {
+        if (selected != null) {
+            ExecuteAndCatch.run(() -> {
+                if (selected.capturea != displayedcapture && selected.captureb != displayedcapture) {
+                    Capture capture = history.get(selected.capturea.getId());
+                    if (capture == null) {
+                        displayStatus("Capture #" + selected.capturea.getId() + " is no longer in the history");
+                        return;
+                    }
+                    refreshSampleDisplay(capture);
+                }
+                showSample((selected.from + selected.to) / 2);
+            });
+        }
+    }
+
+    private ListView<GlitchDetector.Glitch> glitchlist;
+    private final Text glitchsummary = new Text();
+    private Capture glitchcapture;
+
+    private Node buildGlitchDetector() {
+        GridPane pane = new GridPane();
+        row = 0;
+        insertField(pane, "Minimum pulse (samples)", integerField(glitchdetector.minpulsewidth, 6));
+        insertField(pane, "Skew limit (samples)", integerField(glitchdetector.maxskew, 6));
+        insertField(pane, "Scan after each capture", checkboxField(glitchdetector.autoscan));
+        glitchlist = new ListView<>();
+        glitchlist.getSelectionModel().selectedItemProperty().addListener((o, oldv, newv) -> onGlitchSelected(newv));
+        return new VBox(pane, new ControlButton("Scan", ev -> onGlitchScan(ev)), glitchsummary, glitchlist);
+    }
+
+    private void onGlitchScan(Event ev) {
+        if (displayedcapture == null || !displayedcapture.isResident()) {
+            displayStatus("No capture to scan");
+            return;
+        }
+        ExecuteAndCatch.run(() -> glitchdetector.scan(displayedcapture, controller.getChannels(), (result) -> showGlitches(result)));
+    }
+
+    public void showGlitches(GlitchDetector.ScanResult result) {
+        glitchcapture = result.capture;
+        glitchsummary.setText("#" + result.capture.getId() + ": " + result);
+        glitchlist.getItems().setAll(result.glitches);
+    }
+
+    private void onGlitchSelected(GlitchDetector.Glitch selected) {
+        if (selected != null) {
+            ExecuteAndCatch.run(() -> {
+                if (glitchcapture != displayedcapture) {
+                    Capture capture = history.get(glitchcapture.getId());
+                    if (capture == null) {
+                        displayStatus("Capture #" + glitchcapture.getId() + " is no longer in the history");
+                        return;
+                    }
+                    refreshSampleDisplay(capture);
+                }
+                showSample(selected.sample);
+            });
+        }
+    }
+
     private int row;
 
     private Node buildSamplingConfigurationForm() {
@@ -331,7 +771,11 @@ public class Window {
         insertSubtitle(pane, "Sampling Mode");
         insertField(pane, "Sample Size (bits)", integerField(config.samplesize, 7));
         insertField(pane, "Sample End Mode", sampleendmodeSelectionField(config.sampleendmode));
-        return new ScrollPane(pane);
+        insertField(pane, "Repeat", checkboxField(config.repeat));
+        Text error = new Text();
+        error.setFill(RED);
+        error.textProperty().bind(config.configurationerror);
+        return new ScrollPane(new VBox(pane, error));
     }
 
     private Node buildWaveFormGeneratorForm() {
@@ -353,7 +797,7 @@ public class Window {
         pane.add(field, 1, row++, 1, 1);
     }
 
-    private TextField integerField(IntegerProperty property, int size) {
+    private TextField integerField(Property<Number> property, int size) {
         TextField intfield = new TextField();
         intfield.setPrefColumnCount(size);
         TextFormatter<Number> textformatter = new TextFormatter<>(new NumberStringConverter(), 0, integerFilter);
@@ -390,6 +834,17 @@ public class Window {
         return cbox;
     }
 
+    // a pin number or a derived channel's name - the choices are refreshed each time they are shown
+    private ComboBox<String> channelSelectionField(StringProperty value) {
+        ComboBox<String> cbox = new ComboBox<>();
+        cbox.setEditable(true);
+        cbox.setPrefWidth(120);
+        cbox.setOnShowing(e -> cbox.getItems().setAll(
+                controller.getChannels().getChoices(config.firstpin.get(), config.pins.get())));
+        cbox.valueProperty().bindBidirectional(value);
+        return cbox;
+    }
+
     private CheckBox checkboxField(BooleanProperty value) {
         CheckBox booleanfield = new CheckBox();
         booleanfield.setSelected(value.get());
@@ -402,115 +857,356 @@ public class Window {
     //  the sample display canvas
     //
     // -------------------------------------------------------------------------
+    private static final int MARGIN = 20;
+    private static final int MIN_ROW_HEIGHT = 40;
+    private static final int MAX_ROW_HEIGHT = 220;
+    private static final Color PENDING_FILL = Color.gray(0.85, 0.8);
+    private static final Color DIFF_FILL = Color.rgb(255, 0, 0, 0.25);
+
     private Canvas sampledisplaycanvas;
+    private final ScrollBar hscrollbar = new ScrollBar();
+    private final ScrollBar vscrollbar = new ScrollBar();
+    private final Text viewportstatus = new Text();
+    private Capture displayedcapture;
+    private double samplesperpixel = 0.2; // zoom - initially 5 pixels per sample
 
-    private Canvas buildEmptySampleDisplay() {
-        //pane.setContextMenu(contextmenu);
-        return sampledisplaycanvas = new Canvas(500.0, 500.0);
-    }
-
-    public void refreshSampleDisplay(Map<Integer, List<String>> samples) {
-        int numbersamples = samples.size();
-        expectedsamplesize = config.samplesize.get();
-        // calculate layout
-        int margin = 20;
-        int height = 500;
-        int maxsampleheight = 220;
-        int calcsampleheight = (height - margin) / numbersamples;
-        if (calcsampleheight > maxsampleheight) {
-            calcsampleheight = maxsampleheight;
-        }
-        hscale = 5;
-        int width = expectedsamplesize * hscale + 2 * margin;
-        // set the required dimensions for the canvas and clear it
-        sampledisplaycanvas.setWidth(width);
-        sampledisplaycanvas.setHeight(height);
-        sampledisplaycanvas.getGraphicsContext2D().clearRect(0, 0, sampledisplaycanvas.getWidth(), sampledisplaycanvas.getHeight());
-        int count = 0;
-        for (var es : samples.entrySet()) {
-            int topofsample = calcsampleheight * count++ + margin;
-            drawSample(es.getKey(), es.getValue(), margin, topofsample, topofsample + calcsampleheight - margin);
+    private Node buildSampleDisplay() {
+        sampledisplaycanvas = new Canvas(500.0, 500.0);
+        Pane canvaspane = new Pane(sampledisplaycanvas);
+        canvaspane.setMinSize(100, 100);
+        canvaspane.setPrefSize(500, 500);
+        sampledisplaycanvas.widthProperty().bind(canvaspane.widthProperty());
+        sampledisplaycanvas.heightProperty().bind(canvaspane.heightProperty());
+        sampledisplaycanvas.widthProperty().addListener((o, oldv, newv) -> redrawSampleDisplay());
+        sampledisplaycanvas.heightProperty().addListener((o, oldv, newv) -> redrawSampleDisplay());
+        sampledisplaycanvas.setOnScroll(e -> zoom(e.getDeltaY() > 0 ? 0.5 : 2.0, e.getX()));
+        hscrollbar.valueProperty().addListener((o, oldv, newv) -> redrawSampleDisplay());
+        vscrollbar.setOrientation(Orientation.VERTICAL);
+        vscrollbar.valueProperty().addListener((o, oldv, newv) -> redrawSampleDisplay());
+        BorderPane pane = new BorderPane(canvaspane);
+        pane.setBottom(new VBox(hscrollbar, new HBox(10,
+                new ControlButton("Zoom In", ev -> zoom(0.5, MARGIN)),
+                new ControlButton("Zoom Out", ev -> zoom(2.0, MARGIN)),
+                new ControlButton("Zoom to Fit", ev -> zoomToFit()),
+                viewportstatus)));
+        pane.setRight(vscrollbar);
+        return pane;
+    }
+
+    public void refreshSampleDisplay(Capture capture) {
+        displayedcapture = capture;
+        redrawSampleDisplay();
+    }
+
+    // more of the capture has been downloaded
+    public void captureUpdated(Capture capture) {
+        if (capture == displayedcapture) {
+            redrawSampleDisplay();
         }
     }
 
-    // sample drawing variables
-    private int hstart;
-    private int hscale;
-    private int highpos;
-    private int lowpos;
-    private int expectedsamplesize;
-    private double[] xpos;
-    private double[] ypos;
-    private int insertat;
+    private int drawingwidth() {
+        return Math.max(1, (int) sampledisplaycanvas.getWidth() - 2 * MARGIN);
+    }
 
-    private void drawSample(int pin, List<String> sample, int hstart, int highpos, int lowpos) {
-        xpos = new double[expectedsamplesize];
-        ypos = new double[expectedsamplesize];
-        insertat = 0;
-        this.hstart = hstart;
-        this.highpos = highpos;
-        this.lowpos = lowpos;
-        sample.forEach(segment -> buildSamplesegment(segment));
-        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
-        gc.setStroke(RED);
-        gc.setLineWidth(2.0);
-        gc.strokePolyline(xpos, ypos, insertat);
+    // the first sample shown, scrollbar values are exact for indices below 2^53
+    private long viewStart() {
+        return (long) hscrollbar.getValue();
+    }
+
+    private long viewEnd() {
+        return Math.min(displayedcapture.getSamplesize(), viewStart() + (long) Math.ceil(drawingwidth() * samplesperpixel));
     }
 
-    private void buildSamplesegment(String samplesegment) {
-        for (int cptr = 0; cptr < samplesegment.length(); cptr++) {
-            switch (samplesegment.charAt(cptr)) {
-                case 'H' -> {
-                    insertHigh();
+    private void zoom(double factor, double atx) {
+        if (displayedcapture == null) {
+            return;
+        }
+        double anchor = viewStart() + Math.max(0, atx - MARGIN) * samplesperpixel;
+        samplesperpixel = Math.max(1.0 / 64, samplesperpixel * factor);
+        hscrollbar.setValue(Math.max(0, anchor - Math.max(0, atx - MARGIN) * samplesperpixel));
+        redrawSampleDisplay();
+    }
+
+    private void zoomToFit() {
+        if (displayedcapture != null) {
+            samplesperpixel = Math.max(1.0 / 64, (double) displayedcapture.getSamplesize() / drawingwidth());
+            hscrollbar.setValue(0);
+            redrawSampleDisplay();
+        }
+    }
+
+    // centre the viewport on a sample
+    public void showSample(long sample) {
+        if (displayedcapture != null) {
+            hscrollbar.setValue(Math.max(0, sample - drawingwidth() * samplesperpixel / 2));
+            redrawSampleDisplay();
+        }
+    }
+
+    private boolean redrawing = false;
+
+    private void redrawSampleDisplay() {
+        if (redrawing) {
+            return; // scrollbar adjustments during a redraw
+        }
+        redrawing = true;
+        try {
+            redrawSampleDisplayworker();
+        } finally {
+            redrawing = false;
+        }
+    }
+
+    private void redrawSampleDisplayworker() {
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, sampledisplaycanvas.getWidth(), sampledisplaycanvas.getHeight());
+        if (displayedcapture == null || !displayedcapture.isResident()) {
+            return;
+        }
+        LafeEvents.RenderEvent event = new LafeEvents.RenderEvent();
+        event.begin();
+        long starttime = System.nanoTime();
+        Map<Integer, PinSamples> samples = displayedcapture.getSamples();
+        List<DerivedChannel> derived = controller.getDerivedChannels();
+        List<UartDecoder> decoders = controller.getDecoders();
+        Channels channels = controller.getChannels();
+        int rows = samples.size() + derived.size() + decoders.size();
+        updateScrollbars(rows);
+        int rowheight = rowHeight(rows);
+        int firstrow = (int) vscrollbar.getValue();
+        int row = 0;
+        for (var es : samples.entrySet()) {
+            int top = (row++ - firstrow) * rowheight + MARGIN;
+            if (top >= 0 && top < sampledisplaycanvas.getHeight()) {
+                drawRowLabel("Pin " + es.getKey(), top);
+                drawSample(es.getValue(), top, top + rowheight - MARGIN);
+                drawRanges(displayedcapture.getPendingRanges(es.getKey()), PENDING_FILL, top - MARGIN / 2, rowheight);
+                if (diffresult != null) {
+                    drawRanges(diffresult.getHighlights(displayedcapture, Channels.ofPin(es.getKey())), DIFF_FILL,
+                            top - MARGIN / 2, rowheight);
                 }
-                case 'L' -> {
-                    insertLow();
+            }
+        }
+        for (DerivedChannel channel : derived) {
+            int top = (row++ - firstrow) * rowheight + MARGIN;
+            if (top >= 0 && top < sampledisplaycanvas.getHeight()) {
+                if (!channel.canEvaluate(samples)) {
+                    drawRowLabel(channel.name + " (pins not in this capture)", top);
+                } else if (channel.isBus()) {
+                    drawRowLabel(channel.name, top);
+                    drawBus(channel.evaluateBus(samples), top, top + rowheight - MARGIN);
+                } else {
+                    drawRowLabel(channel.name, top);
+                    drawSample(channel.evaluatePin(samples), top, top + rowheight - MARGIN);
+                    if (diffresult != null) {
+                        drawRanges(diffresult.getHighlights(displayedcapture, channel.name), DIFF_FILL,
+                                top - MARGIN / 2, rowheight);
+                    }
+                }
+            }
+        }
+        long annotationnanos = 0;
+        for (UartDecoder decoder : decoders) {
+            int top = (row++ - firstrow) * rowheight + MARGIN;
+            if (top >= 0 && top < sampledisplaycanvas.getHeight()) {
+                if (!decoder.canDecode(channels, samples)) {
+                    drawRowLabel(decoder + " (not in this capture)", top);
+                } else {
+                    AnnotationLayer annotations = decoder.annotate(channels, samples, displayedcapture.getSampleRate());
+                    drawRowLabel(decoder + " - " + annotations.size() + " bytes", top);
+                    long drawstart = System.nanoTime();
+                    event.annotations += annotations.draw(gc, viewStart(), viewEnd(), samplesperpixel, MARGIN, top,
+                            rowheight - MARGIN);
+                    annotationnanos += System.nanoTime() - drawstart;
                 }
-                default ->
-                    cptr = decoderle(cptr, samplesegment);
             }
         }
+        if (!displayedcapture.isComplete()) {
+            int[] visible = visibleRows(rows);
+            controller.viewportChanged(displayedcapture, viewStart(), viewEnd(), visible[0], visible[1]);
+        }
+        TimeBase timebase = displayedcapture.getTimeBase();
+        viewportstatus.setText(timebase.format(viewStart()) + " to " + timebase.format(viewEnd())
+                + String.format(" (%.3g samples/pixel)", samplesperpixel));
+        Metrics.duration(Metrics.RENDER, System.nanoTime() - starttime);
+        if (!decoders.isEmpty()) {
+            Metrics.duration(Metrics.ANNOTATIONS, annotationnanos);
+        }
+        event.pins = rows;
+        event.commit();
     }
 
-    private int decoderle(int cptr, String s) {
-        char c = s.charAt(cptr);
-        int count = 0;
-        while ('0' <= c && c <= '9') {
-            count = count * 10 + (int) (c - '0');
-            c = s.charAt(++cptr);
+    private void drawRowLabel(String label, int top) {
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        gc.setFill(DARKGREY);
+        gc.fillText(label, MARGIN, top - 4);
+    }
+
+    // a bus is drawn as a band, with the value written in each segment wide enough
+    // to hold it; when zoomed out, columns containing several changes are filled
+    private void drawBus(BusSamples bus, int highpos, int lowpos) {
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        gc.setStroke(RED);
+        gc.setFill(RED);
+        gc.setLineWidth(1.0);
+        long start = viewStart();
+        long end = Math.min(bus.size(), viewEnd());
+        if (start >= end) {
+            return;
         }
-        switch (c) {
-            case 'H' ->
-                insertHigh(count);
-            case 'L' ->
-                insertLow(count);
-            default ->
-                throw new Failure("Badly encoded RLE data: " + c);
+        if (samplesperpixel <= 1) {
+            long pos = start;
+            while (pos < end) {
+                long next = Math.min(bus.nextChange(pos), end);
+                drawBusSegment(bus, bus.valueAt(pos), MARGIN + (pos - start) / samplesperpixel,
+                        MARGIN + (next - start) / samplesperpixel, highpos, lowpos);
+                pos = next;
+            }
+            return;
+        }
+        int value = bus.valueAt(start);
+        double segmentstart = MARGIN;
+        for (int x = 0; x < drawingwidth(); x++) {
+            long s0 = start + (long) (x * samplesperpixel);
+            long s1 = Math.min(end, start + (long) ((x + 1) * samplesperpixel));
+            if (s0 >= s1) {
+                break;
+            }
+            if (bus.valueAt(s0) != value) {
+                drawBusSegment(bus, value, segmentstart, MARGIN + x, highpos, lowpos);
+                value = bus.valueAt(s0);
+                segmentstart = MARGIN + x;
+            }
+            if (bus.changeCount(s0, s1) > 0) {
+                drawBusSegment(bus, value, segmentstart, MARGIN + x, highpos, lowpos);
+                gc.fillRect(MARGIN + x, highpos, 1, lowpos - highpos);
+                value = bus.valueAt(s1 - 1);
+                segmentstart = MARGIN + x + 1;
+            }
         }
-        return cptr;
+        drawBusSegment(bus, value, segmentstart, MARGIN + (end - start) / samplesperpixel, highpos, lowpos);
     }
 
-    private void insertHigh() {
-        insertHigh(1);
+    private void drawBusSegment(BusSamples bus, int value, double x0, double x1, int highpos, int lowpos) {
+        if (x1 <= x0) {
+            return;
+        }
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        double bevel = Math.min(3, (x1 - x0) / 2);
+        double middle = (highpos + lowpos) / 2.0;
+        gc.strokePolyline(new double[]{x0, x0 + bevel, x1 - bevel, x1, x1 - bevel, x0 + bevel, x0},
+                new double[]{middle, highpos, highpos, middle, lowpos, lowpos, middle}, 7);
+        String text = bus.format(value);
+        if (x1 - x0 > text.length() * 8 + 2 * bevel) {
+            gc.fillText(text, (x0 + x1) / 2 - text.length() * 3.5, middle + 4);
+        }
     }
 
-    private void insertHigh(int width) {
-        insert(highpos, width);
+    // shade ranges of a pin's row - the parts not yet downloaded, or which differ
+    // in a diff (ranges are from, to pairs in order; at least a pixel is shaded)
+    private void drawRanges(long[] ranges, Color fill, double top, double height) {
+        if (ranges.length == 0) {
+            return;
+        }
+        long start = viewStart();
+        long end = viewEnd();
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        gc.setFill(fill);
+        for (int i = 0; i < ranges.length && ranges[i] < end; i += 2) {
+            long from = Math.max(start, ranges[i]);
+            long to = Math.min(end, ranges[i + 1]);
+            if (from < to) {
+                gc.fillRect(MARGIN + (from - start) / samplesperpixel, top, Math.max(1, (to - from) / samplesperpixel), height);
+            }
+        }
+    }
+
+    private int rowHeight(int rows) {
+        int fit = rows == 0 ? MAX_ROW_HEIGHT : ((int) sampledisplaycanvas.getHeight() - MARGIN) / rows;
+        return Math.max(MIN_ROW_HEIGHT, Math.min(MAX_ROW_HEIGHT, fit));
+    }
+
+    // the first pin row shown, and the number of rows shown, for a capture of this many pins
+    public int[] visibleRows(int rows) {
+        int visiblerows = Math.max(1, ((int) sampledisplaycanvas.getHeight() - MARGIN) / rowHeight(rows));
+        int firstrow = Math.max(0, Math.min((int) vscrollbar.getValue(), rows - visiblerows));
+        return new int[]{firstrow, visiblerows};
+    }
+
+    private void updateScrollbars(int rows) {
+        double visible = drawingwidth() * samplesperpixel;
+        hscrollbar.setMax(Math.max(0, displayedcapture.getSamplesize() - visible));
+        hscrollbar.setVisibleAmount(Math.min(visible, displayedcapture.getSamplesize()));
+        hscrollbar.setUnitIncrement(Math.max(1, visible / 20));
+        hscrollbar.setBlockIncrement(Math.max(1, visible * 0.9));
+        int visiblerows = Math.max(1, ((int) sampledisplaycanvas.getHeight() - MARGIN) / rowHeight(rows));
+        vscrollbar.setMax(Math.max(0, rows - visiblerows));
+        vscrollbar.setVisibleAmount(visiblerows);
     }
 
-    private void insertLow() {
-        insertLow(1);
+    // sample drawing variables
+    private double[] xpos;
+    private double[] ypos;
+    private int insertat;
+
+    // draws the visible range only: edge by edge when zoomed in, and one
+    // column per pixel (marking columns containing edges) when zoomed out
+    private void drawSample(PinSamples sample, int highpos, int lowpos) {
+        int pixels = drawingwidth();
+        long start = viewStart();
+        long end = Math.min(sample.size(), viewEnd());
+        xpos = new double[5 * (pixels + 2)];
+        ypos = new double[xpos.length];
+        insertat = 0;
+        if (start < end) {
+            if (samplesperpixel <= 1) {
+                boolean level = sample.levelAt(start);
+                long pos = start;
+                while (pos < end) {
+                    long next = Math.min(sample.nextEdge(pos), end);
+                    insert(MARGIN + (pos - start) / samplesperpixel, MARGIN + (next - start) / samplesperpixel, level ? highpos : lowpos);
+                    level = !level;
+                    pos = next;
+                }
+            } else {
+                for (int x = 0; x < pixels; x++) {
+                    long s0 = start + (long) (x * samplesperpixel);
+                    long s1 = Math.min(end, start + (long) ((x + 1) * samplesperpixel));
+                    if (s0 >= s1) {
+                        break;
+                    }
+                    boolean first = sample.levelAt(s0);
+                    if (sample.edgeCount(s0, s1) > 0) {
+                        boolean last = sample.levelAt(s1 - 1);
+                        point(MARGIN + x, first ? highpos : lowpos);
+                        point(MARGIN + x, first ? lowpos : highpos);
+                        point(MARGIN + x, first ? highpos : lowpos);
+                        point(MARGIN + x, last ? highpos : lowpos);
+                        point(MARGIN + x + 1, last ? highpos : lowpos);
+                    } else {
+                        insert(MARGIN + x, MARGIN + x + 1, first ? highpos : lowpos);
+                    }
+                }
+            }
+        }
+        GraphicsContext gc = sampledisplaycanvas.getGraphicsContext2D();
+        gc.setStroke(RED);
+        gc.setLineWidth(2.0);
+        gc.strokePolyline(xpos, ypos, insertat);
     }
 
-    private void insertLow(int width) {
-        insert(lowpos, width);
+    private void insert(double xstart, double xend, int vpos) {
+        point(xstart, vpos);
+        point(xend, vpos);
     }
 
-    private void insert(int vpos, int width) {
-        xpos[insertat] = hstart;
-        ypos[insertat++] = vpos;
-        hstart += hscale * width;
-        xpos[insertat] = hstart;
-        ypos[insertat++] = vpos;
+    private void point(double x, int y) {
+        if (insertat == xpos.length) {
+            xpos = Arrays.copyOf(xpos, insertat * 2);
+            ypos = Arrays.copyOf(ypos, insertat * 2);
+        }
+        xpos[insertat] = x;
+        ypos[insertat++] = y;
     }
 }
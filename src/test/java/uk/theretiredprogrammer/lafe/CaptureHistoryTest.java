@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import static uk.theretiredprogrammer.lafe.TestSamples.assertLevels;
+
+public class CaptureHistoryTest {
+
+    private static final long WAIT_MS = 5000;
+
+    @Test
+    public void leastRecentlyUsedCapturesAreSpilledAndReloaded() {
+        CaptureHistory history = new CaptureHistory();
+        history.budgetkb.set(0); // only the most recently used capture stays resident
+        Capture first = capture(10);
+        Capture second = capture(20);
+        history.add(first);
+        history.add(second);
+        assertTrue(waitFor(() -> !first.isResident()), "first capture spilled");
+        assertTrue(second.isResident());
+        assertNotNull(first.getSpillFile());
+        assertSame(first, history.get(first.getId()));
+        assertTrue(first.isResident());
+        assertLevels(levels(10), first.getSamples().get(15));
+        assertTrue(waitFor(() -> !second.isResident()), "second capture spilled");
+        assertEquals(List.of(second, first), history.getCaptures());
+    }
+
+    @Test
+    public void trimmedCapturesLoseTheirFiles() {
+        CaptureHistory history = new CaptureHistory();
+        history.budgetkb.set(0);
+        Capture first = capture(10);
+        history.add(first);
+        history.add(capture(20));
+        assertTrue(waitFor(() -> first.getSpillFile() != null), "first capture spilled");
+        File file = first.getSpillFile();
+        assertTrue(file.exists());
+        history.maxcaptures.set(1);
+        assertFalse(file.exists());
+        assertEquals(1, history.getCaptures().size());
+    }
+
+    @Test
+    public void capturesOverTheCountAreDropped() {
+        CaptureHistory history = new CaptureHistory();
+        history.maxcaptures.set(2);
+        Capture first = capture(10);
+        history.add(first);
+        history.add(capture(20));
+        history.add(capture(30));
+        assertEquals(2, history.getCaptures().size());
+        assertNull(history.get(first.getId()));
+    }
+
+    // pin 15 toggling every period samples, over 1000 samples
+    private static Capture capture(int period) {
+        PinSamplesBuilder builder = new PinSamplesBuilder(1000);
+        for (int i = 0; i < 1000; i += period) {
+            builder.append(i / period % 2 == 1, period);
+        }
+        Map<Integer, PinSamples> samples = new LinkedHashMap<>();
+        samples.put(15, builder.build());
+        return new Capture(new ProbeConfiguration(), samples);
+    }
+
+    private static boolean[] levels(int period) {
+        boolean[] levels = new boolean[1000];
+        for (int i = 0; i < 1000; i++) {
+            levels[i] = i / period % 2 == 1;
+        }
+        return levels;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
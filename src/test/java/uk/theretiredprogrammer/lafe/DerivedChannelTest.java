@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import static uk.theretiredprogrammer.lafe.TestSamples.assertLevels;
+
+public class DerivedChannelTest {
+
+    private static final int SIZE = 500;
+
+    private final Map<Integer, PinSamples> samples = randomPins(new Random(6), 15, 3);
+
+    @Test
+    public void invert() {
+        assertExpression("inv(15)", (levels) -> !levels[0]);
+        assertExpression("inv(inv(16))", (levels) -> levels[1]);
+    }
+
+    @Test
+    public void logic() {
+        assertExpression("and(15, 16)", (levels) -> levels[0] && levels[1]);
+        assertExpression("or(15,16,17)", (levels) -> levels[0] || levels[1] || levels[2]);
+        assertExpression("xor(15, 16, 17)", (levels) -> levels[0] ^ levels[1] ^ levels[2]);
+        assertExpression(" AND( inv(15) , or(16, 17) ) ", (levels) -> !levels[0] && (levels[1] || levels[2]));
+    }
+
+    @Test
+    public void debounceAbsorbsShortRuns() {
+        Map<Integer, PinSamples> pin = Map.of(15, TestSamples.levels("LLLLHLLLLHHHHLLHHHHH"));
+        PinSamples debounced = DerivedChannel.parse("clean", "debounce(15, 3)").evaluatePin(pin);
+        assertLevels(levels("LLLLLLLLLHHHHHHHHHHH"), debounced);
+        PinSamples unchanged = DerivedChannel.parse("same", "debounce(15, 1)").evaluatePin(pin);
+        assertLevels(levels("LLLLHLLLLHHHHLLHHHHH"), unchanged);
+    }
+
+    @Test
+    public void busValues() {
+        DerivedChannel bus = DerivedChannel.parse("data", "bus(15..17)");
+        assertTrue(bus.isBus());
+        BusSamples values = bus.evaluateBus(samples);
+        DerivedChannel reversed = DerivedChannel.parse("atad", "bus(17, 16, 15)");
+        BusSamples reversedvalues = reversed.evaluateBus(samples);
+        assertEquals(SIZE, values.size());
+        assertEquals(3, values.width());
+        long changes = 0;
+        for (int i = 0; i < SIZE; i++) {
+            boolean[] levels = levelsAt(i);
+            int expected = (levels[0] ? 1 : 0) | (levels[1] ? 2 : 0) | (levels[2] ? 4 : 0);
+            assertEquals(expected, values.valueAt(i), "value at " + i);
+            assertEquals((levels[2] ? 1 : 0) | (levels[1] ? 2 : 0) | (levels[0] ? 4 : 0), reversedvalues.valueAt(i));
+            if (i > 0 && expected != values.valueAt(i - 1)) {
+                changes++;
+            }
+        }
+        assertEquals(changes, values.changeCount(0, SIZE));
+    }
+
+    @Test
+    public void pinsAndEvaluation() {
+        DerivedChannel channel = DerivedChannel.parse("ready", "and(17, debounce(inv(15), 2))");
+        assertEquals(List.of(17, 15), List.copyOf(channel.getPins()));
+        assertFalse(channel.isBus());
+        assertTrue(channel.canEvaluate(samples));
+        assertFalse(channel.canEvaluate(Map.of(15, samples.get(15))));
+        assertSame(channel.evaluatePin(samples), channel.evaluatePin(samples)); // cached for the capture
+        assertThrows(Failure.class, () -> channel.evaluateBus(samples));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("data", "bus(15..16)").evaluatePin(samples));
+    }
+
+    @Test
+    public void badDefinitionsAreRejected() {
+        assertThrows(Failure.class, () -> DerivedChannel.parse("16", "inv(15)"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse(" ", "inv(15)"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("a=b", "inv(15)"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("x", "and(15, 16"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("x", "nand(15, 16)"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("x", "inv(15) 16"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("x", "inv(bus(15..16))"));
+        assertThrows(Failure.class, () -> DerivedChannel.parse("x", "debounce(15)"));
+    }
+
+    private void assertExpression(String expression, Function<boolean[], Boolean> expected) {
+        boolean[] levels = new boolean[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            levels[i] = expected.apply(levelsAt(i));
+        }
+        assertLevels(levels, DerivedChannel.parse("derived", expression).evaluatePin(samples));
+    }
+
+    private boolean[] levelsAt(long sample) {
+        return new boolean[]{samples.get(15).levelAt(sample), samples.get(16).levelAt(sample), samples.get(17).levelAt(sample)};
+    }
+
+    private static boolean[] levels(String levels) {
+        boolean[] result = new boolean[levels.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = levels.charAt(i) == 'H';
+        }
+        return result;
+    }
+
+    private static Map<Integer, PinSamples> randomPins(Random random, int firstpin, int pins) {
+        Map<Integer, PinSamples> result = new LinkedHashMap<>();
+        for (int p = 0; p < pins; p++) {
+            PinSamplesBuilder builder = new PinSamplesBuilder(SIZE);
+            boolean level = random.nextBoolean();
+            for (int i = 0; i < SIZE; i++) {
+                if (random.nextInt(4 + 10 * p) == 0) {
+                    level = !level;
+                }
+                builder.append(level, 1);
+            }
+            result.put(firstpin + p, builder.build());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import uk.theretiredprogrammer.lafe.GlitchDetector.Glitch;
+import uk.theretiredprogrammer.lafe.GlitchDetector.GlitchType;
+import uk.theretiredprogrammer.lafe.GlitchDetector.ScanResult;
+
+public class GlitchDetectorTest {
+
+    private static final Capture CAPTURE = new Capture(new ProbeConfiguration(), Map.of());
+
+    @Test
+    public void runtsAndSkewsOverSeveralPins() {
+        Map<String, PinSamples> samples = new LinkedHashMap<>();
+        samples.put("15", TestSamples.runs(false, 10, 20, 10)); // edges at 10, 30
+        samples.put("16", TestSamples.runs(false, 10, 2, 28)); // edges at 10, 12 - a runt
+        samples.put("17", TestSamples.runs(false, 12, 13, 15)); // edges at 12, 25 - skewed from 15 and 16
+        ScanResult result = GlitchDetector.scan(CAPTURE, samples, 3, 4);
+        assertEquals(6, result.edges);
+        assertEquals(1, result.runts);
+        assertEquals(2, result.skews);
+        assertEquals(List.of("RUNT 16 16 10 2"), describe(result.glitches, GlitchType.RUNT));
+        assertEquals(List.of("SKEW 15 17 10 2", "SKEW 16 17 10 2"), describe(result.glitches, GlitchType.SKEW));
+    }
+
+    @Test
+    public void coincidentEdgesAreNotSkewed() {
+        Map<String, PinSamples> samples = new LinkedHashMap<>();
+        samples.put("15", TestSamples.runs(true, 10, 10));
+        samples.put("16", TestSamples.runs(false, 10, 10));
+        samples.put("17", TestSamples.runs(false, 10, 10));
+        ScanResult result = GlitchDetector.scan(CAPTURE, samples, 2, 4);
+        assertEquals(3, result.edges);
+        assertEquals(0, result.skews);
+        assertEquals(0, result.glitches.size());
+    }
+
+    @Test
+    public void skewsAreWithinTheLimit() {
+        Map<String, PinSamples> samples = new LinkedHashMap<>();
+        samples.put("15", TestSamples.runs(false, 10, 30)); // edge at 10
+        samples.put("16", TestSamples.runs(false, 13, 27)); // 3 samples later - skewed
+        samples.put("17", TestSamples.runs(false, 14, 26)); // 4 samples later - not skewed from 15
+        ScanResult result = GlitchDetector.scan(CAPTURE, samples, 2, 4);
+        assertEquals(List.of("SKEW 15 16 10 3", "SKEW 16 17 13 1"), describe(result.glitches, GlitchType.SKEW));
+    }
+
+    @Test
+    public void onlyEdgesSinceThePinsPreviousEdgeAreSkewed() {
+        Map<String, PinSamples> samples = new LinkedHashMap<>();
+        samples.put("15", TestSamples.runs(false, 10, 30)); // edge at 10
+        samples.put("16", TestSamples.runs(false, 11, 2, 27)); // edges at 11 and 13
+        ScanResult result = GlitchDetector.scan(CAPTURE, samples, 1, 4);
+        assertEquals(List.of("SKEW 15 16 10 1"), describe(result.glitches, GlitchType.SKEW));
+    }
+
+    @Test
+    public void derivedChannelsAreScannedByName() {
+        Map<String, PinSamples> samples = new LinkedHashMap<>();
+        samples.put("15", TestSamples.runs(false, 10, 30));
+        samples.put("clock", TestSamples.runs(true, 5, 1, 34));
+        ScanResult result = GlitchDetector.scan(CAPTURE, samples, 2, 1);
+        assertEquals(List.of("RUNT clock clock 5 1"), describe(result.glitches, GlitchType.RUNT));
+        assertEquals(0, result.skews);
+    }
+
+    @Test
+    public void mergeMatchesAPinByPinSearch() {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 200; trial++) {
+            int pins = 1 + random.nextInt(6);
+            Map<String, PinSamples> samples = new LinkedHashMap<>();
+            for (int p = 0; p < pins; p++) {
+                samples.put(Integer.toString(p), randomPin(random, 400, 2 + random.nextInt(12)));
+            }
+            long minwidth = 1 + random.nextInt(4);
+            long skewlimit = 1 + random.nextInt(6);
+            ScanResult result = GlitchDetector.scan(CAPTURE, samples, minwidth, skewlimit);
+            List<String> expected = search(samples, minwidth, skewlimit);
+            List<String> actual = new ArrayList<>(describe(result.glitches, GlitchType.RUNT));
+            actual.addAll(describe(result.glitches, GlitchType.SKEW));
+            expected.sort(null);
+            actual.sort(null);
+            assertEquals(expected, actual, "trial " + trial);
+            assertEquals(expected.size(), result.runts + result.skews, "trial " + trial);
+        }
+    }
+
+    // each edge against its own pin's previous edge, and the last earlier edge of every other pin
+    private static List<String> search(Map<String, PinSamples> samples, long minwidth, long skewlimit) {
+        List<String> glitches = new ArrayList<>();
+        for (var es : samples.entrySet()) {
+            PinSamples pin = es.getValue();
+            long previous = -1;
+            for (long edge = pin.nextEdge(0); edge < pin.size(); edge = pin.nextEdge(edge)) {
+                if (previous >= 0 && edge - previous < minwidth) {
+                    glitches.add("RUNT " + es.getKey() + " " + es.getKey() + " " + previous + " " + (edge - previous));
+                }
+                for (var other : samples.entrySet()) {
+                    long at = lastEdgeBefore(other.getValue(), edge);
+                    if (other != es && at > previous && edge - at < skewlimit) {
+                        glitches.add("SKEW " + other.getKey() + " " + es.getKey() + " " + at + " " + (edge - at));
+                    }
+                }
+                previous = edge;
+            }
+        }
+        return glitches;
+    }
+
+    private static long lastEdgeBefore(PinSamples samples, long sample) {
+        long last = -1;
+        for (long edge = samples.nextEdge(0); edge < sample; edge = samples.nextEdge(edge)) {
+            last = edge;
+        }
+        return last;
+    }
+
+    private static PinSamples randomPin(Random random, int size, int meanrun) {
+        PinSamplesBuilder builder = new PinSamplesBuilder(size);
+        boolean level = random.nextBoolean();
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(meanrun) == 0) {
+                level = !level;
+            }
+            builder.append(level, 1);
+        }
+        return builder.build();
+    }
+
+    private static List<String> describe(List<Glitch> glitches, GlitchType type) {
+        return glitches.stream().filter(g -> g.type == type)
+                .map(g -> g.type.name() + " " + g.channel + " " + g.otherchannel + " " + g.sample + " " + g.width)
+                .sorted().collect(Collectors.toList());
+    }
+}
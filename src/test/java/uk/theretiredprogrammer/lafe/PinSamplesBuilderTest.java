@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import static uk.theretiredprogrammer.lafe.TestSamples.assertLevels;
+
+public class PinSamplesBuilderTest {
+
+    @Test
+    public void sparseSamplesAreTransitions() {
+        boolean[] expected = randomLevels(new Random(1), 10000, 500);
+        PinSamples samples = build(expected);
+        assertTrue(samples instanceof TransitionPinSamples, samples.getClass().getSimpleName());
+        assertLevels(expected, samples);
+    }
+
+    @Test
+    public void denseSamplesAreABitset() {
+        boolean[] expected = randomLevels(new Random(2), 10000, 3);
+        PinSamples samples = build(expected);
+        assertTrue(samples instanceof BitsetPinSamples, samples.getClass().getSimpleName());
+        assertLevels(expected, samples);
+    }
+
+    @Test
+    public void constantSamplesHaveNoEdges() {
+        PinSamples samples = TestSamples.runs(true, 1000);
+        assertEquals(0, samples.edgeCount());
+        assertEquals(1000, samples.nextEdge(0));
+        assertTrue(samples.levelAt(999));
+        assertEquals(1000, samples.highCount(0, 1000));
+    }
+
+    @Test
+    public void edgeAndHighCountsOverARange() {
+        PinSamples samples = TestSamples.levels("LLHHHLLHLL");
+        assertEquals(4, samples.edgeCount());
+        assertEquals(4, samples.edgeCount(0, 10));
+        assertEquals(3, samples.edgeCount(1, 8));
+        assertEquals(1, samples.edgeCount(2, 7)); // edges at from and to are not counted
+        assertEquals(3, samples.highCount(0, 5));
+        assertEquals(4, samples.highCount(0, 10));
+    }
+
+    @Test
+    public void segmentsJoinWithAnEdgeOnlyWhereTheLevelChanges() {
+        boolean[] expected = new boolean[300];
+        Random random = new Random(3);
+        boolean[] first = randomLevels(random, 100, 7);
+        boolean[] second = randomLevels(random, 100, 2);
+        boolean[] third = randomLevels(random, 100, 40);
+        System.arraycopy(first, 0, expected, 0, 100);
+        System.arraycopy(second, 0, expected, 100, 100);
+        System.arraycopy(third, 0, expected, 200, 100);
+        PinSamples samples = new SegmentedPinSamples(List.of(build(first), build(second), build(third)));
+        assertLevels(expected, samples);
+    }
+
+    @Test
+    public void longCapturesAreBuiltInSegments() {
+        long boundary = PinSamplesBuilder.SEGMENT_SAMPLES;
+        PinSamples samples = TestSamples.runs(false, boundary - 5, 10, 100);
+        assertTrue(samples instanceof SegmentedPinSamples, samples.getClass().getSimpleName());
+        assertEquals(2, ((SegmentedPinSamples) samples).segmentCount());
+        assertEquals(boundary + 105, samples.size());
+        assertEquals(2, samples.edgeCount());
+        assertEquals(boundary - 5, samples.nextEdge(0));
+        assertEquals(boundary + 5, samples.nextEdge(boundary - 5));
+        assertFalse(samples.levelAt(boundary - 6));
+        assertTrue(samples.levelAt(boundary));
+        assertFalse(samples.levelAt(boundary + 5));
+        assertEquals(samples.size(), samples.nextEdge(boundary + 5));
+    }
+
+    @Test
+    public void samplesSurviveWriteAndRead() throws IOException {
+        Random random = new Random(4);
+        boolean[] a = randomLevels(random, 2000, 300);
+        boolean[] b = randomLevels(random, 2000, 2);
+        boolean[] ab = new boolean[4000];
+        System.arraycopy(a, 0, ab, 0, 2000);
+        System.arraycopy(b, 0, ab, 2000, 2000);
+        assertRoundTrip(a, build(a));
+        assertRoundTrip(b, build(b));
+        assertRoundTrip(ab, new SegmentedPinSamples(List.of(build(a), build(b))));
+    }
+
+    private static void assertRoundTrip(boolean[] expected, PinSamples samples) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( DataOutputStream out = new DataOutputStream(bytes)) {
+            samples.write(out);
+        }
+        PinSamples read = PinSamples.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(samples.getClass(), read.getClass());
+        assertLevels(expected, read);
+    }
+
+    // runs of random length, averaging meanrun samples
+    private static boolean[] randomLevels(Random random, int size, int meanrun) {
+        boolean[] levels = new boolean[size];
+        boolean level = random.nextBoolean();
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(meanrun) == 0) {
+                level = !level;
+            }
+            levels[i] = level;
+        }
+        return levels;
+    }
+
+    private static PinSamples build(boolean[] levels) {
+        PinSamplesBuilder builder = new PinSamplesBuilder(levels.length);
+        for (boolean level : levels) {
+            builder.append(level, 1);
+        }
+        return builder.build();
+    }
+}
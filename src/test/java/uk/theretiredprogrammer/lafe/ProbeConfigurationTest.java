@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+public class ProbeConfigurationTest {
+
+    @Test
+    public void sampleSizeIsAWholeNumberOfUnits() {
+        ProbeConfiguration config = new ProbeConfiguration();
+        config.definitions.set(ProbeDefinitions.get("pico", "1"));
+        assertEquals("", config.validate());
+        config.samplesize.set(1000);
+        assertEquals("Sample size must be a multiple of 160", config.validate());
+        assertEquals("Sample size must be a multiple of 160", config.configurationerror.get());
+        config.samplesize.set(160 * 6000);
+        assertEquals("", config.validate());
+        config.samplesize.set(160 * 6001);
+        assertEquals("Sample size must not exceed 960000", config.validate());
+    }
+
+    @Test
+    public void anyPositiveSampleSizeWithoutDefinitions() {
+        ProbeConfiguration config = new ProbeConfiguration();
+        config.samplesize.set(1001);
+        assertEquals("", config.validate());
+        config.samplesize.set(0);
+        assertEquals("Sample size must be at least 1", config.validate());
+    }
+}
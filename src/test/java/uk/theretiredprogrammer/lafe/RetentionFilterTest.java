@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class RetentionFilterTest {
+
+    private static final TimeBase MILLISECONDS = new TimeBase(1000);
+    // complete pulses are: high 3, low 2, high 6 - the leading and trailing levels are not complete pulses
+    private static final PinSamples PULSES = TestSamples.levels("LLLLHHHLLHHHHHHLLLLLLLLLLLLLLL");
+
+    @Test
+    public void pulseWidthInSamples() {
+        assertTrue(matches("pulse(15) < 3", PULSES));
+        assertFalse(matches("pulse(15) < 2", PULSES));
+        assertTrue(matches("pulse(15) == 6", PULSES));
+        assertFalse(matches("pulse(15) > 6", PULSES)); // the trailing low level is not complete
+        assertFalse(matches("pulse(15) == 4", PULSES)); // nor is the leading low level
+    }
+
+    @Test
+    public void pulseOfOneLevel() {
+        assertTrue(matches("pulse(15, low) == 2", PULSES));
+        assertFalse(matches("pulse(15, high) == 2", PULSES));
+        assertTrue(matches("pulse(15, HIGH) <= 3", PULSES));
+        assertFalse(matches("pulse(15, low) != 2", PULSES));
+    }
+
+    @Test
+    public void pulseWidthAsADuration() {
+        assertTrue(matches("pulse(15) >= 6ms", PULSES));
+        assertFalse(matches("pulse(15) > 6ms", PULSES));
+        assertTrue(matches("pulse(15) == 2000us", PULSES));
+        assertTrue(matches("pulse(15) < 0.0025s", PULSES));
+        assertFalse(matches("pulse(15) < 1999999ns", PULSES));
+    }
+
+    @Test
+    public void edgeCount() {
+        assertTrue(matches("edges(15) == 4", PULSES));
+        assertFalse(matches("edges(15) > 4", PULSES));
+    }
+
+    @Test
+    public void uartByte() {
+        PinSamples frames = uart(0x41, 0x55);
+        assertTrue(RetentionFilter.parse("uart(15, 9600) == 0x55").matches(frames, new TimeBase(96000)));
+        assertTrue(RetentionFilter.parse("uart(15, 9600) == 65").matches(frames, new TimeBase(96000)));
+        assertFalse(RetentionFilter.parse("uart(15, 9600) == 0x42").matches(frames, new TimeBase(96000)));
+        assertTrue(RetentionFilter.parse("uart(15, 9600) != 0x41").matches(frames, new TimeBase(96000)));
+    }
+
+    @Test
+    public void filtersOnPinsNotSampledAreIgnored() {
+        List<RetentionFilter> filters = List.of(RetentionFilter.parse("edges(16) > 100"), RetentionFilter.parse("edges(15) > 100"));
+        assertFalse(RetentionFilter.anyMatches(filters, Map.of(15, PULSES), 1000));
+        assertTrue(RetentionFilter.anyMatches(filters, Map.of(17, PULSES), 1000)); // none evaluated - kept
+        assertTrue(RetentionFilter.anyMatches(List.of(RetentionFilter.parse("edges(16) > 100"),
+                RetentionFilter.parse("pulse(15) == 3")), Map.of(15, PULSES, 16, PULSES), 1000));
+        assertEquals(List.of(16, 15), List.copyOf(RetentionFilter.getPins(filters)));
+    }
+
+    @Test
+    public void badExpressionsAreRejected() {
+        assertThrows(Failure.class, () -> RetentionFilter.parse("pulse(15, middle) < 3"));
+        assertThrows(Failure.class, () -> RetentionFilter.parse("pulse(15) < 3 fortnights"));
+        assertThrows(Failure.class, () -> RetentionFilter.parse("edges(15, high) > 2"));
+        assertThrows(Failure.class, () -> RetentionFilter.parse("uart(15) == 3"));
+        assertThrows(Failure.class, () -> RetentionFilter.parse("uart(15, 9600) == 256"));
+        assertThrows(Failure.class, () -> RetentionFilter.parse("glitches(15) > 0"));
+    }
+
+    private static boolean matches(String expression, PinSamples samples) {
+        return RetentionFilter.parse(expression).matches(samples, MILLISECONDS);
+    }
+
+    // 8N1 frames at 10 samples a bit, between idle high levels
+    private static PinSamples uart(int... bytes) {
+        StringBuilder levels = new StringBuilder("H".repeat(20));
+        for (int data : bytes) {
+            levels.append("L".repeat(10));
+            for (int bit = 0; bit < 8; bit++) {
+                levels.append(((data >> bit) & 1) == 1 ? "H".repeat(10) : "L".repeat(10));
+            }
+            levels.append("H".repeat(30));
+        }
+        return TestSamples.levels(levels.toString());
+    }
+}
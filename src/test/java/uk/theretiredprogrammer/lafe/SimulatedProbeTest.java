@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static uk.theretiredprogrammer.lafe.ProbeConfiguration.HzUnits.KHZ;
+import static uk.theretiredprogrammer.lafe.TestSamples.assertLevels;
+
+//
+//  arm -> stop -> download round trips against the simulated probe, whose
+//  pin n is a square wave with a half period of 4 << (n - firstpin) samples
+//
+public class SimulatedProbeTest {
+
+    private static final int FIRSTPIN = 2;
+    private static final int PINS = 3;
+    private static final long SAMPLESIZE = 1000;
+
+    private USBSerialDevice usbdevice;
+    private ProbeConfiguration config;
+
+    @BeforeEach
+    public void connect() {
+        usbdevice = new USBSerialDevice(new SimulatedProbeTransport(), (s) -> {
+        });
+        config = new ProbeConfiguration();
+        config.firstpin.set(FIRSTPIN);
+        config.pins.set(PINS);
+        config.speed.set(10);
+        config.speedunit.set(KHZ);
+        config.speedmultiplier.set(1);
+        config.st_enabled.set(false);
+        config.sampleendmode.set(ProbeConfiguration.SampleEndMode.MANUAL);
+        config.samplesize.set(SAMPLESIZE);
+    }
+
+    @AfterEach
+    public void disconnect() {
+        usbdevice.close();
+    }
+
+    @Test
+    public void probeIdentifiesItself() {
+        List<String> lines = new ArrayList<>();
+        assertTrue(usbdevice.sendCommandAndHandleResponse("p", (s) -> lines.add(s)));
+        assertEquals(List.of("pico,1"), lines);
+    }
+
+    @Test
+    public void armStopAndDownloadAll() {
+        arm();
+        SampleRetriever retriever = new SampleRetriever(null, usbdevice, config);
+        assertTrue(retriever.retrieveAll());
+        Capture capture = retriever.getCapture();
+        assertTrue(capture.isComplete());
+        assertEquals(10000, capture.getSampleRate());
+        Map<Integer, PinSamples> samples = capture.getSamples();
+        assertEquals(Set.of(2, 3, 4), samples.keySet());
+        for (int pin = FIRSTPIN; pin < FIRSTPIN + PINS; pin++) {
+            assertLevels(squareWave(pin), samples.get(pin));
+        }
+    }
+
+    @Test
+    public void eventWindowIsDownloadedFirst() {
+        config.sampleendmode.set(ProbeConfiguration.SampleEndMode.EVENTINWINDOW2);
+        arm();
+        SampleRetriever retriever = new SampleRetriever(null, usbdevice, config);
+        assertTrue(retriever.retrieveFirst());
+        Capture capture = retriever.getCapture();
+        assertFalse(capture.isComplete());
+        for (int pin = FIRSTPIN; pin < FIRSTPIN + PINS; pin++) {
+            assertArrayEquals(new long[]{0, 250, 500, 1000}, capture.getPendingRanges(pin), "pin " + pin);
+            PinSamples pinsamples = capture.getSamples().get(pin);
+            boolean[] expected = squareWave(pin);
+            for (int i = 250; i < 500; i++) {
+                assertEquals(expected[i], pinsamples.levelAt(i), "pin " + pin + " level at " + i);
+            }
+        }
+        // the rest of one pin, reusing the event window already downloaded
+        Map<Integer, PinSamples> pin3 = retriever.retrievePins(Set.of(3));
+        assertEquals(Set.of(3), pin3.keySet());
+        assertLevels(squareWave(3), pin3.get(3));
+    }
+
+    @Test
+    public void downloadIsRefusedWhileSampling() {
+        assertTrue(usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> true));
+        SampleRetriever retriever = new SampleRetriever(null, usbdevice, config);
+        assertFalse(retriever.retrieveAll());
+        Capture capture = retriever.getCapture();
+        assertFalse(capture.isComplete()); // not to be published or analysed as if it were
+        for (int pin = FIRSTPIN; pin < FIRSTPIN + PINS; pin++) {
+            assertArrayEquals(new long[]{0, SAMPLESIZE}, capture.getPendingRanges(pin), "pin " + pin);
+            assertEquals(SAMPLESIZE, capture.getSamples().get(pin).size());
+        }
+    }
+
+    private void arm() {
+        assertTrue(usbdevice.sendCommandAndHandleResponse(config.getprobecommand("g"), (s) -> true));
+        assertTrue(usbdevice.sendCommandAndHandleResponse("s", (s) -> true));
+        assertTrue(ProbeStateWatchDog.waitForSamplingDone(usbdevice, 5000, () -> false));
+    }
+
+    private static boolean[] squareWave(int pin) {
+        long halfperiod = 4L << (pin - FIRSTPIN);
+        boolean[] levels = new boolean[(int) SAMPLESIZE];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = (i / halfperiod & 1) == 1;
+        }
+        return levels;
+    }
+}
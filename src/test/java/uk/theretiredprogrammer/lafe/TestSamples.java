@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+//
+//  pin samples for the tests, and checks of a pin's samples against the levels expected
+//
+class TestSamples {
+
+    // levels as a string of L and H, one character per sample
+    static PinSamples levels(String levels) {
+        PinSamplesBuilder builder = new PinSamplesBuilder(levels.length());
+        for (char c : levels.toCharArray()) {
+            builder.append(c == 'H', 1);
+        }
+        return builder.build();
+    }
+
+    // alternate levels, starting at the initial level, for the given run lengths
+    static PinSamples runs(boolean initiallevel, long... lengths) {
+        long size = 0;
+        for (long length : lengths) {
+            size += length;
+        }
+        PinSamplesBuilder builder = new PinSamplesBuilder(size);
+        boolean level = initiallevel;
+        for (long length : lengths) {
+            builder.append(level, length);
+            level = !level;
+        }
+        return builder.build();
+    }
+
+    // checks levelAt, nextEdge and the edge counts against the expected levels, sample by sample
+    static void assertLevels(boolean[] expected, PinSamples samples) {
+        assertEquals(expected.length, samples.size(), "size");
+        assertEquals(expected[0], samples.initialLevel(), "initial level");
+        long edges = 0;
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], samples.levelAt(i), "level at " + i);
+            if (i > 0 && expected[i] != expected[i - 1]) {
+                edges++;
+            }
+        }
+        assertEquals(edges, samples.edgeCount(), "edge count");
+        long next = expected.length;
+        for (int i = expected.length - 1; i >= 0; i--) {
+            assertEquals(next, samples.nextEdge(i), "next edge from " + i);
+            if (i > 0 && expected[i] != expected[i - 1]) {
+                next = i;
+            }
+        }
+    }
+}
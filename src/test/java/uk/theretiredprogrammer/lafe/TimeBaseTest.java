@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Richard Linsdale (richard at theretiredprogrammer.uk).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.lafe;
+
+import java.math.BigDecimal;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class TimeBaseTest {
+
+    @Test
+    public void nanosAtIsTruncated() {
+        TimeBase timebase = new TimeBase(3);
+        assertEquals(0, timebase.nanosAt(0));
+        assertEquals(333333333, timebase.nanosAt(1));
+        assertEquals(666666666, timebase.nanosAt(2));
+        assertEquals(1000000000, timebase.nanosAt(3));
+        assertEquals(1333333333, timebase.nanosAt(4));
+    }
+
+    @Test
+    public void samplesInCountsWholeSamples() {
+        TimeBase timebase = new TimeBase(125000000);
+        assertEquals(0, timebase.samplesIn(7));
+        assertEquals(1, timebase.samplesIn(8));
+        assertEquals(125, timebase.samplesIn(1000));
+        assertEquals(125000000, timebase.samplesIn(1000000000));
+        assertEquals(375000001, timebase.samplesIn(3000000008L));
+    }
+
+    @Test
+    public void longCapturesAtHighRatesDoNotOverflow() {
+        long rate = 200000000; // 200 MHz
+        TimeBase timebase = new TimeBase(rate);
+        long sample = Long.MAX_VALUE / 8;
+        long nanos = timebase.nanosAt(sample);
+        assertEquals(sample * 5, nanos);
+        assertEquals(sample, timebase.samplesIn(nanos));
+        TimeBase odd = new TimeBase(999999937); // a prime, so that no product divides exactly
+        assertEquals(1000000063L, odd.nanosAt(999999937 + 63));
+        assertEquals(999999937L * 1000, odd.samplesIn(1000000000000L));
+    }
+
+    @Test
+    public void secondsAtIsExact() {
+        TimeBase timebase = new TimeBase(3);
+        assertEquals(new BigDecimal("0.3333"), timebase.secondsAt(1, 4));
+        assertEquals(new BigDecimal("2"), timebase.secondsAt(6, 4).stripTrailingZeros());
+    }
+
+    @Test
+    public void formatChoosesAUnit() {
+        assertEquals("999 ns", TimeBase.formatNanos(999));
+        assertEquals(String.format("%.3f \u00b5s", 1.5), TimeBase.formatNanos(1500));
+        assertEquals(String.format("%.3f ms", 2.0), TimeBase.formatNanos(2000000));
+        assertEquals(String.format("%.6f s", 3.25), TimeBase.formatNanos(3250000000L));
+        assertEquals(String.format("%.3f ms", 1.0), new TimeBase(1000).format(1));
+    }
+
+    @Test
+    public void rateMustBePositive() {
+        assertThrows(Failure.class, () -> new TimeBase(0));
+        assertThrows(Failure.class, () -> new TimeBase(-1));
+    }
+}